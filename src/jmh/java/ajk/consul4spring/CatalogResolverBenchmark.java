@@ -0,0 +1,25 @@
+package ajk.consul4spring;
+
+import com.orbitz.consul.model.catalog.CatalogService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+
+import java.util.Set;
+
+import static java.util.concurrent.TimeUnit.MICROSECONDS;
+
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(MICROSECONDS)
+public class CatalogResolverBenchmark {
+    @Benchmark
+    public Set<CatalogService> resolveByName(ConsulState state) {
+        return state.consul4Spring.resolveByName(ConsulStandIn.SERVICE);
+    }
+
+    @Benchmark
+    public String resolveByNameAsClusterDefinition(ConsulState state) {
+        return state.consul4Spring.resolveByNameAsClusterDefinition(ConsulStandIn.SERVICE);
+    }
+}
@@ -0,0 +1,26 @@
+package ajk.consul4spring;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+
+import static java.util.concurrent.TimeUnit.MICROSECONDS;
+
+/**
+ * measures the cost to the caller of reporting a check, the report itself is sent to the agent in the background
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(MICROSECONDS)
+public class CheckServiceBenchmark {
+    @Benchmark
+    public void pass(ConsulState state) {
+        state.consul4Spring.pass("bench", 30);
+    }
+
+    @Benchmark
+    public void passAndFail(ConsulState state) {
+        state.consul4Spring.pass("bench-flapping", 30, "up");
+        state.consul4Spring.fail("bench-flapping", 30, "down");
+    }
+}
@@ -0,0 +1,344 @@
+package ajk.consul4spring;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.commons.io.IOUtils;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Base64.getDecoder;
+import static java.util.Base64.getEncoder;
+import static java.util.Collections.emptyList;
+import static java.util.Collections.singletonList;
+import static java.util.concurrent.Executors.newCachedThreadPool;
+
+/**
+ * an in-process stand-in for the parts of the Consul HTTP API the library uses: the agent, sessions, the key value
+ * store with locks, blocking queries and transactions, and the health of a single "bench" service. It keeps everything
+ * in memory and answers without any artificial latency, so the benchmarks measure the client side.
+ */
+class ConsulStandIn implements Closeable {
+    static final String SERVICE = "bench";
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final HttpServer server;
+    private final ExecutorService executor;
+
+    private final TreeMap<String, Entry> kv = new TreeMap<>();
+    private long index = 1;
+
+    ConsulStandIn() throws IOException {
+        executor = newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, "consul-stand-in");
+            thread.setDaemon(true);
+            return thread;
+        });
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 128);
+        server.setExecutor(executor);
+        server.createContext("/v1/", this::handle);
+        server.start();
+    }
+
+    int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            String path = exchange.getRequestURI().getPath();
+            Map<String, String> params = params(exchange.getRequestURI().getRawQuery());
+            String method = exchange.getRequestMethod();
+            byte[] body = IOUtils.toByteArray(exchange.getRequestBody());
+
+            if (path.equals("/v1/status/leader")) {
+                respond(exchange, 200, "\"127.0.0.1:8300\"", 0);
+            } else if (path.equals("/v1/agent/self")) {
+                respond(exchange, 200, "{\"Config\": {}, \"Member\": {}}", 0);
+            } else if (path.equals("/v1/agent/services")) {
+                respond(exchange, 200, "{}", 0);
+            } else if (path.startsWith("/v1/agent/")) {
+                respond(exchange, 200, "", 0);
+            } else if (path.equals("/v1/session/create")) {
+                respond(exchange, 200, "{\"ID\": \"" + UUID.randomUUID() + "\"}", 0);
+            } else if (path.startsWith("/v1/session/renew/")) {
+                String id = path.substring("/v1/session/renew/".length());
+                respond(exchange, 200, "[{\"ID\": \"" + id + "\", \"TTL\": \"30s\"}]", 0);
+            } else if (path.startsWith("/v1/session/destroy/")) {
+                destroySession(path.substring("/v1/session/destroy/".length()));
+                respond(exchange, 200, "true", 0);
+            } else if (path.equals("/v1/txn")) {
+                transaction(exchange, body);
+            } else if (path.startsWith("/v1/kv/")) {
+                keyValue(exchange, method, path.substring("/v1/kv/".length()), params, body);
+            } else if (path.startsWith("/v1/health/service/")) {
+                health(exchange, params);
+            } else {
+                respond(exchange, 404, "", 0);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            respond(exchange, 500, "interrupted", 0);
+        } catch (RuntimeException e) {
+            respond(exchange, 500, String.valueOf(e), 0);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void keyValue(HttpExchange exchange, String method, String key, Map<String, String> params, byte[] body)
+            throws IOException, InterruptedException {
+        switch (method) {
+            case "GET":
+                List<Map<String, Object>> found;
+                long foundIndex;
+                synchronized (this) {
+                    await(params);
+                    found = new ArrayList<>();
+                    if (params.containsKey("recurse")) {
+                        kv.subMap(key, key + Character.MAX_VALUE).forEach((k, entry) -> found.add(entry.toJson(k)));
+                    } else if (kv.containsKey(key)) {
+                        found.add(kv.get(key).toJson(key));
+                    }
+                    foundIndex = index;
+                }
+                if (found.isEmpty()) {
+                    respond(exchange, 404, "", foundIndex);
+                } else {
+                    respond(exchange, 200, mapper.writeValueAsString(found), foundIndex);
+                }
+                break;
+            case "PUT":
+                boolean applied;
+                synchronized (this) {
+                    if (params.containsKey("acquire")) {
+                        applied = acquire(key, params.get("acquire"), body);
+                    } else if (params.containsKey("release")) {
+                        applied = release(key, params.get("release"));
+                    } else {
+                        set(key, body);
+                        applied = true;
+                    }
+                }
+                respond(exchange, 200, String.valueOf(applied), 0);
+                break;
+            case "DELETE":
+                synchronized (this) {
+                    if (params.containsKey("recurse")) {
+                        kv.subMap(key, key + Character.MAX_VALUE).clear();
+                    } else {
+                        kv.remove(key);
+                    }
+                    changed();
+                }
+                respond(exchange, 200, "true", 0);
+                break;
+            default:
+                respond(exchange, 405, "", 0);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void transaction(HttpExchange exchange, byte[] body) throws IOException {
+        List<Map<String, Map<String, Object>>> operations = mapper.readValue(body, List.class);
+        synchronized (this) {
+            for (int i = 0; i < operations.size(); i++) {
+                Map<String, Object> operation = operations.get(i).get("KV");
+                String verb = (String) operation.get("Verb");
+                Entry entry = kv.get(operation.get("Key"));
+                long expected = operation.containsKey("Index") ? ((Number) operation.get("Index")).longValue() : 0;
+                long actual = entry == null ? 0 : entry.modifyIndex;
+                if ((verb.equals("cas") || verb.equals("check-index") || verb.equals("delete-cas")) && expected != actual) {
+                    respond(exchange, 409, "{\"Results\": null, \"Errors\": [{\"OpIndex\": " + i + ", \"What\": \"index mismatch\"}]}", 0);
+                    return;
+                }
+            }
+
+            for (Map<String, Map<String, Object>> wrapper : operations) {
+                Map<String, Object> operation = wrapper.get("KV");
+                String key = (String) operation.get("Key");
+                switch ((String) operation.get("Verb")) {
+                    case "set":
+                    case "cas":
+                        String value = (String) operation.get("Value");
+                        set(key, value == null ? null : getDecoder().decode(value));
+                        break;
+                    case "delete":
+                    case "delete-cas":
+                        kv.remove(key);
+                        break;
+                    case "delete-tree":
+                        kv.subMap(key, key + Character.MAX_VALUE).clear();
+                        break;
+                    default:
+                }
+            }
+            changed();
+        }
+        respond(exchange, 200, "{\"Results\": [], \"Errors\": null}", 0);
+    }
+
+    private void health(HttpExchange exchange, Map<String, String> params) throws IOException, InterruptedException {
+        synchronized (this) {
+            // the service never changes, a blocking query just waits
+            await(params);
+        }
+
+        Map<String, Object> node = new LinkedHashMap<>();
+        node.put("Node", "node1");
+        node.put("Address", "127.0.0.1");
+        Map<String, Object> service = new LinkedHashMap<>();
+        service.put("ID", SERVICE + "-1");
+        service.put("Service", SERVICE);
+        service.put("Tags", emptyList());
+        service.put("Address", "127.0.0.1");
+        service.put("Port", 8080);
+        Map<String, Object> instance = new LinkedHashMap<>();
+        instance.put("Node", node);
+        instance.put("Service", service);
+        instance.put("Checks", emptyList());
+        respond(exchange, 200, mapper.writeValueAsString(singletonList(instance)), 1);
+    }
+
+    /**
+     * blocks while the index in the request is the current one, up to the requested wait time
+     */
+    private void await(Map<String, String> params) throws InterruptedException {
+        if (!params.containsKey("index")) {
+            return;
+        }
+
+        long requested = Long.parseLong(params.get("index"));
+        String wait = params.getOrDefault("wait", "5m");
+        long waitMillis = Long.parseLong(wait.substring(0, wait.length() - 1)) * (wait.endsWith("m") ? 60000 : 1000);
+        long deadline = System.currentTimeMillis() + waitMillis;
+        while (requested >= index && System.currentTimeMillis() < deadline) {
+            wait(Math.max(1, deadline - System.currentTimeMillis()));
+        }
+    }
+
+    private void set(String key, byte[] value) {
+        Entry entry = kv.computeIfAbsent(key, k -> new Entry(index + 1));
+        entry.value = value;
+        changed();
+        entry.modifyIndex = index;
+    }
+
+    private boolean acquire(String key, String session, byte[] value) {
+        Entry entry = kv.get(key);
+        if (entry != null && entry.session != null) {
+            return session.equals(entry.session);
+        }
+
+        set(key, value.length == 0 && entry != null ? entry.value : value);
+        entry = kv.get(key);
+        entry.session = session;
+        entry.lockIndex++;
+        return true;
+    }
+
+    private boolean release(String key, String session) {
+        Entry entry = kv.get(key);
+        if (entry == null || !session.equals(entry.session)) {
+            return false;
+        }
+
+        entry.session = null;
+        changed();
+        entry.modifyIndex = index;
+        return true;
+    }
+
+    private synchronized void destroySession(String session) {
+        kv.forEach((key, entry) -> {
+            if (session.equals(entry.session)) {
+                entry.session = null;
+            }
+        });
+        changed();
+    }
+
+    private void changed() {
+        index++;
+        notifyAll();
+    }
+
+    private void respond(HttpExchange exchange, int status, String body, long consulIndex) throws IOException {
+        byte[] bytes = body.getBytes(UTF_8);
+        exchange.getResponseHeaders().add("Content-Type", "application/json");
+        if (consulIndex > 0) {
+            exchange.getResponseHeaders().add("X-Consul-Index", String.valueOf(consulIndex));
+            exchange.getResponseHeaders().add("X-Consul-Knownleader", "true");
+            exchange.getResponseHeaders().add("X-Consul-Lastcontact", "0");
+        }
+        exchange.sendResponseHeaders(status, bytes.length == 0 ? -1 : bytes.length);
+        if (bytes.length > 0) {
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(bytes);
+            }
+        }
+    }
+
+    private static Map<String, String> params(String query) throws IOException {
+        Map<String, String> params = new HashMap<>();
+        if (query == null) {
+            return params;
+        }
+
+        for (String param : query.split("&")) {
+            int separator = param.indexOf('=');
+            if (separator < 0) {
+                params.put(param, "");
+            } else {
+                params.put(param.substring(0, separator), URLDecoder.decode(param.substring(separator + 1), "UTF-8"));
+            }
+        }
+
+        return params;
+    }
+
+    private static class Entry {
+        private final long createIndex;
+        private long modifyIndex;
+        private long lockIndex;
+        private String session;
+        private byte[] value;
+
+        Entry(long createIndex) {
+            this.createIndex = createIndex;
+        }
+
+        Map<String, Object> toJson(String key) {
+            Map<String, Object> json = new LinkedHashMap<>();
+            json.put("Key", key);
+            json.put("CreateIndex", createIndex);
+            json.put("ModifyIndex", modifyIndex);
+            json.put("LockIndex", lockIndex);
+            json.put("Flags", 0);
+            json.put("Value", value == null ? null : getEncoder().encodeToString(value));
+            if (session != null) {
+                json.put("Session", session);
+            }
+            return json;
+        }
+    }
+}
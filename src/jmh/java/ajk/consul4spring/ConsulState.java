@@ -0,0 +1,62 @@
+package ajk.consul4spring;
+
+import ajk.consul4spring.config.ConsulProperties;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.springframework.beans.factory.config.ConfigurableListableBeanFactory;
+import org.springframework.boot.autoconfigure.security.SecurityProperties;
+import org.springframework.boot.autoconfigure.web.ServerProperties;
+import org.springframework.boot.context.embedded.EmbeddedWebApplicationContext;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+
+import java.io.IOException;
+
+/**
+ * a {@link Consul4Spring} wired by Spring, as in an application running with the consul profile, talking to a
+ * {@link ConsulStandIn}
+ */
+@State(Scope.Benchmark)
+public class ConsulState {
+    ConsulStandIn consul;
+    AnnotationConfigApplicationContext context;
+    Consul4Spring consul4Spring;
+
+    @Setup(Level.Trial)
+    public void start() throws IOException {
+        consul = new ConsulStandIn();
+
+        ConsulProperties consulProperties = new ConsulProperties();
+        consulProperties.setHostname("127.0.0.1");
+        consulProperties.setHttpPort(consul.getPort());
+        consulProperties.setServiceId("bench-id");
+        consulProperties.setServiceName(ConsulStandIn.SERVICE);
+        consulProperties.setTags(new String[0]);
+
+        ServerProperties serverProperties = new ServerProperties();
+        serverProperties.setPort(8080);
+
+        context = new AnnotationConfigApplicationContext();
+        context.getEnvironment().setActiveProfiles("consul");
+        ConfigurableListableBeanFactory beanFactory = context.getBeanFactory();
+        // Consul4Spring only waits for the embedded server to be created, the benchmarks don't need one
+        beanFactory.registerResolvableDependency(EmbeddedWebApplicationContext.class, new EmbeddedWebApplicationContext());
+        beanFactory.registerSingleton("consulProperties", consulProperties);
+        beanFactory.registerSingleton("serverProperties", serverProperties);
+        beanFactory.registerSingleton("securityProperties", new SecurityProperties());
+        beanFactory.registerSingleton("objectMapper", new ObjectMapper());
+        context.register(ConsulMetrics.class, ConsulClientManager.class, DnsResolver.class, Consul4Spring.class);
+        context.refresh();
+
+        consul4Spring = context.getBean(Consul4Spring.class);
+    }
+
+    @TearDown(Level.Trial)
+    public void stop() {
+        context.close();
+        consul.close();
+    }
+}
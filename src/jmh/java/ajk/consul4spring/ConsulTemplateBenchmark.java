@@ -0,0 +1,51 @@
+package ajk.consul4spring;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.IOException;
+import java.util.List;
+
+import static java.util.Arrays.asList;
+import static java.util.concurrent.TimeUnit.MICROSECONDS;
+
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(MICROSECONDS)
+@State(Scope.Benchmark)
+public class ConsulTemplateBenchmark {
+    @Setup(Level.Trial)
+    public void writeValues(ConsulState state) throws IOException {
+        BenchConfig config = new BenchConfig();
+        config.name = "bench";
+        config.values = asList("one", "two", "three");
+        state.consul4Spring.write("/bench/value", "value");
+        state.consul4Spring.write("/bench/config", new ObjectMapper().writeValueAsString(config));
+    }
+
+    @Benchmark
+    public String find(ConsulState state) {
+        return state.consul4Spring.find("/bench/value");
+    }
+
+    @Benchmark
+    public BenchConfig findAndConvert(ConsulState state) {
+        return state.consul4Spring.findAndConvert(BenchConfig.class, "/bench/config");
+    }
+
+    @Benchmark
+    public void write(ConsulState state) {
+        state.consul4Spring.write("/bench/written", "value");
+    }
+
+    public static class BenchConfig {
+        public String name;
+        public List<String> values;
+    }
+}
@@ -0,0 +1,29 @@
+package ajk.consul4spring;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+
+import static java.util.concurrent.TimeUnit.MICROSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(MICROSECONDS)
+public class DistributedLockBenchmark {
+    @Benchmark
+    public long acquireAndRelease(ConsulState state) throws InterruptedException {
+        try (HeldLock lock = state.consul4Spring.acquire("bench", 1, SECONDS)) {
+            return lock == null ? -1 : lock.getFencingToken();
+        }
+    }
+
+    @Benchmark
+    public String legacyAcquireAndRelease(ConsulState state) {
+        String lockId = state.consul4Spring.acquire();
+        if (lockId != null) {
+            state.consul4Spring.release(lockId);
+        }
+        return lockId;
+    }
+}
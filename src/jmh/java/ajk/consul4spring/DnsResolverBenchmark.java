@@ -0,0 +1,70 @@
+package ajk.consul4spring;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+
+import java.io.IOException;
+import java.net.InetAddress;
+
+import static ajk.consul4spring.DnsStandIn.ADDRESS;
+import static java.util.concurrent.TimeUnit.MICROSECONDS;
+
+/**
+ * resolves records from a {@link DnsStandIn}. With a TTL of 0 every lookup goes to the name server, otherwise lookups
+ * are answered from the resolver's cache
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(MICROSECONDS)
+@State(Scope.Benchmark)
+public class DnsResolverBenchmark {
+    @Param({"0", "60"})
+    public long ttl;
+
+    private DnsStandIn dns;
+    private AnnotationConfigApplicationContext context;
+    private DnsResolver dnsResolver;
+    private InetAddress address;
+
+    @Setup(Level.Trial)
+    public void start() throws IOException {
+        dns = new DnsStandIn(ttl);
+        context = new AnnotationConfigApplicationContext(ConsulMetrics.class, DnsResolver.class);
+        dnsResolver = context.getBean(DnsResolver.class);
+        address = InetAddress.getByName(ADDRESS);
+    }
+
+    @TearDown(Level.Trial)
+    public void stop() {
+        context.close();
+        dns.close();
+    }
+
+    @Benchmark
+    public String resolveServiceByName() {
+        return dnsResolver.resolveServiceByName(ADDRESS, dns.getPort(), DnsStandIn.SRV_NAME);
+    }
+
+    @Benchmark
+    public String resolveHostByName() {
+        return dnsResolver.resolveHostByName(ADDRESS, dns.getPort(), DnsStandIn.HOST_NAME);
+    }
+
+    @Benchmark
+    public String resolveTextByName() {
+        return dnsResolver.resolveTextByName(ADDRESS, dns.getPort(), DnsStandIn.TEXT_NAME);
+    }
+
+    @Benchmark
+    public String reverseLookupByAddress() {
+        return dnsResolver.reverseLookupByAddress(ADDRESS, dns.getPort(), address);
+    }
+}
@@ -0,0 +1,113 @@
+package ajk.consul4spring;
+
+import org.xbill.DNS.ARecord;
+import org.xbill.DNS.DClass;
+import org.xbill.DNS.Flags;
+import org.xbill.DNS.Message;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.PTRRecord;
+import org.xbill.DNS.Rcode;
+import org.xbill.DNS.Record;
+import org.xbill.DNS.SRVRecord;
+import org.xbill.DNS.Section;
+import org.xbill.DNS.TXTRecord;
+import org.xbill.DNS.Type;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+import static java.util.Arrays.copyOf;
+import static org.xbill.DNS.Name.fromString;
+
+/**
+ * an in-process UDP name server answering like the Consul DNS interface for a single "bench" service: an SRV record
+ * with the node's A record in the additional section, plus A, TXT and PTR records
+ */
+class DnsStandIn implements Closeable {
+    static final String SRV_NAME = "bench.service.consul";
+    static final String HOST_NAME = "node1.node.dc1.consul";
+    static final String TEXT_NAME = "bench.txt.consul";
+    static final String ADDRESS = "127.0.0.1";
+
+    private final DatagramSocket socket;
+    private final List<Record> records = new ArrayList<>();
+    private final Thread thread;
+
+    /**
+     * @param ttl the TTL of all the records, 0 to keep clients from caching them
+     */
+    DnsStandIn(long ttl) throws IOException {
+        Name srv = fromString(SRV_NAME + ".");
+        Name host = fromString(HOST_NAME + ".");
+        InetAddress address = InetAddress.getByName(ADDRESS);
+        records.add(new SRVRecord(srv, DClass.IN, ttl, 1, 1, 8080, host));
+        records.add(new ARecord(host, DClass.IN, ttl, address));
+        records.add(new TXTRecord(fromString(TEXT_NAME + "."), DClass.IN, ttl, "v=bench"));
+        records.add(new PTRRecord(fromString("1.0.0.127.in-addr.arpa."), DClass.IN, ttl, host));
+
+        socket = new DatagramSocket(new InetSocketAddress(ADDRESS, 0));
+        thread = new Thread(this::serve, "dns-stand-in");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    int getPort() {
+        return socket.getLocalPort();
+    }
+
+    @Override
+    public void close() {
+        socket.close();
+    }
+
+    private void serve() {
+        byte[] buffer = new byte[512];
+        while (!socket.isClosed()) {
+            try {
+                DatagramPacket request = new DatagramPacket(buffer, buffer.length);
+                socket.receive(request);
+                byte[] response = answer(new Message(copyOf(request.getData(), request.getLength()))).toWire();
+                socket.send(new DatagramPacket(response, response.length, request.getSocketAddress()));
+            } catch (IOException e) {
+                if (socket.isClosed()) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private Message answer(Message query) {
+        Record question = query.getQuestion();
+        Message response = new Message(query.getHeader().getID());
+        response.getHeader().setFlag(Flags.QR);
+        response.getHeader().setFlag(Flags.AA);
+        response.addRecord(question, Section.QUESTION);
+
+        for (Record record : records) {
+            if (record.getName().equals(question.getName()) && record.getType() == question.getType()) {
+                response.addRecord(record, Section.ANSWER);
+                if (record instanceof SRVRecord) {
+                    additional(response, ((SRVRecord) record).getTarget());
+                }
+            }
+        }
+
+        if (response.getSectionArray(Section.ANSWER).length == 0) {
+            response.getHeader().setRcode(Rcode.NXDOMAIN);
+        }
+
+        return response;
+    }
+
+    private void additional(Message response, Name target) {
+        records.stream()
+                .filter(record -> record.getName().equals(target) && record.getType() == Type.A)
+                .forEach(record -> response.addRecord(record, Section.ADDITIONAL));
+    }
+}
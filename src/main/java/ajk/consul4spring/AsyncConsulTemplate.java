@@ -0,0 +1,49 @@
+package ajk.consul4spring;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * a non-blocking counterpart of the {@link ConsulTemplate}. The operations run on a dedicated, bounded executor and
+ * return immediately, so request threads can read several keys in parallel and compose the results.
+ * <p>
+ * The futures complete exceptionally with a {@link java.util.concurrent.TimeoutException} when the operation takes
+ * longer than {@code consul.asyncTimeoutMillis}, and with a
+ * {@link java.util.concurrent.RejectedExecutionException} when too many operations are already waiting. Cancelling a
+ * future interrupts the operation if it's still running.
+ */
+public interface AsyncConsulTemplate {
+    /**
+     * writes a value to Consul
+     *
+     * @param key   the key
+     * @param value the value. This could be anything, including a JSON representation of any object
+     * @return a future completed when the value was written
+     */
+    CompletableFuture<Void> write(String key, String value);
+
+    /**
+     * retrieves a value from Consul
+     *
+     * @param key the key
+     * @return a future of the value as a string, completed with null if the key was not found
+     */
+    CompletableFuture<String> find(String key);
+
+    /**
+     * retrieves a value from Consul converted to any object, see {@link ConsulTemplate#findAndConvert(Class, String)}
+     *
+     * @param clazz the target class for the conversion
+     * @param key   the key
+     * @param <T>   the target type for the conversion
+     * @return a future of the value converted to {@code clazz}, completed with null if the key was not found
+     */
+    <T> CompletableFuture<T> findAndConvert(Class<T> clazz, String key);
+
+    /**
+     * recursively deletes a key if it exists
+     *
+     * @param key the key to delete
+     * @return a future completed when the key was deleted
+     */
+    CompletableFuture<Void> delete(String key);
+}
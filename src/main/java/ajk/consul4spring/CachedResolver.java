@@ -0,0 +1,285 @@
+package ajk.consul4spring;
+
+import org.xbill.DNS.ARecord;
+import org.xbill.DNS.Cache;
+import org.xbill.DNS.Credibility;
+import org.xbill.DNS.DClass;
+import org.xbill.DNS.Lookup;
+import org.xbill.DNS.Message;
+import org.xbill.DNS.Name;
+import org.xbill.DNS.RRset;
+import org.xbill.DNS.Rcode;
+import org.xbill.DNS.Record;
+import org.xbill.DNS.Resolver;
+import org.xbill.DNS.ResolverListener;
+import org.xbill.DNS.Section;
+import org.xbill.DNS.SetResponse;
+import org.xbill.DNS.TSIG;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import static org.xbill.DNS.Lookup.HOST_NOT_FOUND;
+import static org.xbill.DNS.Lookup.TYPE_NOT_FOUND;
+
+/**
+ * a DNS resolver together with its own record cache. Positive answers are kept for as long as their TTL allows by
+ * the dnsjava {@link Cache}. Negative answers (NXDOMAIN and no records of the requested type) are kept for a fixed
+ * time, because Consul answers them with an SOA minimum TTL of 0 by default, which would make them uncacheable.
+ */
+class CachedResolver {
+    private static final String NXDOMAIN = "nxdomain/";
+
+    private final Resolver resolver;
+    private final Cache cache;
+    private final long negativeTtlMillis;
+    private final int maxEntries;
+    private final Map<String, Long> negative = new ConcurrentHashMap<>();
+
+    private final LongAdder hits;
+    private final LongAdder misses;
+    private final ConsulMetrics.Timer queries;
+
+    /**
+     * @param maxEntries the maximum number of remembered negative answers, the size of the record cache is set on the
+     *                   cache itself
+     * @param queries    times the queries sent to the name server
+     */
+    CachedResolver(Resolver resolver, Cache cache, int maxEntries, int negativeTtl, LongAdder hits, LongAdder misses,
+                   ConsulMetrics.Timer queries) {
+        this.resolver = resolver;
+        this.cache = cache;
+        this.maxEntries = maxEntries;
+        this.negativeTtlMillis = negativeTtl * 1000L;
+        this.hits = hits;
+        this.misses = misses;
+        this.queries = queries;
+    }
+
+    Resolver getResolver() {
+        return resolver;
+    }
+
+    Cache getCache() {
+        return cache;
+    }
+
+    /**
+     * @return the records found, or null when the name or type doesn't exist or couldn't be resolved
+     */
+    Record[] lookup(Name name, int type) {
+        String negativeKey = type + "/" + name;
+        if (isKnownMissing(negativeKey)) {
+            hits.increment();
+            return null;
+        }
+
+        // a relative name is looked up under the names of the search path, so the lookup is a hit when Lookup found
+        // the answer in the cache without sending a query
+        TimedResolver timed = new TimedResolver(resolver, queries);
+        Lookup lookup = new Lookup(name, type);
+        lookup.setResolver(timed);
+        lookup.setCache(cache);
+        Record[] records = lookup.run();
+        if (timed.sent) {
+            misses.increment();
+        } else {
+            hits.increment();
+        }
+
+        if (records == null && (lookup.getResult() == HOST_NOT_FOUND || lookup.getResult() == TYPE_NOT_FOUND)) {
+            rememberMissing(negativeKey);
+        }
+
+        return records;
+    }
+
+    /**
+     * looks up an absolute name with a single query and caches the A records of the additional section along with the
+     * answer. Consul returns the A record of every SRV target in the additional section, so the targets of an SRV
+     * answer can usually be resolved from the cache right after without another query
+     *
+     * @return the answer records, an empty array when the name exists without records of the type or couldn't be
+     * resolved, or null when the name doesn't exist (NXDOMAIN)
+     * @throws IOException when the name server couldn't be queried
+     */
+    Record[] lookupWithAdditional(Name name, int type) throws IOException {
+        if (isKnownMissing(NXDOMAIN + name)) {
+            hits.increment();
+            return null;
+        }
+        String negativeKey = type + "/" + name;
+        if (isKnownMissing(negativeKey)) {
+            hits.increment();
+            return new Record[0];
+        }
+
+        SetResponse cached = cache.lookupRecords(name, type, Credibility.NORMAL);
+        if (cached.isSuccessful()) {
+            hits.increment();
+            return toRecords(cached.answers());
+        }
+
+        misses.increment();
+        Message response;
+        long started = queries.start();
+        boolean failed = true;
+        try {
+            response = resolver.send(Message.newQuery(Record.newRecord(name, type, DClass.IN)));
+            failed = false;
+        } finally {
+            queries.stop(started, failed);
+        }
+        cache.addMessage(response);
+        for (Record record : response.getSectionArray(Section.ADDITIONAL)) {
+            // additional records are cached with a low credibility that lookups ignore, Consul's are authoritative
+            if (record instanceof ARecord) {
+                cache.addRecord(record, Credibility.NORMAL, response);
+            }
+        }
+
+        List<Record> answers = new ArrayList<>();
+        for (Record record : response.getSectionArray(Section.ANSWER)) {
+            if (record.getType() == type) {
+                answers.add(record);
+            }
+        }
+
+        if (answers.isEmpty()) {
+            if (response.getRcode() == Rcode.NXDOMAIN) {
+                rememberMissing(NXDOMAIN + name);
+                return null;
+            }
+            if (response.getRcode() == Rcode.NOERROR) {
+                rememberMissing(negativeKey);
+            }
+            return new Record[0];
+        }
+
+        return answers.toArray(new Record[answers.size()]);
+    }
+
+    /**
+     * @return true when the records of the given type are in the cache (a lookup won't query the name server)
+     */
+    boolean isCached(Name name, int type) {
+        return cache.lookupRecords(name, type, Credibility.NORMAL).isSuccessful();
+    }
+
+    private boolean isKnownMissing(String negativeKey) {
+        Long expires = negative.get(negativeKey);
+        if (expires == null) {
+            return false;
+        }
+
+        if (expires > System.currentTimeMillis()) {
+            return true;
+        }
+
+        negative.remove(negativeKey);
+        return false;
+    }
+
+    private void rememberMissing(String negativeKey) {
+        if (negativeTtlMillis <= 0) {
+            return;
+        }
+
+        if (negative.size() >= maxEntries) {
+            negative.clear();
+        }
+        negative.put(negativeKey, System.currentTimeMillis() + negativeTtlMillis);
+    }
+
+    /**
+     * times the queries a single lookup sends to the name server
+     */
+    private static class TimedResolver implements Resolver {
+        private final Resolver resolver;
+        private final ConsulMetrics.Timer queries;
+        private volatile boolean sent;
+
+        TimedResolver(Resolver resolver, ConsulMetrics.Timer queries) {
+            this.resolver = resolver;
+            this.queries = queries;
+        }
+
+        @Override
+        public Message send(Message query) throws IOException {
+            sent = true;
+            long started = queries.start();
+            boolean failed = true;
+            try {
+                Message response = resolver.send(query);
+                failed = false;
+                return response;
+            } finally {
+                queries.stop(started, failed);
+            }
+        }
+
+        @Override
+        public Object sendAsync(Message query, ResolverListener listener) {
+            sent = true;
+            return resolver.sendAsync(query, listener);
+        }
+
+        @Override
+        public void setPort(int port) {
+            resolver.setPort(port);
+        }
+
+        @Override
+        public void setTCP(boolean flag) {
+            resolver.setTCP(flag);
+        }
+
+        @Override
+        public void setIgnoreTruncation(boolean flag) {
+            resolver.setIgnoreTruncation(flag);
+        }
+
+        @Override
+        public void setEDNS(int level) {
+            resolver.setEDNS(level);
+        }
+
+        @Override
+        @SuppressWarnings("rawtypes")
+        public void setEDNS(int level, int payloadSize, int flags, List options) {
+            resolver.setEDNS(level, payloadSize, flags, options);
+        }
+
+        @Override
+        public void setTSIGKey(TSIG key) {
+            resolver.setTSIGKey(key);
+        }
+
+        @Override
+        public void setTimeout(int secs, int msecs) {
+            resolver.setTimeout(secs, msecs);
+        }
+
+        @Override
+        public void setTimeout(int secs) {
+            resolver.setTimeout(secs);
+        }
+    }
+
+    private static Record[] toRecords(RRset[] sets) {
+        List<Record> records = new ArrayList<>();
+        for (RRset set : sets) {
+            Iterator<?> iterator = set.rrs();
+            while (iterator.hasNext()) {
+                records.add((Record) iterator.next());
+            }
+        }
+
+        return records.toArray(new Record[records.size()]);
+    }
+}
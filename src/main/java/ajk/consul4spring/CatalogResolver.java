@@ -6,13 +6,27 @@ import java.util.Set;
 
 public interface CatalogResolver {
     /**
-     * resolves a service by its name
+     * resolves a service by its name to its passing instances
      *
      * @param name the service name to lookup
-     * @return a set of unique {@link CatalogService} objects
+     * @return an immutable set with a {@link CatalogService} for each passing instance of the service
      */
     Set<CatalogService> resolveByName(String name);
 
+    /**
+     * resolves a service by its name to its passing instances with a specific consistency, instead of the
+     * consul.readConsistency one. A consistent read always goes to Consul, other reads are answered from memory when
+     * the service is watched with a consistency that's at least as strong
+     *
+     * @param name        the service name to lookup
+     * @param consistency the consistency of the read
+     * @return an immutable set with a {@link CatalogService} for each passing instance of the service, and the
+     * X-Consul-LastContact of the read
+     */
+    default ConsulRead<Set<CatalogService>> resolveByName(String name, ReadConsistency consistency) {
+        return new ConsulRead<>(resolveByName(name), 0, true);
+    }
+
     /**
      * resolves a service by its name to a comma separated list of ip-addr:port for each of the located services in the catalog. This is a very
      * useful method for constructing a cluster definition. For example, if you want to lookup all the ip-addr:port
@@ -25,4 +39,21 @@ public interface CatalogResolver {
      * none found
      */
     String resolveByNameAsClusterDefinition(String name);
+
+    /**
+     * registers a listener that's notified whenever the set of passing instances of a service changes. This is useful
+     * for rebuilding a client connection pool only when the cluster membership actually changed
+     *
+     * @param name     the service name to watch
+     * @param listener the listener to notify
+     */
+    void addChangeListener(String name, ServiceChangeListener listener);
+
+    /**
+     * removes a listener registered with {@link #addChangeListener(String, ServiceChangeListener)}
+     *
+     * @param name     the service name
+     * @param listener the listener to remove
+     */
+    void removeChangeListener(String name, ServiceChangeListener listener);
 }
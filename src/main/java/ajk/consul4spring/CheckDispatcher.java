@@ -0,0 +1,192 @@
+package ajk.consul4spring;
+
+import com.orbitz.consul.NotRegisteredException;
+import com.orbitz.consul.model.State;
+import org.apache.commons.logging.Log;
+
+import java.io.Closeable;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+import static org.apache.commons.logging.LogFactory.getLog;
+import static org.springframework.util.StringUtils.isEmpty;
+
+/**
+ * keeps the latest desired state of every check and sends it to the Consul agent on a single background thread.
+ * Each check is registered with the agent once, and a burst of reports of the same check is coalesced: only the latest
+ * report is looked at, and it's only sent when the state or the note changed, or when half of the TTL passed since the
+ * check was last sent so it doesn't expire.
+ */
+class CheckDispatcher implements Closeable {
+    /**
+     * the agent operations the dispatcher needs
+     */
+    interface Agent {
+        void register(String checkName, long ttl);
+
+        void update(String checkName, State state, String note) throws NotRegisteredException;
+    }
+
+    private Log log = getLog(getClass());
+
+    private final Agent agent;
+    private final Map<String, Check> checks = new ConcurrentHashMap<>();
+    private final BlockingQueue<Check> pending;
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    private final LongAdder reported = new LongAdder();
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+
+    CheckDispatcher(Agent agent, int capacity) {
+        this.agent = agent;
+        this.pending = new ArrayBlockingQueue<>(capacity);
+        this.thread = new Thread(this::dispatch, "consul-check-dispatcher");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * records the desired state of a check, returns immediately
+     */
+    void report(String checkName, long ttl, State state, String note) {
+        report(checkName, new Report(ttl, state, note, false));
+    }
+
+    /**
+     * like {@link #report(String, long, State, String)}, but the check is sent even if it didn't change and half of
+     * its TTL hasn't passed yet. Used by the checks refreshed on a schedule
+     */
+    void refresh(String checkName, long ttl, State state, String note) {
+        report(checkName, new Report(ttl, state, note, true));
+    }
+
+    private void report(String checkName, Report report) {
+        reported.increment();
+        Check check = checks.computeIfAbsent(checkName, Check::new);
+        check.desired = report;
+
+        // a check is queued at most once, the dispatcher picks up its latest report
+        if (check.queued.compareAndSet(false, true) && !pending.offer(check)) {
+            check.queued.set(false);
+            dropped.increment();
+            log.warn("[check " + checkName + "]: too many pending checks, dropping " + report.state);
+        }
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        thread.interrupt();
+    }
+
+    /**
+     * @return the number of reports received
+     */
+    long getReported() {
+        return reported.sum();
+    }
+
+    /**
+     * @return the number of state updates actually sent to the agent
+     */
+    long getSent() {
+        return sent.sum();
+    }
+
+    /**
+     * @return the number of reports dropped because the queue was full
+     */
+    long getDropped() {
+        return dropped.sum();
+    }
+
+    private void dispatch() {
+        while (running) {
+            try {
+                Check check = pending.take();
+                check.queued.set(false);
+                send(check);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (RuntimeException e) {
+                log.error("unable to dispatch check", e);
+            }
+        }
+    }
+
+    private void send(Check check) {
+        Report report = check.desired;
+        long now = System.currentTimeMillis();
+        boolean changed = report.state != check.sentState || !Objects.equals(report.note, check.sentNote);
+        boolean refreshDue = report.refresh || now - check.sentAt >= report.ttl * 1000 / 2;
+        if (check.registeredTtl == report.ttl && !changed && !refreshDue) {
+            return;
+        }
+
+        try {
+            if (check.registeredTtl != report.ttl) {
+                agent.register(check.name, report.ttl);
+                check.registeredTtl = report.ttl;
+            }
+
+            if (changed) {
+                log.info("[check " + check.name + "]: " + report.state + (isEmpty(report.note) ? "" : " " + report.note));
+            }
+
+            try {
+                agent.update(check.name, report.state, report.note);
+            } catch (NotRegisteredException e) {
+                // the agent lost the check, for example after it was restarted
+                agent.register(check.name, report.ttl);
+                agent.update(check.name, report.state, report.note);
+            }
+
+            check.sentState = report.state;
+            check.sentNote = report.note;
+            check.sentAt = now;
+            sent.increment();
+        } catch (Exception e) {
+            check.registeredTtl = 0;
+            log.error("[check " + check.name + "]: FAIL " + e.getMessage());
+            log.fatal("can't change check " + check.name + " to state " + report.state, e);
+        }
+    }
+
+    private static class Report {
+        private final long ttl;
+        private final State state;
+        private final String note;
+        private final boolean refresh;
+
+        Report(long ttl, State state, String note, boolean refresh) {
+            this.ttl = ttl;
+            this.state = state;
+            this.note = note;
+            this.refresh = refresh;
+        }
+    }
+
+    private static class Check {
+        private final String name;
+        private final AtomicBoolean queued = new AtomicBoolean();
+        private volatile Report desired;
+
+        // only touched by the dispatcher thread
+        private long registeredTtl;
+        private State sentState;
+        private String sentNote;
+        private long sentAt;
+
+        Check(String name) {
+            this.name = name;
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package ajk.consul4spring;
+
+import com.orbitz.consul.model.State;
+
+import static com.orbitz.consul.model.State.FAIL;
+import static com.orbitz.consul.model.State.PASS;
+import static com.orbitz.consul.model.State.WARN;
+
+/**
+ * the outcome of evaluating a managed check: its state and an optional note that appears in the Consul UI/API next to
+ * the check
+ */
+public final class CheckResult {
+    private final State state;
+    private final String note;
+
+    public CheckResult(State state, String note) {
+        this.state = state;
+        this.note = note;
+    }
+
+    public static CheckResult pass() {
+        return new CheckResult(PASS, null);
+    }
+
+    public static CheckResult pass(String note) {
+        return new CheckResult(PASS, note);
+    }
+
+    public static CheckResult warn(String note) {
+        return new CheckResult(WARN, note);
+    }
+
+    public static CheckResult fail(String note) {
+        return new CheckResult(FAIL, note);
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    public String getNote() {
+        return note;
+    }
+
+    @Override
+    public String toString() {
+        return note == null ? state.toString() : state + " " + note;
+    }
+}
@@ -1,8 +1,15 @@
 package ajk.consul4spring;
 
+import java.util.function.Supplier;
+
 /**
  * use this service to change the state of checks in Consul. If you are changing the state of a non-existing check, this
  * check will be created for you.
+ * <p>
+ * The state changes are sent to the Consul agent in the background, the methods return immediately. It's safe to
+ * report the state of a check in a tight loop: a check is registered once, bursts of reports are coalesced to the
+ * latest one, and the agent is only called when the state or the note changes, or when half of the TTL passed since
+ * the check was last sent.
  */
 public interface CheckService {
     /**
@@ -43,6 +50,45 @@ public interface CheckService {
      */
     void fail(String checkName, long ttl, String note);
 
+    /**
+     * registers a check that the library keeps alive: the health supplier is evaluated every
+     * {@code consul.checkEvaluationMillis} (or half the TTL when it's shorter), and its result is only sent to Consul
+     * when the state or the note changed or the TTL needs refreshing, so the application doesn't have to pass the check
+     * itself. Registering a check again replaces its health supplier
+     *
+     * @param checkName the check name
+     * @param ttl       time to live in seconds, at least 1
+     * @param health    evaluated on every refresh. A thrown exception, or not returning within
+     *                  {@code consul.checkTimeoutMillis}, fails the check
+     */
+    void register(String checkName, long ttl, Supplier<CheckResult> health);
+
+    /**
+     * like {@link #register(String, long, Supplier)}, with the evaluation interval and timeout of this check
+     *
+     * @param checkName      the check name
+     * @param ttl            time to live in seconds, at least 1
+     * @param intervalMillis the time between evaluations, at most half the TTL
+     * @param timeoutMillis  the time an evaluation may take before the check is failed
+     * @param health         evaluated on every refresh. A thrown exception fails the check
+     */
+    void register(String checkName, long ttl, long intervalMillis, long timeoutMillis, Supplier<CheckResult> health);
+
+    /**
+     * @param checkName the check name
+     * @return the latest result of a check registered with {@link #register(String, long, Supplier)}, or null when it
+     * wasn't evaluated yet
+     */
+    CheckResult getResult(String checkName);
+
+    /**
+     * stops refreshing a check registered with {@link #register(String, long, Supplier)}. Consul marks the check as
+     * failed after its TTL
+     *
+     * @param checkName the check name
+     */
+    void unregister(String checkName);
+
     /**
      * convert the logical check name you provide to the unique name used to register it in Consul
      *
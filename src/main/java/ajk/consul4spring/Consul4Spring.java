@@ -1,19 +1,18 @@
 package ajk.consul4spring;
 
 import ajk.consul4spring.config.ConsulProperties;
+import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.base.Optional;
-import com.orbitz.consul.AgentClient;
-import com.orbitz.consul.CatalogClient;
-import com.orbitz.consul.Consul;
-import com.orbitz.consul.KeyValueClient;
 import com.orbitz.consul.NotRegisteredException;
-import com.orbitz.consul.SessionClient;
+import com.orbitz.consul.model.ConsulResponse;
 import com.orbitz.consul.model.State;
 import com.orbitz.consul.model.agent.Check;
 import com.orbitz.consul.model.agent.Registration;
 import com.orbitz.consul.model.catalog.CatalogService;
+import com.orbitz.consul.model.kv.Value;
 import org.apache.commons.logging.Log;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.autoconfigure.security.SecurityProperties;
@@ -21,40 +20,79 @@ import org.springframework.boot.autoconfigure.web.ServerProperties;
 import org.springframework.boot.context.embedded.EmbeddedWebApplicationContext;
 import org.springframework.context.ConfigurableApplicationContext;
 import org.springframework.context.annotation.Profile;
-import org.springframework.retry.backoff.FixedBackOffPolicy;
-import org.springframework.retry.policy.TimeoutRetryPolicy;
-import org.springframework.retry.support.RetryTemplate;
-import org.springframework.scheduling.annotation.Async;
 import org.springframework.stereotype.Service;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.ws.rs.client.WebTarget;
+import javax.ws.rs.core.Response;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
 
+import static ajk.consul4spring.KeyValueOperation.Verb.CAS;
+import static ajk.consul4spring.KeyValueOperation.Verb.CHECK_INDEX;
+import static ajk.consul4spring.KeyValueOperation.Verb.DELETE_CAS;
+import static ajk.consul4spring.KeyValueOperation.Verb.DELETE_TREE;
+import static ajk.consul4spring.KeyValueOperation.Verb.SET;
+import static ajk.consul4spring.KeyValueOperation.cas;
+import static ajk.consul4spring.KeyValueOperation.set;
+import static com.fasterxml.jackson.core.JsonToken.FIELD_NAME;
+import static com.fasterxml.jackson.core.JsonToken.START_ARRAY;
+import static com.fasterxml.jackson.core.JsonToken.START_OBJECT;
+import static com.fasterxml.jackson.core.JsonToken.VALUE_NULL;
+import static com.fasterxml.jackson.core.JsonToken.VALUE_STRING;
 import static com.google.common.base.Optional.absent;
-import static com.orbitz.consul.Consul.newClient;
+import static com.google.common.base.Optional.fromNullable;
 import static com.orbitz.consul.model.State.FAIL;
 import static com.orbitz.consul.model.State.PASS;
-import static com.orbitz.consul.option.QueryOptionsBuilder.builder;
 import static java.lang.String.format;
+import static java.nio.charset.StandardCharsets.UTF_8;
 import static java.time.LocalDateTime.now;
 import static java.time.format.DateTimeFormatter.ISO_LOCAL_DATE_TIME;
-import static java.util.stream.Collectors.joining;
+import static java.util.Arrays.asList;
+import static java.util.Base64.getDecoder;
+import static java.util.Base64.getEncoder;
+import static java.util.Comparator.comparing;
+import static java.util.concurrent.CompletableFuture.allOf;
+import static java.util.concurrent.CompletableFuture.runAsync;
+import static java.util.concurrent.Executors.newFixedThreadPool;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static java.util.stream.Collectors.toList;
+import static javax.ws.rs.client.Entity.entity;
+import static javax.ws.rs.client.Entity.json;
+import static javax.ws.rs.core.MediaType.APPLICATION_OCTET_STREAM_TYPE;
 import static org.apache.commons.logging.LogFactory.getLog;
-import static org.springframework.util.StringUtils.isEmpty;
 
 @SuppressWarnings("Guava")
 @Service
 @Profile("consul")
-public class Consul4Spring implements CheckService, DistributedLock, ConsulTemplate, CatalogResolver {
+public class Consul4Spring implements CheckService, DistributedLock, LeaderElection, DistributedSemaphore, ConsulTemplate,
+        CatalogResolver {
     public static int DEFAULT_HEARTBEAT_RATE = 900;
 
+    /**
+     * the maximum number of operations Consul accepts in a single transaction
+     */
+    public static final int MAX_TRANSACTION_OPERATIONS = 64;
+
     private Log log = getLog(getClass());
 
     @Autowired
@@ -78,42 +116,225 @@ public class Consul4Spring implements CheckService, DistributedLock, ConsulTempl
     @Autowired
     private DnsResolver dnsResolver;
 
+    @Autowired(required = false)
+    private List<ValueCodec> valueCodecs;
+
     @Autowired
     private ConfigurableApplicationContext ctx;
 
-    private Consul consul;
+    @Autowired
+    private ConsulClientManager consulClient;
+
+    private KeyValueCache kvCache;
+
+    private ConversionCache conversionCache;
+
+    private ServiceCatalog catalog;
+
+    private CheckDispatcher checkDispatcher;
+
+    private ManagedChecks managedChecks;
+
+    private ValueEncoding encoding;
+
+    private ValueCodecs codecs;
+
+    private ValueCodec writeCodec;
+
+    private SessionManager sessions;
+
+    private LockRegistry locks;
+
+    private ElectionRegistry elections;
+
+    private SemaphoreRegistry semaphores;
+
+    private ExecutorService startup;
+
+    private CompletableFuture<Void> registration;
 
     @PostConstruct
     private void register() throws Exception {
         log.info(consulProperties);
-        registerMyself();
-        writeDefaultProperties();
-    }
-
-    private Consul getConsul() {
-        // test that the client is active - the purpose of this test is to make sure that the instance of consul in the
-        // cluster is alive, is it's not we'll create a new one before giving up. The assumption is that the hostname of
-        // consul is really a consul service that hides multiple instances of consul servers.
-        RetryTemplate retryTemplate = new RetryTemplate();
-        retryTemplate.setBackOffPolicy(new FixedBackOffPolicy());
-        TimeoutRetryPolicy retryPolicy = new TimeoutRetryPolicy();
-        retryPolicy.setTimeout(10000);
-        retryTemplate.setRetryPolicy(retryPolicy);
-
-        return retryTemplate.execute(context -> {
-            if (consul == null || consul.statusClient() == null || isEmpty(consul.statusClient().getLeader())) {
-                // if we can't find a leader this means that the consul client is not usable - we'll release it
-                log.warn("couldn't verify connection to Consul");
-                log.info("creating a new Consul client");
-                consul = newClient(consulProperties.getHostname(), consulProperties.getHttpPort());
-
-                // throwing this exception to retry according to the policies. The last retry will throw this exception
-                throw new IllegalStateException("Consul connection could not be verified");
-            } else {
-                log.info("Consul connection verified");
-                return consul;
+        encoding = new ValueEncoding(consulProperties.getValueCompressionThreshold(), consulProperties.getValueChunkSize());
+        codecs = new ValueCodecs(mapper, valueCodecs);
+        writeCodec = codecs.get(consulProperties.getValueCodec());
+        if (consulProperties.isConversionCacheEnabled()) {
+            conversionCache = new ConversionCache(this::parse);
+        }
+        catalog = new ServiceCatalog(consulProperties.getCatalogWaitSeconds(), consulProperties.getReadConsistency(),
+                consulProperties.getMaxStalenessMillis(), consulProperties.getCatalogIdleSeconds(),
+                name -> consulClient.timed("health.service", (options, callback) -> consulClient.getConsul().healthClient().getHealthyServiceInstances(name, options, callback)));
+        checkDispatcher = new CheckDispatcher(new CheckDispatcher.Agent() {
+            @Override
+            public void register(String checkName, long ttl) {
+                registerCheck(checkName, ttl);
             }
+
+            @Override
+            public void update(String checkName, State state, String note) throws NotRegisteredException {
+                updateCheck(checkName, state, note);
+            }
+        }, consulProperties.getCheckQueueCapacity());
+        managedChecks = new ManagedChecks(checkDispatcher::refresh, consulProperties.getCheckEvaluationThreads(),
+                consulProperties.getCheckEvaluationMillis(), consulProperties.getCheckTimeoutMillis());
+        sessions = new SessionManager(consulClient, toUniqueName("locks"), consulProperties.getLockSessionTtl(), consulProperties.getLockDelay());
+        locks = new LockRegistry(consulClient, sessions);
+        elections = new ElectionRegistry(consulClient, sessions, toUniqueName("leader"));
+        semaphores = new SemaphoreRegistry(consulClient, sessions, this, mapper, consulProperties.getBaseKey());
+        createKeyValueCache();
+        registerGauges();
+
+        // the steps don't depend on each other. Only the default configuration has to be in Consul before the
+        // application starts reading it, the rest completes in the background
+        long started = System.nanoTime();
+        startup = newFixedThreadPool(4, r -> {
+            Thread thread = new Thread(r, "consul-startup");
+            thread.setDaemon(true);
+            return thread;
         });
+        CompletableFuture<Void> defaults = step("defaults", this::writeDefaultProperties);
+        registration = allOf(
+                step("heartbeat", this::registerHeartbeatIfMissing),
+                step("access", this::writeAccessProperties),
+                step("kvCache", this::startKeyValueCache),
+                defaults)
+                .whenComplete((result, failure) -> {
+                    startup.shutdown();
+                    log.info("consul registration " + (failure == null ? "completed" : "failed") + " after " +
+                            NANOSECONDS.toMillis(System.nanoTime() - started) + "ms");
+                });
+
+        try {
+            defaults.join();
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        }
+    }
+
+    /**
+     * a startup step, run on the startup pool
+     */
+    @FunctionalInterface
+    private interface Step {
+        void run() throws Exception;
+    }
+
+    /**
+     * runs a startup step in the background, logging its time and timing it in the {@link ConsulMetrics} as
+     * startup.&lt;name&gt;
+     */
+    private CompletableFuture<Void> step(String name, Step step) {
+        ConsulMetrics.Timer timer = consulClient.getMetrics().timer("startup." + name);
+        return runAsync(() -> {
+            long started = timer.start();
+            boolean failed = true;
+            try {
+                step.run();
+                failed = false;
+            } catch (Exception e) {
+                log.error("consul startup step " + name + " failed", e);
+                throw new CompletionException(e);
+            } finally {
+                timer.stop(started, failed);
+                log.info("consul startup step " + name + (failed ? " failed" : " completed") + " in " +
+                        NANOSECONDS.toMillis(System.nanoTime() - started) + "ms");
+            }
+        }, startup);
+    }
+
+    /**
+     * waits for the background registration steps - registering the service with the agent, writing its access
+     * properties and loading the key value cache
+     *
+     * @return true if all the steps completed successfully within the timeout
+     */
+    public boolean awaitRegistration(long timeout, TimeUnit unit) throws InterruptedException {
+        try {
+            registration.get(timeout, unit);
+            return true;
+        } catch (ExecutionException | TimeoutException e) {
+            return false;
+        }
+    }
+
+    private void registerGauges() {
+        ConsulMetrics metrics = consulClient.getMetrics();
+        metrics.gauge("checks.reported", checkDispatcher::getReported);
+        metrics.gauge("checks.sent", checkDispatcher::getSent);
+        metrics.gauge("checks.dropped", checkDispatcher::getDropped);
+        metrics.gauge("checks.managed", managedChecks::size);
+        metrics.gauge("checks.evaluated", managedChecks::getEvaluated);
+        metrics.gauge("checks.managedReported", managedChecks::getReported);
+        metrics.gauge("checks.timedOut", managedChecks::getTimedOut);
+        if (conversionCache != null) {
+            metrics.gauge("conversionCache.size", conversionCache::size);
+            metrics.gauge("conversionCache.hitRate", () -> hitRate(conversionCache.getHits(), conversionCache.getParses()));
+        }
+        if (kvCache != null) {
+            metrics.gauge("kvCache.size", kvCache::size);
+            // reads of keys that don't exist are answered from memory too
+            metrics.gauge("kvCache.hitRate", () -> hitRate(kvCache.getHits() + kvCache.getMisses(), kvCache.getStaleReads()));
+            metrics.gauge("kvCache.stalenessMillis", kvCache::getStalenessMillis);
+        }
+    }
+
+    private static double hitRate(long hits, long misses) {
+        return hits + misses == 0 ? 0 : (double) hits / (hits + misses);
+    }
+
+    @PreDestroy
+    private void shutdown() {
+        startup.shutdownNow();
+        if (kvCache != null) {
+            kvCache.close();
+        }
+        catalog.close();
+        managedChecks.close();
+        checkDispatcher.close();
+        elections.close();
+        semaphores.close();
+        sessions.close();
+        locks.close();
+    }
+
+    private void createKeyValueCache() {
+        if (!consulProperties.isKvCacheEnabled()) {
+            return;
+        }
+
+        String prefix = consulProperties.getBaseKey();
+        kvCache = new KeyValueCache(prefix, consulProperties.getKvCacheWaitSeconds(), consulProperties.getKvCacheMaxStaleness(),
+                consulProperties.getReadConsistency(), encoding,
+                consulClient.timed("kv.watch", (options, callback) -> consulClient.getConsul().keyValueClient().getValues(prefix, options, callback)));
+    }
+
+    private void startKeyValueCache() throws InterruptedException {
+        if (kvCache == null) {
+            return;
+        }
+
+        // reads go to Consul until the cache is loaded
+        if (kvCache.start(10, SECONDS)) {
+            log.info("key value cache loaded " + kvCache.size() + " keys under " + consulProperties.getBaseKey());
+        } else {
+            log.warn("key value cache for " + consulProperties.getBaseKey() + " is not loaded yet, reads will go to Consul until it is");
+        }
+    }
+
+    /**
+     * @return the in-memory key value cache, or null when {@code consul.kvCacheEnabled} is not set
+     */
+    public KeyValueCache getKeyValueCache() {
+        return kvCache;
+    }
+
+    /**
+     * @return the cache of objects converted by {@link #findAndConvert(Class, String)}, or null when
+     * {@code consul.conversionCacheEnabled} is false
+     */
+    public ConversionCache getConversionCache() {
+        return conversionCache;
     }
 
     private void writeDefaultProperties() {
@@ -124,41 +345,51 @@ public class Consul4Spring implements CheckService, DistributedLock, ConsulTempl
             return;
         }
 
-        KeyValueClient kvClient = getConsul().keyValueClient();
-
-        // only add the current values if they are not already there
-        Optional<String> currentValue = findInternal(consulProperties.getBaseKey() + "/config/current");
-        Optional<String> currentVersion = findInternal(consulProperties.getBaseKey() + "/config/current-version");
+        // only add the current values if they are not already there. A single listing reads both the configuration and
+        // its version
+        String currentKey = consulProperties.getBaseKey() + "/config/current";
+        List<Value> values = consulClient.read("kv.list", consul -> consul.keyValueClient().getValues(currentKey));
+        Optional<Value> currentValue = absent();
+        Optional<String> currentVersion = absent();
+        for (Value value : values == null ? Collections.<Value>emptyList() : values) {
+            if (value.getKey().equals(currentKey)) {
+                currentValue = Optional.of(value);
+            } else if (value.getKey().equals(currentKey + "-version")) {
+                currentVersion = fromNullable(text(value.getKey(), decodeValue(value)));
+            }
+        }
         String appConfigVersion = defaultProperties.getClass().getAnnotation(DefaultProperties.class).version();
 
-        kvClient.getValue(consulProperties.getBaseKey() + "/config/current", builder().blockSeconds(1, 60).build());
+        String defaultValue;
+        try {
+            defaultValue = mapper.writeValueAsString(defaultProperties);
+        } catch (JsonProcessingException e) {
+            log.fatal("unable to write default configuration to consul", e);
+            throw new IllegalStateException("unable to write default configuration to consul", e);
+        }
+
         if (!currentValue.isPresent()) {
-            try {
-                log.info("writing configuration to consul using default values: " + defaultProperties);
-                kvClient.putValue(consulProperties.getBaseKey() + "/config/current", mapper.writeValueAsString(defaultProperties));
-                kvClient.putValue(consulProperties.getBaseKey() + "/config/current-version", appConfigVersion);
-            } catch (JsonProcessingException e) {
-                log.fatal("unable to write default configuration to consul", e);
-                throw new IllegalStateException("unable to write default configuration to consul", e);
+            log.info("writing configuration to consul using default values: " + defaultProperties);
+            // a single transaction, the check-and-set makes sure another instance didn't write it in the meantime
+            if (!execute(asList(
+                    cas("/config/current", defaultValue, 0),
+                    set("/config/current-version", appConfigVersion)))) {
+                log.info("configuration was written to consul by another instance, no action taken");
             }
         } else {
             log.info("configuration already exists in consul");
-            try {
-                if (!currentVersion.isPresent() || !currentVersion.get().equals(appConfigVersion)) {
-                    String backupKey = consulProperties.getBaseKey() + "/config/backup-" + ISO_LOCAL_DATE_TIME.format(now());
-                    log.info("backing up current config to " + backupKey);
-                    kvClient.putValue(backupKey, currentValue.get());
-
-                    log.info("writing configuration to consul using default values: " + defaultProperties);
-                    kvClient.deleteKey(consulProperties.getBaseKey() + "/config/current");
-                    kvClient.putValue(consulProperties.getBaseKey() + "/config/current", mapper.writeValueAsString(defaultProperties));
-                    kvClient.putValue(consulProperties.getBaseKey() + "/config/current-version", appConfigVersion);
-                } else {
-                    log.info("no difference found between the current configuration version and the Consul configuration version, no action taken");
+            if (!currentVersion.isPresent() || !currentVersion.get().equals(appConfigVersion)) {
+                String backupKey = "/config/backup-" + ISO_LOCAL_DATE_TIME.format(now());
+                log.info("backing up current config to " + consulProperties.getBaseKey() + backupKey);
+                log.info("writing configuration to consul using default values: " + defaultProperties);
+                if (!execute(asList(
+                        set(backupKey, text(currentKey, decodeValue(currentValue.get()))),
+                        cas("/config/current", defaultValue, currentValue.get().getModifyIndex()),
+                        set("/config/current-version", appConfigVersion)))) {
+                    log.info("configuration was changed in consul by another instance, no action taken");
                 }
-            } catch (IOException e) {
-                log.error("unable to load current properties from " + consulProperties.getBaseKey() +
-                        "/config/current as " + defaultProperties.getClass().getName(), e);
+            } else {
+                log.info("no difference found between the current configuration version and the Consul configuration version, no action taken");
             }
         }
     }
@@ -178,15 +409,14 @@ public class Consul4Spring implements CheckService, DistributedLock, ConsulTempl
         return defaultPropertiesMap.values().iterator().next();
     }
 
-    private void registerMyself() throws NotRegisteredException, IOException {
-        AgentClient agentClient = getConsul().agentClient();
-
-        if (!agentClient.isRegistered(consulProperties.getServiceId())) {
+    private void registerHeartbeatIfMissing() {
+        if (!consulClient.execute("agent.services", consul -> consul.agentClient().isRegistered(consulProperties.getServiceId()))) {
             registerHeartbeat();
         }
+    }
 
+    private void writeAccessProperties() throws IOException {
         log.info("writing service access properties");
-        KeyValueClient kvClient = getConsul().keyValueClient();
         Map<String, String> accessProperties = new HashMap<>();
         String serverName = InetAddress.getLocalHost().getHostName();
         accessProperties.put("hostname", serverName);
@@ -198,12 +428,12 @@ public class Consul4Spring implements CheckService, DistributedLock, ConsulTempl
 
         // read current access values and add ourselves
         String accessKey = consulProperties.getServiceName() + "/access/" + serverName + ":" + port;
-        kvClient.putValue(accessKey, mapper.writeValueAsString(accessProperties));
+        String accessValue = mapper.writeValueAsString(accessProperties);
+        consulClient.run("kv.put", consul -> consul.keyValueClient().putValue(accessKey, accessValue));
     }
 
     private void registerHeartbeat() {
         log.info("registering heartbeat");
-        AgentClient agentClient = getConsul().agentClient();
         Registration registration = new Registration();
         registration.setPort(serverProperties.getPort());
         registration.setAddress(dnsResolver.readNonLoopbackLocalAddress());
@@ -213,7 +443,7 @@ public class Consul4Spring implements CheckService, DistributedLock, ConsulTempl
         Registration.Check check = new Registration.Check();
         check.setTtl(format("%ss", 2 * (consulProperties.getHeartbeatRate() == null ? DEFAULT_HEARTBEAT_RATE : consulProperties.getHeartbeatRate())));
         registration.setCheck(check);
-        agentClient.register(registration);
+        consulClient.run("agent.register", consul -> consul.agentClient().register(registration));
     }
 
     /**
@@ -223,9 +453,8 @@ public class Consul4Spring implements CheckService, DistributedLock, ConsulTempl
     @Override
     public void keepAlive() {
         try {
-            AgentClient agentClient = getConsul().agentClient();
             // the heartbeat is the service itself, not a check - that's why we "pass" it and not "check" it
-            agentClient.pass(toUniqueName("heartbeat"));
+            consulClient.run("agent.pass", consul -> consul.agentClient().pass(toUniqueName("heartbeat")));
             log.info("[check heartbeat]: PASS");
         } catch (NotRegisteredException e) {
             log.error("[check heartbeat]: FAIL " + e.getMessage());
@@ -235,46 +464,60 @@ public class Consul4Spring implements CheckService, DistributedLock, ConsulTempl
     }
 
     @Override
-    @Async
     public void pass(String checkName, long ttl) {
         pass(checkName, ttl, null);
     }
 
     @Override
-    @Async
     public void pass(String checkName, long ttl, String note) {
         check(checkName, ttl, PASS, note);
     }
 
     @Override
-    @Async
     public void fail(String checkName, long ttl) {
         fail(checkName, ttl, null);
     }
 
     @Override
-    @Async
     public void fail(String checkName, long ttl, String note) {
         check(checkName, ttl, FAIL, note);
     }
 
     private void check(String checkName, long ttl, State state, String note) {
-        try {
-            log.info("[check " + checkName + "]: " + state + (isEmpty(note) ? "" : " " + note));
-            AgentClient agentClient = getConsul().agentClient();
-            Check check = new Check();
-            check.setId(toUniqueName(checkName));
-            check.setName(consulProperties.getServiceName() + " " + checkName);
-            check.setServiceId(toUniqueName("heartbeat"));
-            check.setTtl(format("%ss", ttl));
-            agentClient.registerCheck(check);
-            // end of patch
+        checkDispatcher.report(checkName, ttl, state, note);
+    }
 
-            agentClient.check(toUniqueName(checkName), state, note);
-        } catch (Exception e) {
-            log.error("[check " + checkName + "]: FAIL " + e.getMessage());
-            log.fatal("can't change check" + checkName + " to state " + state, e);
-        }
+    @Override
+    public void register(String checkName, long ttl, Supplier<CheckResult> health) {
+        managedChecks.register(checkName, ttl, health);
+    }
+
+    @Override
+    public void register(String checkName, long ttl, long intervalMillis, long timeoutMillis, Supplier<CheckResult> health) {
+        managedChecks.register(checkName, ttl, intervalMillis, timeoutMillis, health);
+    }
+
+    @Override
+    public void unregister(String checkName) {
+        managedChecks.unregister(checkName);
+    }
+
+    @Override
+    public CheckResult getResult(String checkName) {
+        return managedChecks.getResult(checkName);
+    }
+
+    private void registerCheck(String checkName, long ttl) {
+        Check check = new Check();
+        check.setId(toUniqueName(checkName));
+        check.setName(consulProperties.getServiceName() + " " + checkName);
+        check.setServiceId(toUniqueName("heartbeat"));
+        check.setTtl(format("%ss", ttl));
+        consulClient.run("agent.registerCheck", consul -> consul.agentClient().registerCheck(check));
+    }
+
+    private void updateCheck(String checkName, State state, String note) throws NotRegisteredException {
+        consulClient.run("agent.check", consul -> consul.agentClient().check(toUniqueName(checkName), state, note));
     }
 
     @Override
@@ -290,26 +533,231 @@ public class Consul4Spring implements CheckService, DistributedLock, ConsulTempl
     @Override
     public <T> T findAndConvert(Class<T> clazz, String key) {
         String fullKey = consulProperties.getBaseKey() + key;
-        Optional<String> value = findInternal(fullKey);
-        if (value.isPresent()) {
+        return convert(clazz, fullKey, findEntry(fullKey).orNull());
+    }
+
+    @Override
+    public <T> ConsulRead<T> findAndConvert(Class<T> clazz, String key, ReadConsistency consistency) {
+        String fullKey = consulProperties.getBaseKey() + key;
+        ConsulRead<KeyValueCache.Entry> read = readEntry(fullKey, consistency);
+        return new ConsulRead<>(convert(clazz, fullKey, read.getValue()), read.getLastContact(), read.isKnownLeader());
+    }
+
+    private <T> T convert(Class<T> clazz, String fullKey, KeyValueCache.Entry entry) {
+        if (entry != null && entry.hasValue()) {
             try {
-                return mapper.readValue(value.get(), clazz);
+                if (conversionCache == null) {
+                    return parse(entry, clazz);
+                }
+
+                return conversionCache.convert(fullKey, clazz, entry);
             } catch (IOException e) {
                 log.info("unable to convert value read from " + fullKey + " in the consul k/v store", e);
                 return null;
             }
         } else {
-            log.info(fullKey + " not found in the consul k/v store");
+            if (log.isDebugEnabled()) {
+                log.debug(fullKey + " not found in the consul k/v store");
+            }
             return null;
         }
     }
 
+    private <T> T parse(KeyValueCache.Entry entry, Class<T> clazz) throws IOException {
+        if (entry.getCodec() == 0) {
+            return mapper.readValue(entry.getValue(), clazz);
+        }
+
+        return codecs.get(entry.getCodec()).decode(entry.getBytes(), clazz);
+    }
+
+    /**
+     * @return the value as text, a serialized object is rendered as JSON. Null when there's no value or the object
+     * can't be decoded
+     */
+    private String text(String fullKey, KeyValueCache.Entry entry) {
+        if (entry == null || entry.getCodec() == 0) {
+            return entry == null ? null : entry.getValue();
+        }
+
+        try {
+            return mapper.writeValueAsString(codecs.get(entry.getCodec()).decode(entry.getBytes(), Object.class));
+        } catch (IOException | IllegalStateException e) {
+            log.info("unable to render value read from " + fullKey + " in the consul k/v store as text", e);
+            return null;
+        }
+    }
+
+    @Override
+    public Map<String, String> findAll(String prefix) {
+        Map<String, String> values = new LinkedHashMap<>();
+        listEntries(prefix, (key, entry) -> values.put(key, text(consulProperties.getBaseKey() + key, entry)));
+        return values;
+    }
+
+    @Override
+    public <T> Map<String, T> findAllAndConvert(Class<T> clazz, String prefix) {
+        Map<String, T> values = new LinkedHashMap<>();
+        listEntries(prefix, (key, entry) -> values.put(key, convert(clazz, consulProperties.getBaseKey() + key, entry)));
+        return values;
+    }
+
+    @Override
+    public List<String> findKeys(String prefix) {
+        String fullPrefix = consulProperties.getBaseKey() + prefix;
+        if (kvCache != null && kvCache.isUsable()) {
+            return kvCache.subtree(fullPrefix).keySet().stream().map(this::toRelativeKey).collect(toList());
+        }
+
+        return list("kv.keys", fullPrefix, "keys", json -> {
+            List<String> keys = new ArrayList<>();
+            expect(json, START_ARRAY, fullPrefix);
+            while (json.nextToken() == VALUE_STRING) {
+                if (!ValueEncoding.isChunk(json.getText())) {
+                    keys.add(toRelativeKey(json.getText()));
+                }
+            }
+            return keys;
+        }, Collections.<String>emptyList());
+    }
+
+    /**
+     * hands every entry under a prefix to the consumer, by its relative key and ordered by key. The response of the
+     * recursive read is parsed as it streams in, the values are base64 decoded straight from the parser and the full
+     * response is never held in memory
+     */
+    private void listEntries(String prefix, BiConsumer<String, KeyValueCache.Entry> consumer) {
+        String fullPrefix = consulProperties.getBaseKey() + prefix;
+        if (kvCache != null && kvCache.isUsable()) {
+            kvCache.subtree(fullPrefix).forEach((key, entry) -> consumer.accept(toRelativeKey(key), entry));
+            return;
+        }
+
+        list("kv.list", fullPrefix, "recurse", json -> {
+            expect(json, START_ARRAY, fullPrefix);
+            while (json.nextToken() == START_OBJECT) {
+                String key = null;
+                byte[] value = null;
+                long flags = 0;
+                long modifyIndex = 0;
+                while (json.nextToken() == FIELD_NAME) {
+                    String field = json.getCurrentName();
+                    JsonToken token = json.nextToken();
+                    if ("Key".equals(field)) {
+                        key = json.getText();
+                    } else if ("Value".equals(field)) {
+                        value = token == VALUE_NULL ? null : json.getBinaryValue();
+                    } else if ("Flags".equals(field)) {
+                        flags = json.getLongValue();
+                    } else if ("ModifyIndex".equals(field)) {
+                        modifyIndex = json.getLongValue();
+                    } else {
+                        json.skipChildren();
+                    }
+                }
+                // the chunks of large values are read with their manifests
+                if (key != null && !ValueEncoding.isChunk(key)) {
+                    consumer.accept(toRelativeKey(key), KeyValueCache.Entry.decoded(decodeListed(key, value, flags), flags, modifyIndex));
+                }
+            }
+            return null;
+        }, null);
+    }
+
+    private byte[] decodeListed(String fullKey, byte[] value, long flags) {
+        return encoding.decode(value, flags, chunkPrefix -> readChunks(fullKey + chunkPrefix));
+    }
+
+    /**
+     * a listing parsed from a streaming JSON parser
+     */
+    @FunctionalInterface
+    private interface Listing<T> {
+        T parse(JsonParser json) throws IOException;
+    }
+
+    /**
+     * lists a prefix directly on the HTTP API, with the consul.readConsistency consistency
+     *
+     * @param mode  recurse for the keys and values, keys for the keys only
+     * @param empty the result when no key starts with the prefix
+     */
+    private <T> T list(String name, String fullPrefix, String mode, Listing<T> listing, T empty) {
+        ReadConsistency consistency = consulProperties.getReadConsistency();
+        try {
+            return consulClient.executeHttp(name, consulApi -> {
+                Response response = listRequest(consulApi, fullPrefix, mode, consistency);
+                if (consistency == ReadConsistency.STALE && isTooStale(response)) {
+                    response.close();
+                    response = listRequest(consulApi, fullPrefix, mode, ReadConsistency.DEFAULT);
+                }
+
+                try {
+                    if (response.getStatus() == 404) {
+                        return empty;
+                    }
+                    if (response.getStatus() != 200) {
+                        throw new IllegalStateException("listing " + fullPrefix + " failed with status " +
+                                response.getStatus() + ": " + response.readEntity(String.class));
+                    }
+
+                    try (JsonParser json = mapper.getFactory().createParser(response.readEntity(InputStream.class))) {
+                        return listing.parse(json);
+                    }
+                } finally {
+                    response.close();
+                }
+            });
+        } catch (IOException e) {
+            throw new IllegalStateException("unable to list " + fullPrefix + " from consul", e);
+        }
+    }
+
+    private static Response listRequest(WebTarget consulApi, String fullPrefix, String mode, ReadConsistency consistency) {
+        WebTarget target = consulApi.path("v1/kv/" + fullPrefix).queryParam(mode, "");
+        if (consistency.toQueryParameter() != null) {
+            target = target.queryParam(consistency.toQueryParameter(), "");
+        }
+        return target.request().get();
+    }
+
+    private boolean isTooStale(Response response) {
+        String lastContact = response.getHeaderString("X-Consul-LastContact");
+        return "false".equals(response.getHeaderString("X-Consul-KnownLeader")) ||
+                lastContact != null && Long.parseLong(lastContact) > consulProperties.getMaxStalenessMillis();
+    }
+
+    private static void expect(JsonParser json, JsonToken expected, String fullPrefix) throws IOException {
+        JsonToken token = json.nextToken();
+        if (token != expected) {
+            throw new IllegalStateException("unexpected listing of " + fullPrefix + ", expected " + expected + " but got " + token);
+        }
+    }
+
+    private String toRelativeKey(String fullKey) {
+        return fullKey.substring(Math.min(consulProperties.getBaseKey().length(), fullKey.length()));
+    }
+
     @Override
     public void delete(String key) {
         String fullKey = consulProperties.getBaseKey() + key;
-        KeyValueClient keyValueClient = getConsul().keyValueClient();
-        keyValueClient.deleteKeys(fullKey);
-        log.info("deleted " + fullKey);
+        consulClient.run("kv.delete", consul -> consul.keyValueClient().deleteKeys(fullKey));
+        if (kvCache != null) {
+            kvCache.removePrefix(fullKey);
+        }
+        if (conversionCache != null) {
+            conversionCache.invalidate(fullKey);
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("deleted " + fullKey);
+        }
+    }
+
+    @Override
+    public ConsulRead<String> find(String key, ReadConsistency consistency) {
+        String fullKey = consulProperties.getBaseKey() + key;
+        ConsulRead<KeyValueCache.Entry> read = readEntry(fullKey, consistency);
+        return new ConsulRead<>(text(fullKey, read.getValue()), read.getLastContact(), read.isKnownLeader());
     }
 
     @Override
@@ -319,7 +767,9 @@ public class Consul4Spring implements CheckService, DistributedLock, ConsulTempl
         if (value.isPresent()) {
             return value.get();
         } else {
-            log.info(fullKey + " not found in the consul k/v store");
+            if (log.isDebugEnabled()) {
+                log.debug(fullKey + " not found in the consul k/v store");
+            }
             return null;
         }
     }
@@ -327,56 +777,432 @@ public class Consul4Spring implements CheckService, DistributedLock, ConsulTempl
     @Override
     public void write(String key, String value) {
         String fullKey = consulProperties.getBaseKey() + key;
-        KeyValueClient kvClient = getConsul().keyValueClient();
-        kvClient.putValue(fullKey, value);
+        if (encoding.isEnabled()) {
+            writeEncoded(fullKey, encoding.encode(value));
+        } else {
+            consulClient.run("kv.put", consul -> consul.keyValueClient().putValue(fullKey, value));
+        }
+        if (kvCache != null) {
+            kvCache.put(fullKey, value);
+        }
+    }
+
+    @Override
+    public void write(String key, Object value) {
+        String fullKey = consulProperties.getBaseKey() + key;
+        byte[] bytes;
+        try {
+            bytes = writeCodec.encode(value);
+        } catch (IOException e) {
+            throw new IllegalStateException("unable to serialize the value of " + fullKey + " with " + writeCodec, e);
+        }
+
+        // JSON is text, it's written like any other text so that it stays readable by older versions and other tools
+        if (writeCodec.getId() == JacksonCodec.JSON) {
+            write(key, new String(bytes, UTF_8));
+            return;
+        }
+
+        writeEncoded(fullKey, encoding.encode(bytes, writeCodec.getId()));
+        if (kvCache != null) {
+            kvCache.put(fullKey, new KeyValueCache.Entry(bytes, writeCodec.getId(), 0));
+        }
+    }
+
+    @Override
+    public void writeAll(Map<String, String> values) {
+        List<KeyValueOperation> operations = values.entrySet().stream()
+                .map(entry -> set(entry.getKey(), entry.getValue()))
+                .collect(toList());
+        if (!execute(operations)) {
+            throw new IllegalStateException("writing " + values.keySet() + " to consul was rolled back");
+        }
+    }
+
+    @Override
+    public boolean execute(List<KeyValueOperation> operations) {
+        return execute(operations, true);
+    }
+
+    /**
+     * runs a list of operations like {@link #execute(List)}, writing the values as they are without compressing or
+     * chunking them. Used for the keys of the Consul recipes, which are read back and parsed raw
+     */
+    boolean executeRaw(List<KeyValueOperation> operations) {
+        return execute(operations, false);
+    }
+
+    private boolean execute(List<KeyValueOperation> operations, boolean encode) {
+        for (int from = 0; from < operations.size(); from += MAX_TRANSACTION_OPERATIONS) {
+            List<KeyValueOperation> chunk = operations.subList(from, Math.min(from + MAX_TRANSACTION_OPERATIONS, operations.size()));
+            if (!commit(chunk, encode)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private boolean commit(List<KeyValueOperation> operations, boolean encode) {
+        List<Map<String, Object>> payload = new ArrayList<>(operations.size());
+        // the chunks of large values are written before the transaction, which only writes their manifests
+        Map<String, String> chunked = new LinkedHashMap<>();
+        // a value that isn't chunked deletes the chunks of the value it replaces in the same transaction
+        List<Map<String, Object>> chunkDeletes = new ArrayList<>();
+        ValueEncoding valueEncoding = encode ? encoding : ValueEncoding.NONE;
+        for (KeyValueOperation operation : operations) {
+            String fullKey = consulProperties.getBaseKey() + operation.getKey();
+            Map<String, Object> kv = new LinkedHashMap<>();
+            kv.put("Verb", operation.getVerb().value());
+            kv.put("Key", fullKey);
+            if (operation.getValue() != null) {
+                ValueEncoding.Encoded encoded = valueEncoding.encode(operation.getValue());
+                if (encoded.getGeneration() != null) {
+                    chunked.put(fullKey, encoded.getGeneration());
+                    for (int i = 0; i < encoded.getChunks().size(); i++) {
+                        putRaw(ValueEncoding.chunkKey(fullKey, encoded.getGeneration(), i), encoded.getChunks().get(i), 0);
+                    }
+                } else if (valueEncoding.isEnabled()) {
+                    chunkDeletes.add(deleteChunksOperation(fullKey));
+                }
+                kv.put("Value", getEncoder().encodeToString(encoded.getValue()));
+                if (!encoded.isPlain()) {
+                    kv.put("Flags", encoded.getFlags());
+                }
+            }
+            if (operation.getVerb() == CAS || operation.getVerb() == DELETE_CAS || operation.getVerb() == CHECK_INDEX) {
+                kv.put("Index", operation.getIndex());
+            }
+
+            payload.add(txnOperation(kv));
+        }
+
+        // the chunk deletes that don't fit in the transaction run in another one right after it
+        int fitting = Math.min(MAX_TRANSACTION_OPERATIONS - payload.size(), chunkDeletes.size());
+        payload.addAll(chunkDeletes.subList(0, fitting));
+        List<Map<String, Object>> remainingDeletes = chunkDeletes.subList(fitting, chunkDeletes.size());
+
+        boolean committed = false;
+        try {
+            if (!transact(payload, operations)) {
+                return false;
+            }
+            committed = true;
+        } finally {
+            if (committed) {
+                chunked.forEach(this::deleteStaleChunks);
+                if (!remainingDeletes.isEmpty()) {
+                    try {
+                        transact(remainingDeletes, "delete of the chunks replaced by " + operations);
+                    } catch (RuntimeException e) {
+                        log.warn("unable to delete the chunks replaced by " + operations + ": " + e.getMessage());
+                    }
+                }
+            } else {
+                chunked.forEach(this::deleteChunks);
+            }
+        }
+
+        if (kvCache != null) {
+            for (KeyValueOperation operation : operations) {
+                String fullKey = consulProperties.getBaseKey() + operation.getKey();
+                switch (operation.getVerb()) {
+                    case SET:
+                    case CAS:
+                        kvCache.put(fullKey, operation.getValue());
+                        break;
+                    case DELETE:
+                    case DELETE_CAS:
+                        kvCache.remove(fullKey);
+                        break;
+                    case DELETE_TREE:
+                        kvCache.removePrefix(fullKey);
+                        break;
+                    default:
+                }
+            }
+        }
+
+        if (conversionCache != null) {
+            for (KeyValueOperation operation : operations) {
+                if (operation.getVerb() == DELETE_TREE) {
+                    conversionCache.invalidate(consulProperties.getBaseKey() + operation.getKey());
+                }
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * runs a transaction
+     *
+     * @param description describes the transaction in errors and logs
+     * @return false if the transaction was rolled back
+     */
+    private boolean transact(List<Map<String, Object>> payload, Object description) {
+        String body;
+        try {
+            body = mapper.writeValueAsString(payload);
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException("unable to serialize transaction " + description, e);
+        }
+
+        Response response = consulClient.executeHttp("kv.txn", consulApi -> consulApi.path("v1/txn").request().put(json(body)));
+        try {
+            if (response.getStatus() == 409) {
+                // the transaction was rolled back, the body lists the operations that failed
+                log.info("transaction " + description + " rolled back: " + response.readEntity(String.class));
+                return false;
+            }
+
+            if (response.getStatus() != 200) {
+                throw new IllegalStateException("transaction " + description + " failed with status " +
+                        response.getStatus() + ": " + response.readEntity(String.class));
+            }
+        } finally {
+            response.close();
+        }
+        return true;
+    }
+
+    private static Map<String, Object> txnOperation(Map<String, Object> kv) {
+        Map<String, Object> txnOperation = new HashMap<>();
+        txnOperation.put("KV", kv);
+        return txnOperation;
+    }
+
+    /**
+     * @return the transaction operation that deletes every generation of the chunks of a key
+     */
+    private static Map<String, Object> deleteChunksOperation(String fullKey) {
+        Map<String, Object> kv = new LinkedHashMap<>();
+        kv.put("Verb", DELETE_TREE.value());
+        kv.put("Key", fullKey + ValueEncoding.CHUNKS);
+        return txnOperation(kv);
     }
 
     private Optional<String> findInternal(String key) {
+        return fromNullable(text(key, findEntry(key).orNull()));
+    }
+
+    /**
+     * reads a value together with its ModifyIndex, from memory when the key value cache is usable
+     */
+    private Optional<KeyValueCache.Entry> findEntry(String key) {
+        return fromNullable(readEntry(key, consulProperties.getReadConsistency()).getValue());
+    }
+
+    /**
+     * reads a value together with its ModifyIndex, from memory when the key value cache is usable and was loaded with
+     * a consistency that's at least as strong as the requested one
+     */
+    private ConsulRead<KeyValueCache.Entry> readEntry(String key, ReadConsistency consistency) {
+        if (kvCache != null && consulProperties.getReadConsistency().satisfies(consistency) && kvCache.isUsable()) {
+            return new ConsulRead<>(kvCache.get(key), kvCache.getStalenessMillis(), true);
+        }
+
+        for (int attempt = 1; ; attempt++) {
+            try {
+                ConsulResponse<Optional<Value>> response = consulClient.read("kv.get", consul -> ConsulWatch.read(
+                        (options, callback) -> consul.keyValueClient().getValue(key, options, callback),
+                        consistency, consulProperties.getMaxStalenessMillis()));
+                Optional<Value> value = response.getResponse();
+                KeyValueCache.Entry entry = value != null && value.isPresent() ?
+                        decodeValue(value.get()) : null;
+                return new ConsulRead<>(entry, response.getLastContact(), response.isKnownLeader());
+            } catch (NullPointerException npe) {
+                return new ConsulRead<>(null, 0, true);
+            } catch (ValueEncoding.IncompleteChunksException e) {
+                // the value was rewritten while its chunks were read, the key is read again for the new manifest
+                if (attempt == 2) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /**
+     * decodes a value read from Consul, reading its chunks when it's a chunk manifest
+     */
+    private KeyValueCache.Entry decodeValue(Value value) {
+        return KeyValueCache.Entry.decoded(encoding.decode(value.getValue() == null ? null : getDecoder().decode(value.getValue()),
+                value.getFlags(), chunkPrefix -> readChunks(value.getKey() + chunkPrefix)), value.getFlags(), value.getModifyIndex());
+    }
+
+    private List<byte[]> readChunks(String fullPrefix) {
+        List<Value> chunks = consulClient.read("kv.list", consul -> consul.keyValueClient().getValues(fullPrefix));
+        return chunks == null ? Collections.<byte[]>emptyList() : chunks.stream()
+                .sorted(comparing(Value::getKey))
+                .map(chunk -> getDecoder().decode(chunk.getValue()))
+                .collect(toList());
+    }
+
+    /**
+     * writes an encoded value. While the encoding is enabled a value that fits in its key is written in one transaction
+     * with a delete of the chunks of the value it replaced, and a large value has its chunks written before its
+     * manifest
+     */
+    private void writeEncoded(String fullKey, ValueEncoding.Encoded encoded) {
+        if (encoded.getGeneration() == null) {
+            if (!encoding.isEnabled()) {
+                putRaw(fullKey, encoded.getValue(), encoded.getFlags());
+                return;
+            }
+
+            Map<String, Object> kv = new LinkedHashMap<>();
+            kv.put("Verb", SET.value());
+            kv.put("Key", fullKey);
+            kv.put("Value", getEncoder().encodeToString(encoded.getValue()));
+            kv.put("Flags", encoded.getFlags());
+            if (!transact(asList(txnOperation(kv), deleteChunksOperation(fullKey)), "set " + fullKey)) {
+                throw new IllegalStateException("writing " + fullKey + " to consul was rolled back");
+            }
+            return;
+        }
+
+        List<byte[]> chunks = encoded.getChunks();
         try {
-            KeyValueClient kvClient = getConsul().keyValueClient();
-            return kvClient.getValueAsString(key);
-        } catch (NullPointerException npe) {
-            return absent();
+            for (int i = 0; i < chunks.size(); i++) {
+                putRaw(ValueEncoding.chunkKey(fullKey, encoded.getGeneration(), i), chunks.get(i), 0);
+            }
+            putRaw(fullKey, encoded.getValue(), encoded.getFlags());
+        } catch (RuntimeException e) {
+            deleteChunks(fullKey, encoded.getGeneration());
+            throw e;
+        }
+        deleteStaleChunks(fullKey, encoded.getGeneration());
+    }
+
+    private void putRaw(String fullKey, byte[] value, long flags) {
+        Response response = consulClient.executeHttp("kv.put", consulApi -> consulApi.path("v1/kv/" + fullKey)
+                .queryParam("flags", flags).request().put(entity(value, APPLICATION_OCTET_STREAM_TYPE)));
+        try {
+            if (response.getStatus() != 200 || !Boolean.parseBoolean(response.readEntity(String.class).trim())) {
+                throw new IllegalStateException("unable to write " + fullKey + ", status " + response.getStatus());
+            }
+        } finally {
+            response.close();
         }
     }
 
+    /**
+     * deletes the chunks of a generation, nothing when the value isn't chunked
+     */
+    private void deleteChunks(String fullKey, String generation) {
+        if (generation != null) {
+            try {
+                consulClient.run("kv.delete", consul -> consul.keyValueClient().deleteKeys(fullKey + ValueEncoding.CHUNKS + generation + "/"));
+            } catch (RuntimeException e) {
+                log.warn("unable to delete the chunks of " + fullKey + " generation " + generation + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * deletes the chunks of the values a chunked value replaced, once its manifest was written. The chunks are listed
+     * to find their generations, since the ones of the new value are kept
+     *
+     * @param generation the generation of the chunks of the new value
+     */
+    private void deleteStaleChunks(String fullKey, String generation) {
+        String chunksPrefix = fullKey + ValueEncoding.CHUNKS;
+        List<String> keys = list("kv.keys", chunksPrefix, "keys", json -> {
+            List<String> found = new ArrayList<>();
+            expect(json, START_ARRAY, chunksPrefix);
+            while (json.nextToken() == VALUE_STRING) {
+                found.add(json.getText());
+            }
+            return found;
+        }, Collections.<String>emptyList());
+        keys.stream()
+                .map(key -> key.substring(chunksPrefix.length(), key.indexOf('/', chunksPrefix.length())))
+                .filter(stale -> !stale.equals(generation))
+                .distinct()
+                .forEach(stale -> deleteChunks(fullKey, stale));
+    }
+
     @Override
     public String acquire() {
-        SessionClient sessionClient = getConsul().sessionClient();
-        String sessionId = sessionClient.createSession("{\"ttl\": \"3600s\"}").get();
-        KeyValueClient kvClient = getConsul().keyValueClient();
-        if (kvClient.acquireLock(consulProperties.getBaseKey() + "/lock", sessionId)) {
-            log.info("lock " + sessionId + " acquired");
-            return sessionId;
+        HeldLock lock;
+        try {
+            lock = locks.acquire("lock", consulProperties.getBaseKey() + "/lock", 0, SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
         }
 
-        log.warn("could not acquire lock");
-        return null;
+        if (lock == null) {
+            log.warn("could not acquire lock");
+            return null;
+        }
+
+        if (log.isDebugEnabled()) {
+            log.debug("lock " + lock.getId() + " acquired");
+        }
+        return lock.getId();
     }
 
     @Override
     public void release(String lockId) {
-        log.info("releasing lock " + lockId);
-        KeyValueClient kvClient = getConsul().keyValueClient();
-        kvClient.releaseLock(consulProperties.getBaseKey() + "/lock", lockId);
-        SessionClient sessionClient = getConsul().sessionClient();
-        sessionClient.destroySession(lockId);
+        if (log.isDebugEnabled()) {
+            log.debug("releasing lock " + lockId);
+        }
+        locks.release(lockId);
     }
 
     @Override
-    public Set<CatalogService> resolveByName(String name) {
-        CatalogClient catalogClient = getConsul().catalogClient();
+    public HeldLock acquire(String name, long timeout, TimeUnit unit) throws InterruptedException {
+        return locks.acquire(name, consulProperties.getBaseKey() + "/locks/" + name, timeout, unit);
+    }
+
+    @Override
+    public void join(String name, LeadershipListener listener) {
+        elections.join(name, consulProperties.getBaseKey() + "/leader/" + name, listener);
+    }
+
+    @Override
+    public void leave(String name) {
+        elections.leave(name);
+    }
 
-        List<CatalogService> catalogServices = catalogClient.getService(name).getResponse();
-        Set<CatalogService> result = new TreeSet<>((o1, o2) -> o1.getServiceName().compareToIgnoreCase(o2.getServiceName()));
-        result.addAll(catalogServices);
+    @Override
+    public boolean isLeader(String name) {
+        return elections.isLeader(name);
+    }
 
-        return result;
+    @Override
+    public String getLeader(String name) {
+        return elections.getLeader(name);
+    }
+
+    @Override
+    public HeldLock acquire(String name, int limit, long timeout, TimeUnit unit) throws InterruptedException {
+        return semaphores.acquire(name, limit, timeout, unit);
+    }
+
+    @Override
+    public Set<CatalogService> resolveByName(String name) {
+        return catalog.getInstances(name);
+    }
+
+    @Override
+    public ConsulRead<Set<CatalogService>> resolveByName(String name, ReadConsistency consistency) {
+        return catalog.getInstances(name, consistency);
     }
 
     @Override
     public String resolveByNameAsClusterDefinition(String name) {
-        Set<CatalogService> services = resolveByName(name);
-        return services.stream().map(cs -> cs.getServiceAddress() + ":" + cs.getServicePort()).collect(joining(","));
+        return catalog.getClusterDefinition(name);
+    }
+
+    @Override
+    public void addChangeListener(String name, ServiceChangeListener listener) {
+        catalog.addChangeListener(name, listener);
+    }
+
+    @Override
+    public void removeChangeListener(String name, ServiceChangeListener listener) {
+        catalog.removeChangeListener(name, listener);
     }
 }
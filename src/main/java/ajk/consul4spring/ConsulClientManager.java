@@ -0,0 +1,670 @@
+package ajk.consul4spring;
+
+import ajk.consul4spring.config.ConsulProperties;
+import com.orbitz.consul.Consul;
+import com.orbitz.consul.async.ConsulResponseCallback;
+import com.orbitz.consul.model.ConsulResponse;
+import org.apache.commons.logging.Log;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Profile;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.ws.rs.ProcessingException;
+import javax.ws.rs.client.Client;
+import javax.ws.rs.client.WebTarget;
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+
+import static java.lang.Integer.parseInt;
+import static java.util.Arrays.asList;
+import static java.util.Collections.unmodifiableList;
+import static java.util.Comparator.comparing;
+import static java.util.concurrent.Executors.newSingleThreadScheduledExecutor;
+import static java.util.concurrent.TimeUnit.MICROSECONDS;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static javax.ws.rs.client.ClientBuilder.newClient;
+import static org.apache.commons.logging.LogFactory.getLog;
+import static org.springframework.util.StringUtils.isEmpty;
+
+/**
+ * owns the shared Consul clients, one for each of the configured endpoints ({@code consul.hostname:consul.httpPort}
+ * and {@code consul.endpoints}). Consul's liveness is probed on a background thread instead of in front of every
+ * operation, and a circuit breaker makes operations fail fast while Consul is unreachable instead of having each of
+ * them wait for its own timeout.
+ * <p>
+ * Operations go to the endpoint with the lowest observed latency and error rate. An endpoint that fails to answer is
+ * skipped for {@code consul.circuitBreakerOpenMillis}. Reads are retried on the next endpoint right away, other
+ * operations only when no connection to the endpoint could be opened, since they may have been applied.
+ * Agent operations (service and check registration) always go to the first endpoint, the local agent. With
+ * {@code consul.hedgedReads} a {@link #read(String, ConsulCallback) read} that takes longer than its endpoint's 95th
+ * percentile is sent to the next endpoint as well, and the first answer wins.
+ * <p>
+ * The breaker opens after {@code consul.circuitBreakerThreshold} consecutive failures (of operations or probes). While
+ * it's open operations fail immediately with an {@link IllegalStateException}. After
+ * {@code consul.circuitBreakerOpenMillis} operations are let through again - the first success closes the breaker, the
+ * first failure opens it again. A successful probe closes the breaker right away.
+ * <p>
+ * Calls go over one of two {@link ConsulTransport transports} with persistent connections: blocking queries over the
+ * long-poll one, with {@code consul.httpLongPollReadTimeoutMillis} and {@code consul.httpLongPollMaxConnections}, and
+ * every other call over the requests one, with {@code consul.httpReadTimeoutMillis} and
+ * {@code consul.httpMaxConnections}. Their calls in flight are published as the transport.* gauges.
+ */
+@Component
+@Profile("consul")
+public class ConsulClientManager {
+    private enum BreakerState {CLOSED, OPEN, HALF_OPEN}
+
+    /**
+     * how an operation may be retried and whether it's sampled for the endpoint's rank: a call that reached an
+     * endpoint isn't repeated since it may have changed something, reads are repeated on any transport failure, and
+     * blocking queries - whose latency is mostly their wait time - aren't sampled
+     */
+    private enum Kind {CALL, READ, WATCH}
+
+    /**
+     * an operation on the Consul client that returns a result
+     */
+    @FunctionalInterface
+    public interface ConsulCallback<T, E extends Exception> {
+        T doWithConsul(Consul consul) throws E;
+    }
+
+    /**
+     * an operation on the Consul client without a result
+     */
+    @FunctionalInterface
+    public interface ConsulAction<E extends Exception> {
+        void doWithConsul(Consul consul) throws E;
+    }
+
+    /**
+     * an operation on the Consul HTTP API that the orbitz client doesn't cover
+     */
+    @FunctionalInterface
+    public interface HttpCallback<T, E extends Exception> {
+        T doWithTarget(WebTarget consulApi) throws E;
+    }
+
+    @FunctionalInterface
+    private interface EndpointCallback<T, E extends Exception> {
+        T doWithEndpoint(ConsulEndpoint endpoint) throws E;
+    }
+
+    @FunctionalInterface
+    private interface Attempt<T, E extends Exception> {
+        T run() throws E;
+    }
+
+    /**
+     * a read running on a hedging thread
+     */
+    private static class HedgedRead<T> {
+        private final CompletableFuture<T> result = new CompletableFuture<>();
+        private Future<?> task;
+
+        void cancel() {
+            task.cancel(true);
+        }
+    }
+
+
+    private Log log = getLog(getClass());
+
+    @Autowired
+    private ConsulProperties consulProperties;
+
+    @Autowired
+    private ConsulMetrics metrics;
+
+    private List<ConsulEndpoint> endpoints;
+
+    private Client httpClient;
+    private ConsulTransport requests;
+    private ConsulTransport longPoll;
+
+    private volatile BreakerState state = BreakerState.CLOSED;
+    private volatile long openedAt;
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+    private final LongAdder hedged = new LongAdder();
+
+    private ScheduledExecutorService prober;
+    private ExecutorService hedger;
+
+    @PostConstruct
+    private void start() {
+        endpoints = parseEndpoints();
+        requests = new ConsulTransport("requests", consulProperties.getHttpConnectTimeoutMillis(),
+                consulProperties.getHttpReadTimeoutMillis(), consulProperties.getHttpMaxConnections(), metrics);
+        longPoll = new ConsulTransport("longPoll", consulProperties.getHttpConnectTimeoutMillis(),
+                consulProperties.getHttpLongPollReadTimeoutMillis(), consulProperties.getHttpLongPollMaxConnections(), metrics);
+        long longestWaitMillis = SECONDS.toMillis(Math.max(consulProperties.getKvCacheWaitSeconds(), consulProperties.getCatalogWaitSeconds()));
+        if (longestWaitMillis + longestWaitMillis / 16 >= consulProperties.getHttpLongPollReadTimeoutMillis()) {
+            log.warn("blocking queries wait up to " + longestWaitMillis + "ms, more than consul.httpLongPollReadTimeoutMillis (" +
+                    consulProperties.getHttpLongPollReadTimeoutMillis() + "ms), they'll time out instead of returning");
+        }
+
+        httpClient = newClient();
+        try {
+            requests.call(() -> client(endpoints.get(0)));
+        } catch (RuntimeException e) {
+            // the probe will keep trying to create the client, until then operations fail fast
+            log.error("unable to connect to Consul at " + endpoints.get(0), e);
+            onFailure(e);
+            openedAt = System.currentTimeMillis();
+            state = BreakerState.OPEN;
+        }
+
+        prober = newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "consul-liveness-probe");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // a hedged read takes a thread for each endpoint it's sent to, reads beyond the pool aren't hedged
+        hedger = new ThreadPoolExecutor(0, consulProperties.getHttpMaxConnections(), 60, SECONDS, new SynchronousQueue<>(), r -> {
+            Thread thread = new Thread(r, "consul-hedged-read");
+            thread.setDaemon(true);
+            return thread;
+        });
+        int interval = consulProperties.getProbeInterval();
+        metrics.gauge("breaker.open", () -> state == BreakerState.CLOSED ? 0 : 1);
+        metrics.gauge("breaker.consecutiveFailures", consecutiveFailures::get);
+        metrics.gauge("endpoints.available", () -> endpoints.stream().filter(endpoint -> !endpoint.isDown()).count());
+        metrics.gauge("reads.hedged", hedged::sum);
+        prober.scheduleWithFixedDelay(this::probe, interval, interval, SECONDS);
+    }
+
+    @PreDestroy
+    private void stop() {
+        prober.shutdownNow();
+        hedger.shutdownNow();
+        httpClient.close();
+        requests.close();
+        longPoll.close();
+    }
+
+    /**
+     * @return the Consul client of the best ranked endpoint
+     * @throws IllegalStateException when the circuit breaker is open
+     */
+    public Consul getConsul() {
+        checkBreaker();
+        return client(ranked("consul").get(0));
+    }
+
+    /**
+     * runs an operation with the shared client and records its outcome in the circuit breaker. The operation is timed
+     * under the name "consul", prefer {@link #execute(String, ConsulCallback)}
+     *
+     * @param operation the operation to run
+     * @param <T>       the type of the operation result
+     * @param <E>       the type of checked exception the operation throws
+     * @return the result of the operation
+     * @throws IllegalStateException when the circuit breaker is open
+     */
+    public <T, E extends Exception> T execute(ConsulCallback<T, E> operation) throws E {
+        return execute("consul", operation);
+    }
+
+    /**
+     * runs an operation with the shared client, records its outcome in the circuit breaker and times it in the
+     * {@link ConsulMetrics}. When no connection to an endpoint can be opened the operation is retried on the next one.
+     * An operation that reached an endpoint isn't repeated, even when its response timed out
+     *
+     * @param name      the name the operation is timed under, e.g. kv.get
+     * @param operation the operation to run
+     * @param <T>       the type of the operation result
+     * @param <E>       the type of checked exception the operation throws
+     * @return the result of the operation
+     * @throws IllegalStateException when the circuit breaker is open
+     */
+    public <T, E extends Exception> T execute(String name, ConsulCallback<T, E> operation) throws E {
+        return guarded(name, () -> failover(name, ranked(name), Kind.CALL, endpoint -> requests.call(() -> operation.doWithConsul(client(endpoint)))));
+    }
+
+    /**
+     * like {@link #execute(String, ConsulCallback)} for a blocking query, a call that waits on Consul for a change. It
+     * goes over the long-poll connections, with their longer read timeout, and doesn't hold up the other calls
+     *
+     * @param name      the name the query is timed under, e.g. kv.watch
+     * @param operation the blocking query to run
+     * @param <T>       the type of the query result
+     * @param <E>       the type of checked exception the query throws
+     * @return the result of the query
+     * @throws IllegalStateException when the circuit breaker is open
+     */
+    public <T, E extends Exception> T watch(String name, ConsulCallback<T, E> operation) throws E {
+        return guarded(name, () -> failover(name, ranked(name), Kind.WATCH, endpoint -> longPoll.call(() -> operation.doWithConsul(client(endpoint)))));
+    }
+
+    /**
+     * like {@link #execute(String, ConsulCallback)} for operations that only read. With {@code consul.hedgedReads} and
+     * more than one endpoint, a read that takes longer than the 95th percentile of its endpoint is sent to the next
+     * endpoint as well, and the first answer is returned
+     *
+     * @param name      the name the operation is timed under, e.g. kv.get
+     * @param operation the read to run
+     * @param <T>       the type of the operation result
+     * @param <E>       the type of checked exception the operation throws
+     * @return the result of the operation
+     * @throws IllegalStateException when the circuit breaker is open
+     */
+    public <T, E extends Exception> T read(String name, ConsulCallback<T, E> operation) throws E {
+        return guarded(name, () -> hedge(name, ranked(name), endpoint -> requests.call(() -> operation.doWithConsul(client(endpoint)))));
+    }
+
+    /**
+     * runs an operation directly on the Consul HTTP API and records its outcome in the circuit breaker
+     *
+     * @param operation the operation to run, it receives a target pointing at the root of the Consul HTTP API
+     * @param <T>       the type of the operation result
+     * @param <E>       the type of checked exception the operation throws
+     * @return the result of the operation
+     * @throws IllegalStateException when the circuit breaker is open
+     */
+    public <T, E extends Exception> T executeHttp(HttpCallback<T, E> operation) throws E {
+        return executeHttp("consul", operation);
+    }
+
+    /**
+     * runs an operation directly on the Consul HTTP API, records its outcome in the circuit breaker and times it in
+     * the {@link ConsulMetrics}. Like {@link #execute(String, ConsulCallback)} it's retried on the next endpoint only
+     * when no connection could be opened
+     *
+     * @param name      the name the operation is timed under, e.g. kv.txn
+     * @param operation the operation to run, it receives a target pointing at the root of the Consul HTTP API
+     * @param <T>       the type of the operation result
+     * @param <E>       the type of checked exception the operation throws
+     * @return the result of the operation
+     * @throws IllegalStateException when the circuit breaker is open
+     */
+    public <T, E extends Exception> T executeHttp(String name, HttpCallback<T, E> operation) throws E {
+        return guarded(name, () -> failover(name, ranked(name), Kind.CALL, endpoint -> requests.call(() -> operation.doWithTarget(httpClient.target(endpoint.getUrl())))));
+    }
+
+    /**
+     * runs an operation without a result with the shared client and records its outcome in the circuit breaker
+     *
+     * @param operation the operation to run
+     * @param <E>       the type of checked exception the operation throws
+     * @throws IllegalStateException when the circuit breaker is open
+     */
+    public <E extends Exception> void run(ConsulAction<E> operation) throws E {
+        run("consul", operation);
+    }
+
+    /**
+     * runs an operation without a result with the shared client, records its outcome in the circuit breaker and times
+     * it in the {@link ConsulMetrics}
+     *
+     * @param name      the name the operation is timed under, e.g. kv.put
+     * @param operation the operation to run
+     * @param <E>       the type of checked exception the operation throws
+     * @throws IllegalStateException when the circuit breaker is open
+     */
+    public <E extends Exception> void run(String name, ConsulAction<E> operation) throws E {
+        execute(name, consul -> {
+            operation.doWithConsul(consul);
+            return null;
+        });
+    }
+
+    /**
+     * runs a blocking query over the long-poll connections and times its responses in the {@link ConsulMetrics}. The
+     * latency of a blocking query includes its wait time, so these timers are mostly useful for their counts and errors
+     */
+    <T> ConsulWatch.Query<T> timed(String name, ConsulWatch.Query<T> query) {
+        ConsulMetrics.Timer timer = metrics.timer(name);
+        ConsulWatch.Query<T> pooled = longPoll.query(query);
+        return (options, callback) -> {
+            long started = timer.start();
+            try {
+                pooled.run(options, new ConsulResponseCallback<T>() {
+                    @Override
+                    public void onComplete(ConsulResponse<T> response) {
+                        timer.stop(started, false);
+                        callback.onComplete(response);
+                    }
+
+                    @Override
+                    public void onFailure(Throwable throwable) {
+                        timer.stop(started, true);
+                        callback.onFailure(throwable);
+                    }
+                });
+            } catch (RuntimeException e) {
+                timer.stop(started, true);
+                throw e;
+            }
+        };
+    }
+
+    /**
+     * @return the metrics of the Consul and DNS operations
+     */
+    public ConsulMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @return true when the circuit breaker is closed and operations go through to Consul
+     */
+    public boolean isAvailable() {
+        return state == BreakerState.CLOSED;
+    }
+
+    private void checkBreaker() {
+        if (state == BreakerState.OPEN) {
+            if (System.currentTimeMillis() - openedAt < consulProperties.getCircuitBreakerOpenMillis()) {
+                throw new IllegalStateException("Consul at " + endpoints + " is unreachable");
+            }
+
+            state = BreakerState.HALF_OPEN;
+        }
+    }
+
+    /**
+     * checks the breaker, times the operation and records its outcome in the breaker
+     */
+    private <T, E extends Exception> T guarded(String name, Attempt<T, E> operation) throws E {
+        checkBreaker();
+        ConsulMetrics.Timer timer = metrics.timer(name);
+        long started = timer.start();
+        boolean failed = true;
+        try {
+            T result = operation.run();
+            onSuccess();
+            failed = false;
+            return result;
+        } catch (ProcessingException e) {
+            // transport level failures - no endpoint could be reached or answered in time
+            onFailure(e);
+            throw e;
+        } finally {
+            timer.stop(started, failed);
+        }
+    }
+
+    /**
+     * runs the operation on the first endpoint, and on the next one as soon as an endpoint can't be reached. A call
+     * only moves on when no connection could be opened, a read or a blocking query on any transport failure
+     */
+    private <T, E extends Exception> T failover(String name, List<ConsulEndpoint> candidates, Kind kind, EndpointCallback<T, E> operation) throws E {
+        for (int i = 0; ; i++) {
+            ConsulEndpoint endpoint = candidates.get(i);
+            try {
+                return call(endpoint, kind, operation);
+            } catch (ProcessingException e) {
+                if (i + 1 == candidates.size() || kind == Kind.CALL && !isConnectFailure(e)) {
+                    throw e;
+                }
+
+                metrics.timer(name).retry();
+                if (log.isDebugEnabled()) {
+                    log.debug(name + " failed on " + endpoint + ", failing over to " + candidates.get(i + 1) + ": " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * runs the read on the first endpoint and, when it doesn't answer within its 95th percentile, on the second one as
+     * well. Without enough samples to know the percentile, or while every hedging thread is busy, the read only fails
+     * over
+     */
+    private <T, E extends Exception> T hedge(String name, List<ConsulEndpoint> candidates, EndpointCallback<T, E> operation) throws E {
+        ConsulEndpoint first = candidates.get(0);
+        ConsulMetrics.Timer timer = first.getTimer();
+        if (!consulProperties.isHedgedReads() || candidates.size() < 2 || timer.getCount() < 100) {
+            return failover(name, candidates, Kind.READ, operation);
+        }
+
+        HedgedRead<T> primary = submit(first, operation);
+        if (primary == null) {
+            return failover(name, candidates, Kind.READ, operation);
+        }
+
+        long delayMicros = Math.max(timer.percentile(0.95), MILLISECONDS.toMicros(consulProperties.getHedgeMinDelayMillis()));
+        HedgedRead<T> backup = null;
+        try {
+            try {
+                return primary.result.get(delayMicros, MICROSECONDS);
+            } catch (TimeoutException e) {
+                backup = submit(candidates.get(1), operation);
+            }
+
+            if (backup == null) {
+                return primary.result.get();
+            }
+
+            hedged.increment();
+            if (log.isDebugEnabled()) {
+                log.debug(name + " took more than " + delayMicros + "us on " + first + ", hedging on " + candidates.get(1));
+            }
+            CompletableFuture<T> winner = new CompletableFuture<>();
+            AtomicInteger pending = new AtomicInteger(2);
+            BiConsumer<T, Throwable> complete = (result, failure) -> {
+                if (failure == null) {
+                    winner.complete(result);
+                } else if (pending.decrementAndGet() == 0) {
+                    winner.completeExceptionally(failure);
+                }
+            };
+            primary.result.whenComplete(complete);
+            backup.result.whenComplete(complete);
+            return winner.get();
+        } catch (ExecutionException e) {
+            if (backup != null || !(e.getCause() instanceof ProcessingException)) {
+                return rethrow(e);
+            }
+
+            // the first endpoint failed and there's no hedge, plain failover to the others
+            metrics.timer(name).retry();
+            return failover(name, candidates.subList(1, candidates.size()), Kind.READ, operation);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted while reading from Consul", e);
+        } finally {
+            // the read that lost, or both of them when the caller was interrupted
+            primary.cancel();
+            if (backup != null) {
+                backup.cancel();
+            }
+        }
+    }
+
+    /**
+     * @return the read running on a hedging thread, or null when every hedging thread is busy
+     */
+    private <T, E extends Exception> HedgedRead<T> submit(ConsulEndpoint endpoint, EndpointCallback<T, E> operation) {
+        HedgedRead<T> read = new HedgedRead<>();
+        try {
+            read.task = hedger.submit(() -> {
+                try {
+                    read.result.complete(call(endpoint, Kind.READ, operation));
+                } catch (Throwable t) {
+                    read.result.completeExceptionally(t);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            return null;
+        }
+        return read;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T, E extends Exception> T rethrow(ExecutionException e) throws E {
+        Throwable cause = e.getCause();
+        if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+        }
+        if (cause instanceof Error) {
+            throw (Error) cause;
+        }
+        throw (E) cause;
+    }
+
+    /**
+     * runs the operation on one endpoint and records the outcome in the endpoint's rank. The latency of a blocking
+     * query isn't recorded, it would rank the endpoint by the query's wait time and push up the hedging percentile
+     */
+    private <T, E extends Exception> T call(ConsulEndpoint endpoint, Kind kind, EndpointCallback<T, E> operation) throws E {
+        if (kind == Kind.WATCH) {
+            try {
+                return operation.doWithEndpoint(endpoint);
+            } catch (ProcessingException e) {
+                endpoint.failed(consulProperties.getCircuitBreakerOpenMillis());
+                throw e;
+            }
+        }
+
+        ConsulMetrics.Timer timer = endpoint.getTimer();
+        long started = timer.start();
+        boolean failed = true;
+        try {
+            T result = operation.doWithEndpoint(endpoint);
+            endpoint.succeeded(System.nanoTime() - started);
+            failed = false;
+            return result;
+        } catch (ProcessingException e) {
+            // a hedged read that lost is interrupted, that isn't the endpoint's failure
+            if (!Thread.currentThread().isInterrupted()) {
+                endpoint.failed(consulProperties.getCircuitBreakerOpenMillis());
+            }
+            throw e;
+        } finally {
+            timer.stop(started, failed);
+        }
+    }
+
+    /**
+     * @return true when the failure happened before the request was sent: the endpoint's hostname couldn't be resolved
+     * or no connection to it could be opened
+     */
+    private static boolean isConnectFailure(Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof ConnectException || cause instanceof UnknownHostException || cause instanceof NoRouteToHostException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the client of an endpoint
+     * @throws ProcessingException when the client can't be created, e.g. because the endpoint is unreachable
+     */
+    private Consul client(ConsulEndpoint endpoint) {
+        try {
+            return endpoint.getConsul();
+        } catch (ProcessingException e) {
+            throw e;
+        } catch (RuntimeException e) {
+            throw new ProcessingException("unable to connect to Consul at " + endpoint, e);
+        }
+    }
+
+    /**
+     * @return the endpoints an operation may go to, best first. Agent operations only go to the local agent, and
+     * endpoints that failed recently come last
+     */
+    private List<ConsulEndpoint> ranked(String name) {
+        if (endpoints.size() == 1 || name.startsWith("agent.")) {
+            return endpoints.subList(0, 1);
+        }
+
+        List<ConsulEndpoint> ranked = new ArrayList<>(endpoints);
+        ranked.sort(comparing(ConsulEndpoint::isDown).thenComparingDouble(ConsulEndpoint::score));
+        return ranked;
+    }
+
+    private List<ConsulEndpoint> parseEndpoints() {
+        Set<String> addresses = new LinkedHashSet<>();
+        addresses.add(consulProperties.getHostname() + ":" + consulProperties.getHttpPort());
+        if (consulProperties.getEndpoints() != null) {
+            addresses.addAll(asList(consulProperties.getEndpoints()));
+        }
+
+        List<ConsulEndpoint> parsed = new ArrayList<>();
+        for (String address : addresses) {
+            int colon = address.lastIndexOf(':');
+            if (colon <= 0) {
+                throw new IllegalStateException("invalid Consul endpoint " + address + ", expected host:port");
+            }
+            try {
+                parsed.add(new ConsulEndpoint(address.substring(0, colon).trim(), parseInt(address.substring(colon + 1).trim()), metrics));
+            } catch (NumberFormatException e) {
+                throw new IllegalStateException("invalid Consul endpoint " + address + ", expected host:port", e);
+            }
+        }
+        return unmodifiableList(parsed);
+    }
+
+    private void probe() {
+        RuntimeException failure = null;
+        for (ConsulEndpoint endpoint : endpoints) {
+            long started = System.nanoTime();
+            try {
+                if (isEmpty(requests.call(() -> client(endpoint).statusClient().getLeader()))) {
+                    throw new IllegalStateException("Consul has no leader");
+                }
+                endpoint.succeeded(System.nanoTime() - started);
+            } catch (RuntimeException e) {
+                failure = e;
+                // the client is kept: a broken connection isn't reused, and every new connection resolves the hostname
+                // again, so a hostname that hides multiple Consul servers still reaches a live one
+                endpoint.failed(consulProperties.getCircuitBreakerOpenMillis());
+                log.warn("Consul at " + endpoint + " is unreachable: " + e.getMessage());
+            }
+        }
+
+        if (failure == null || endpoints.stream().anyMatch(endpoint -> !endpoint.isDown())) {
+            if (state != BreakerState.CLOSED) {
+                log.info("Consul connection restored");
+            }
+            onSuccess();
+        } else {
+            onFailure(failure);
+        }
+    }
+
+    private void onSuccess() {
+        if (state != BreakerState.CLOSED) {
+            state = BreakerState.CLOSED;
+        }
+        if (consecutiveFailures.get() != 0) {
+            consecutiveFailures.set(0);
+        }
+    }
+
+    private void onFailure(RuntimeException e) {
+        int failures = consecutiveFailures.incrementAndGet();
+        if (state == BreakerState.HALF_OPEN || failures >= consulProperties.getCircuitBreakerThreshold()) {
+            if (state != BreakerState.OPEN) {
+                log.warn("couldn't reach Consul after " + failures + " attempts, failing fast for " +
+                        consulProperties.getCircuitBreakerOpenMillis() + "ms: " + e.getMessage());
+            }
+            openedAt = System.currentTimeMillis();
+            state = BreakerState.OPEN;
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package ajk.consul4spring;
+
+import com.orbitz.consul.Consul;
+
+/**
+ * one Consul agent or server the library can talk to, with what was observed about it: a moving average of its latency
+ * and error rate, a latency histogram for hedging, and whether it's considered down after a transport failure
+ */
+class ConsulEndpoint {
+    private static final double ALPHA = 0.2;
+
+    private final String host;
+    private final int port;
+    private final ConsulMetrics.Timer timer;
+
+    private volatile Consul consul;
+    private volatile long downUntil;
+
+    // guarded by this
+    private double latencyMicros;
+    private double errorRate;
+
+    ConsulEndpoint(String host, int port, ConsulMetrics metrics) {
+        this.host = host;
+        this.port = port;
+        this.timer = metrics.timer("endpoint." + host + ":" + port);
+    }
+
+    String getHost() {
+        return host;
+    }
+
+    int getPort() {
+        return port;
+    }
+
+    String getUrl() {
+        return "http://" + host + ":" + port;
+    }
+
+    ConsulMetrics.Timer getTimer() {
+        return timer;
+    }
+
+    /**
+     * @return the orbitz client of this endpoint, created on first use
+     */
+    Consul getConsul() {
+        Consul client = consul;
+        if (client == null) {
+            synchronized (this) {
+                if (consul == null) {
+                    consul = Consul.newClient(host, port);
+                }
+                client = consul;
+            }
+        }
+        return client;
+    }
+
+    boolean isDown() {
+        return System.currentTimeMillis() < downUntil;
+    }
+
+    void succeeded(long latencyNanos) {
+        downUntil = 0;
+        synchronized (this) {
+            latencyMicros = latencyMicros == 0 ? latencyNanos / 1000.0 : latencyMicros + ALPHA * (latencyNanos / 1000.0 - latencyMicros);
+            errorRate = errorRate * (1 - ALPHA);
+        }
+    }
+
+    /**
+     * @param downMillis the time the endpoint isn't used, unless every endpoint is down
+     */
+    void failed(long downMillis) {
+        downUntil = System.currentTimeMillis() + downMillis;
+        synchronized (this) {
+            errorRate = errorRate + ALPHA * (1 - errorRate);
+        }
+    }
+
+    /**
+     * @return the rank of the endpoint, lower is better
+     */
+    synchronized double score() {
+        return latencyMicros * (1 + 10 * errorRate);
+    }
+
+    @Override
+    public String toString() {
+        return host + ":" + port;
+    }
+}
@@ -0,0 +1,208 @@
+package ajk.consul4spring;
+
+import org.springframework.stereotype.Component;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+
+/**
+ * the latency, error, retry and in-flight counts of every Consul and DNS operation, plus gauges such as cache hit rates.
+ * Operations are named after the API they call - kv.get, kv.put, agent.check, session.renew, health.service,
+ * dns.lookup and so on. With Spring Boot's actuator on the classpath the metrics are published under "consul." in the
+ * /metrics endpoint, and the full histograms are available at the /consulmetrics endpoint.
+ * <p>
+ * Recording is lock free and allocation free, the latencies are kept in power of two microsecond buckets so the
+ * percentiles are upper bounds within a factor of two.
+ */
+@Component
+public class ConsulMetrics {
+    private final Map<String, Timer> timers = new ConcurrentHashMap<>();
+    private final Map<String, Supplier<? extends Number>> gauges = new ConcurrentHashMap<>();
+
+    /**
+     * @return the timer of an operation, created on first use
+     */
+    public Timer timer(String operation) {
+        Timer timer = timers.get(operation);
+        return timer == null ? timers.computeIfAbsent(operation, Timer::new) : timer;
+    }
+
+    /**
+     * registers a value read whenever the metrics are published, replacing a previous gauge of the same name
+     */
+    public void gauge(String name, Supplier<? extends Number> value) {
+        gauges.put(name, value);
+    }
+
+    /**
+     * @return every metric as a flat name to value map, e.g. consul.kv.get.p99 (in milliseconds) or consul.kv.get.errors
+     */
+    public Map<String, Number> flatten() {
+        Map<String, Number> metrics = new TreeMap<>();
+        timers.forEach((operation, timer) -> timer.snapshot().forEach((name, value) ->
+                metrics.put("consul." + operation + "." + name, value)));
+        gauges.forEach((name, value) -> metrics.put("consul." + name, value.get()));
+        return metrics;
+    }
+
+    /**
+     * @return the timers and gauges, with a timer's histogram as a bucket upper bound (in microseconds) to count map
+     */
+    public Map<String, Object> snapshot() {
+        Map<String, Object> operations = new TreeMap<>();
+        timers.forEach((operation, timer) -> {
+            Map<String, Object> details = new LinkedHashMap<>(timer.snapshot());
+            details.put("histogram", timer.histogram());
+            operations.put(operation, details);
+        });
+
+        Map<String, Object> values = new TreeMap<>();
+        gauges.forEach((name, value) -> values.put(name, value.get()));
+
+        Map<String, Object> snapshot = new LinkedHashMap<>();
+        snapshot.put("operations", operations);
+        snapshot.put("gauges", values);
+        return snapshot;
+    }
+
+    /**
+     * the counts and latency histogram of one operation. Wrap a call with {@link #start()} and
+     * {@link #stop(long, boolean)}:
+     * <pre>
+     * long started = timer.start();
+     * boolean failed = true;
+     * try {
+     *     ...
+     *     failed = false;
+     * } finally {
+     *     timer.stop(started, failed);
+     * }
+     * </pre>
+     */
+    public static class Timer {
+        private static final int BUCKETS = 40;
+
+        private final String operation;
+        private final LongAdder count = new LongAdder();
+        private final LongAdder errors = new LongAdder();
+        private final LongAdder retries = new LongAdder();
+        private final LongAdder totalMicros = new LongAdder();
+        private final LongAccumulator maxMicros = new LongAccumulator(Math::max, 0);
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+
+        Timer(String operation) {
+            this.operation = operation;
+        }
+
+        public String getOperation() {
+            return operation;
+        }
+
+        /**
+         * @return the start time to pass to {@link #stop(long, boolean)}
+         */
+        public long start() {
+            inFlight.incrementAndGet();
+            return System.nanoTime();
+        }
+
+        public void stop(long started, boolean failed) {
+            long micros = NANOSECONDS.toMicros(System.nanoTime() - started);
+            inFlight.decrementAndGet();
+            count.increment();
+            if (failed) {
+                errors.increment();
+            }
+            totalMicros.add(micros);
+            maxMicros.accumulate(micros);
+            buckets.incrementAndGet(Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros)));
+        }
+
+        /**
+         * counts an attempt that is repeated, for example after a conflicting check-and-set
+         */
+        public void retry() {
+            retries.increment();
+        }
+
+        public long getCount() {
+            return count.sum();
+        }
+
+        public long getErrors() {
+            return errors.sum();
+        }
+
+        public long getRetries() {
+            return retries.sum();
+        }
+
+        public int getInFlight() {
+            return inFlight.get();
+        }
+
+        /**
+         * @param quantile between 0 and 1
+         * @return the upper bound, in microseconds, of the bucket holding the quantile
+         */
+        public long percentile(double quantile) {
+            long[] counts = new long[BUCKETS];
+            long total = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] = buckets.get(i);
+                total += counts[i];
+            }
+
+            long rank = (long) Math.ceil(quantile * total);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += counts[i];
+                if (seen >= rank && counts[i] > 0) {
+                    return Math.min(upperBound(i), maxMicros.get());
+                }
+            }
+
+            return 0;
+        }
+
+        Map<String, Number> snapshot() {
+            long calls = count.sum();
+            Map<String, Number> snapshot = new LinkedHashMap<>();
+            snapshot.put("count", calls);
+            snapshot.put("errors", errors.sum());
+            snapshot.put("retries", retries.sum());
+            snapshot.put("inFlight", inFlight.get());
+            snapshot.put("mean", calls == 0 ? 0 : totalMicros.sum() / calls / 1000.0);
+            snapshot.put("p50", percentile(0.5) / 1000.0);
+            snapshot.put("p99", percentile(0.99) / 1000.0);
+            snapshot.put("p999", percentile(0.999) / 1000.0);
+            snapshot.put("max", maxMicros.get() / 1000.0);
+            return snapshot;
+        }
+
+        Map<Long, Long> histogram() {
+            Map<Long, Long> histogram = new LinkedHashMap<>();
+            for (int i = 0; i < BUCKETS; i++) {
+                long bucket = buckets.get(i);
+                if (bucket > 0) {
+                    histogram.put(upperBound(i), bucket);
+                }
+            }
+            return histogram;
+        }
+
+        private static long upperBound(int bucket) {
+            return bucket == 0 ? 0 : (1L << bucket) - 1;
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package ajk.consul4spring;
+
+/**
+ * the result of a read together with how fresh it is
+ *
+ * @param <T> the type of the value read
+ */
+public class ConsulRead<T> {
+    private final T value;
+    private final long lastContact;
+    private final boolean knownLeader;
+
+    public ConsulRead(T value, long lastContact, boolean knownLeader) {
+        this.value = value;
+        this.lastContact = lastContact;
+        this.knownLeader = knownLeader;
+    }
+
+    /**
+     * @return the value, or null if it doesn't exist
+     */
+    public T getValue() {
+        return value;
+    }
+
+    /**
+     * @return the X-Consul-LastContact of the response: the time, in milliseconds, since the server that answered last
+     * heard from the leader. It's 0 for reads answered by the leader, and for reads answered from memory it's the time
+     * since the cache last heard from Consul
+     */
+    public long getLastContact() {
+        return lastContact;
+    }
+
+    /**
+     * @return the X-Consul-KnownLeader of the response, false when the server that answered doesn't know of a leader
+     */
+    public boolean isKnownLeader() {
+        return knownLeader;
+    }
+
+    @Override
+    public String toString() {
+        return value + " (last contact " + lastContact + "ms)";
+    }
+}
@@ -1,5 +1,13 @@
 package ajk.consul4spring;
 
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
 /**
  * a convenience template to access the Consul key value store
  */
@@ -12,6 +20,24 @@ public interface ConsulTemplate {
      */
     void write(String key, String value);
 
+    /**
+     * writes an object to Consul serialized with the {@link ValueCodec} named by {@code consul.valueCodec}. The codec
+     * is recorded with the value, so {@link #findAndConvert(Class, String)} decodes it with the same codec, and
+     * {@link #find(String)} returns it as JSON. Strings are written as JSON strings, use {@link #write(String, String)}
+     * to write text as it is. The default implementation writes the object as JSON text, serialized with a plain
+     * {@code ObjectMapper}
+     *
+     * @param key   the key
+     * @param value the object to serialize
+     */
+    default void write(String key, Object value) {
+        try {
+            write(key, new ObjectMapper().writeValueAsString(value));
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException("unable to serialize the value of " + key, e);
+        }
+    }
+
     /**
      * retrieves a value from Consul
      *
@@ -31,10 +57,99 @@ public interface ConsulTemplate {
      */
     <T> T findAndConvert(Class<T> clazz, String key);
 
+    /**
+     * retrieves a value from Consul with a specific consistency, instead of the consul.readConsistency one
+     *
+     * @param key         the key
+     * @param consistency the consistency of the read
+     * @return the value as a string (null if the key was not found) and the X-Consul-LastContact of the read
+     */
+    default ConsulRead<String> find(String key, ReadConsistency consistency) {
+        return new ConsulRead<>(find(key), 0, true);
+    }
+
+    /**
+     * retrieves a value from Consul with a specific consistency, instead of the consul.readConsistency one, converted
+     * like {@link #findAndConvert(Class, String)}
+     *
+     * @param clazz       the target class for the conversion
+     * @param key         the key
+     * @param consistency the consistency of the read
+     * @param <T>         the target type for the conversion
+     * @return the converted value (null if the key was not found) and the X-Consul-LastContact of the read
+     */
+    default <T> ConsulRead<T> findAndConvert(Class<T> clazz, String key, ReadConsistency consistency) {
+        return new ConsulRead<>(findAndConvert(clazz, key), 0, true);
+    }
+
+    /**
+     * retrieves all the values under a prefix with a single recursive read
+     *
+     * @param prefix the prefix, e.g. /config/
+     * @return the values by their keys, in the same form as the prefix, ordered by key. Empty when no key starts with
+     * the prefix
+     */
+    Map<String, String> findAll(String prefix);
+
+    /**
+     * retrieves all the values under a prefix with a single recursive read, each converted like
+     * {@link #findAndConvert(Class, String)}. The default implementation converts the values of
+     * {@link #findAll(String)} with a plain {@code ObjectMapper}
+     *
+     * @param clazz  the target class for the conversion
+     * @param prefix the prefix, e.g. /config/
+     * @param <T>    the target type for the conversion
+     * @return the converted values by their keys, in the same form as the prefix, ordered by key. A value that can't
+     * be converted is null
+     */
+    default <T> Map<String, T> findAllAndConvert(Class<T> clazz, String prefix) {
+        ObjectMapper mapper = new ObjectMapper();
+        Map<String, T> converted = new LinkedHashMap<>();
+        findAll(prefix).forEach((key, value) -> {
+            try {
+                converted.put(key, value == null ? null : mapper.readValue(value, clazz));
+            } catch (IOException e) {
+                converted.put(key, null);
+            }
+        });
+        return converted;
+    }
+
+    /**
+     * lists the keys under a prefix without their values
+     *
+     * @param prefix the prefix, e.g. /config/
+     * @return the keys, in the same form as the prefix, ordered
+     */
+    List<String> findKeys(String prefix);
+
     /**
      * recursively deletes a key if it exists
      *
      * @param key the key to delete
      */
     void delete(String key);
+
+    /**
+     * writes several values in a single round trip using a Consul transaction. Either all the values are written or
+     * none is. Consul limits a transaction to 64 operations - larger maps are written in consecutive transactions of up
+     * to 64 values, each of them atomic on its own. The default implementation writes the values one at a time with
+     * {@link #write(String, String)}, without a transaction
+     *
+     * @param values the values to write by their keys
+     * @throws IllegalStateException if a transaction was rolled back
+     */
+    default void writeAll(Map<String, String> values) {
+        values.forEach(this::write);
+    }
+
+    /**
+     * runs a list of operations using Consul transactions. Consul limits a transaction to 64 operations - longer lists
+     * are run in consecutive transactions of up to 64 operations, each of them atomic on its own. When a transaction is
+     * rolled back (for example because of a failed check-and-set) the following ones are not run
+     *
+     * @param operations the operations to run, in order
+     * @return true if all the operations were applied, false if a transaction was rolled back
+     */
+    boolean execute(List<KeyValueOperation> operations);
 }
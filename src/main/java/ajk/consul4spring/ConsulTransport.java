@@ -0,0 +1,170 @@
+package ajk.consul4spring;
+
+import com.orbitz.consul.async.ConsulResponseCallback;
+import com.orbitz.consul.model.ConsulResponse;
+import org.apache.cxf.Bus;
+import org.apache.cxf.BusFactory;
+import org.apache.cxf.bus.CXFBusFactory;
+import org.apache.cxf.transport.http.HTTPConduitConfigurer;
+import org.apache.cxf.transport.http.HTTPConduitFactory;
+import org.apache.cxf.transport.http.URLConnectionHTTPConduit;
+import org.apache.cxf.transports.http.configuration.ConnectionType;
+import org.apache.cxf.transports.http.configuration.HTTPClientPolicy;
+import org.apache.cxf.workqueue.AutomaticWorkQueueImpl;
+import org.apache.cxf.workqueue.WorkQueueManager;
+
+import java.io.Closeable;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+/**
+ * the HTTP transport of one kind of Consul call, normal requests or long-poll blocking queries. Each transport has a
+ * private CXF bus whose conduits connect and read with its own timeouts and keep their connections alive, and a bound
+ * on the requests it has in flight at the same time, so a burst of one kind of call can't starve the other.
+ * <p>
+ * The orbitz client picks up the bus of the calling thread when a request is made, so calls run with the transport's
+ * bus set as the thread default. The connections are HttpURLConnections, which go back to the JVM's keep-alive cache
+ * after each response and are reused by the next call to the same endpoint. The size of that cache is the JVM's own
+ * http.maxConnections, which is left to the application. The asynchronous conduit of cxf-rt-transports-http-hc is never
+ * used: in this version of CXF it closes its connection after every response.
+ */
+class ConsulTransport implements Closeable {
+    /**
+     * an HTTP call to Consul
+     */
+    @FunctionalInterface
+    interface Call<T, E extends Exception> {
+        T run() throws E;
+    }
+
+    private final String name;
+    private final Bus bus;
+    private final int maxInFlight;
+    private final long acquireMillis;
+    private final Semaphore inFlight;
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+
+    /**
+     * @param name                 the name of the transport, the metrics are published under transport.[name]
+     * @param connectTimeoutMillis the time a new connection may take to open, and a call may wait for its turn
+     * @param readTimeoutMillis    the time a call may wait for its response
+     * @param maxInFlight          the maximum number of calls in flight at the same time, over all the endpoints
+     * @param metrics              the metrics to publish the request gauges to
+     */
+    ConsulTransport(String name, long connectTimeoutMillis, long readTimeoutMillis, int maxInFlight, ConsulMetrics metrics) {
+        if (maxInFlight < 1) {
+            throw new IllegalStateException("the maximum number of " + name + " calls in flight must be positive, not " + maxInFlight);
+        }
+
+        this.name = name;
+        this.maxInFlight = maxInFlight;
+        this.acquireMillis = connectTimeoutMillis;
+        this.inFlight = new Semaphore(maxInFlight);
+
+        // creating a bus makes it the thread default (and the global default when there's none yet)
+        BusFactory.getDefaultBus();
+        Bus previous = BusFactory.getThreadDefaultBus(false);
+        bus = new CXFBusFactory().createBus();
+        BusFactory.setThreadDefaultBus(previous);
+
+        bus.setExtension((HTTPConduitFactory) (factory, b, endpointInfo, target) ->
+                new URLConnectionHTTPConduit(b, endpointInfo, target), HTTPConduitFactory.class);
+        bus.setExtension((HTTPConduitConfigurer) (conduitName, address, conduit) -> {
+            HTTPClientPolicy policy = new HTTPClientPolicy();
+            policy.setConnectionTimeout(connectTimeoutMillis);
+            policy.setReceiveTimeout(readTimeoutMillis);
+            policy.setConnection(ConnectionType.KEEP_ALIVE);
+            conduit.setClient(policy);
+        }, HTTPConduitConfigurer.class);
+        // asynchronous calls wait for their response on this queue, one thread for each call in flight
+        bus.getExtension(WorkQueueManager.class).addNamedWorkQueue("http-conduit",
+                new AutomaticWorkQueueImpl(maxInFlight, 0, maxInFlight, maxInFlight, 60000, "consul-" + name));
+
+        metrics.gauge("transport." + name + ".inFlight", () -> maxInFlight - inFlight.availablePermits());
+        metrics.gauge("transport." + name + ".waiting", inFlight::getQueueLength);
+        metrics.gauge("transport." + name + ".maxInFlight", () -> maxInFlight);
+        metrics.gauge("transport." + name + ".requests", requests::sum);
+        metrics.gauge("transport." + name + ".rejected", rejected::sum);
+    }
+
+    /**
+     * runs a synchronous call over this transport
+     *
+     * @throws IllegalStateException when the call can't be started within the connect timeout
+     */
+    <T, E extends Exception> T call(Call<T, E> call) throws E {
+        acquire();
+        Bus previous = BusFactory.getAndSetThreadDefaultBus(bus);
+        try {
+            return call.run();
+        } finally {
+            BusFactory.setThreadDefaultBus(previous);
+            inFlight.release();
+        }
+    }
+
+    /**
+     * runs an asynchronous query over this transport, it counts as in flight until the callback is called
+     *
+     * @throws IllegalStateException when the query can't be started within the connect timeout
+     */
+    <T> ConsulWatch.Query<T> query(ConsulWatch.Query<T> query) {
+        return (options, callback) -> {
+            acquire();
+            AtomicBoolean released = new AtomicBoolean();
+            Runnable release = () -> {
+                if (released.compareAndSet(false, true)) {
+                    inFlight.release();
+                }
+            };
+            Bus previous = BusFactory.getAndSetThreadDefaultBus(bus);
+            try {
+                query.run(options, new ConsulResponseCallback<T>() {
+                    @Override
+                    public void onComplete(ConsulResponse<T> response) {
+                        release.run();
+                        callback.onComplete(response);
+                    }
+
+                    @Override
+                    public void onFailure(Throwable throwable) {
+                        release.run();
+                        callback.onFailure(throwable);
+                    }
+                });
+            } catch (RuntimeException | Error e) {
+                release.run();
+                throw e;
+            } finally {
+                BusFactory.setThreadDefaultBus(previous);
+            }
+        };
+    }
+
+    private void acquire() {
+        requests.increment();
+        try {
+            if (!inFlight.tryAcquire(acquireMillis, MILLISECONDS)) {
+                rejected.increment();
+                throw new IllegalStateException("all " + maxInFlight + " " + name + " calls to Consul are in flight");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted while waiting to send a " + name + " call to Consul", e);
+        }
+    }
+
+    @Override
+    public void close() {
+        bus.shutdown(false);
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
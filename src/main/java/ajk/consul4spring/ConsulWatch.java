@@ -0,0 +1,236 @@
+package ajk.consul4spring;
+
+import com.orbitz.consul.async.ConsulResponseCallback;
+import com.orbitz.consul.model.ConsulResponse;
+import com.orbitz.consul.option.QueryOptions;
+import org.apache.commons.logging.Log;
+
+import javax.ws.rs.ProcessingException;
+import java.io.Closeable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import static com.orbitz.consul.option.QueryOptionsBuilder.builder;
+import static java.lang.Math.min;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.apache.commons.logging.LogFactory.getLog;
+
+/**
+ * keeps a single Consul blocking query running on a background thread. The first query returns immediately with the
+ * current state, every following query blocks on the last X-Consul-Index seen and returns as soon as something changes
+ * (or the wait time passes). The listener is called only when the index moves.
+ *
+ * @param <T> the type of the query response
+ */
+class ConsulWatch<T> implements Closeable {
+    private static final long MIN_BACKOFF = 100;
+    private static final long MAX_BACKOFF = 10000;
+    private static final long READ_TIMEOUT_SECONDS = 10;
+
+    private Log log = getLog(getClass());
+
+    private final String name;
+    private final Query<T> query;
+    private final Consumer<ConsulResponse<T>> listener;
+    private final int waitSeconds;
+    private final ReadConsistency consistency;
+    private final CountDownLatch initialized = new CountDownLatch(1);
+
+    private volatile boolean running;
+    private volatile long index;
+    private volatile long lastSync;
+    private volatile long lastContact;
+    private Thread thread;
+
+    /**
+     * a single (possibly blocking) Consul query, executed with the orbitz asynchronous API
+     */
+    interface Query<T> {
+        void run(QueryOptions options, ConsulResponseCallback<T> callback);
+    }
+
+    ConsulWatch(String name, int waitSeconds, Query<T> query, Consumer<ConsulResponse<T>> listener) {
+        this(name, waitSeconds, ReadConsistency.DEFAULT, query, listener);
+    }
+
+    ConsulWatch(String name, int waitSeconds, ReadConsistency consistency, Query<T> query, Consumer<ConsulResponse<T>> listener) {
+        this.name = name;
+        this.waitSeconds = waitSeconds;
+        this.consistency = consistency;
+        this.query = query;
+        this.listener = listener;
+    }
+
+    synchronized void start() {
+        if (running) {
+            return;
+        }
+
+        running = true;
+        thread = new Thread(this::watch, "consul-watch-" + name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public synchronized void close() {
+        running = false;
+        if (thread != null) {
+            thread.interrupt();
+            thread = null;
+        }
+    }
+
+    /**
+     * waits for the first response to arrive
+     *
+     * @return true when the watch has received at least one response within the timeout
+     */
+    boolean awaitInitialized(long timeout, TimeUnit unit) throws InterruptedException {
+        return initialized.await(timeout, unit);
+    }
+
+    boolean isInitialized() {
+        return initialized.getCount() == 0;
+    }
+
+    /**
+     * @return the last X-Consul-Index received
+     */
+    long getIndex() {
+        return index;
+    }
+
+    /**
+     * @return the time, in milliseconds, since the last successful response from Consul, or -1 before the first one
+     */
+    long getMillisSinceLastSync() {
+        return lastSync == 0 ? -1 : System.currentTimeMillis() - lastSync;
+    }
+
+    /**
+     * @return the X-Consul-LastContact of the last response, in milliseconds
+     */
+    long getLastContact() {
+        return lastContact;
+    }
+
+    private void watch() {
+        long backoff = MIN_BACKOFF;
+        while (running) {
+            try {
+                ConsulResponse<T> response = next();
+                lastSync = System.currentTimeMillis();
+                lastContact = response.getLastContact();
+                backoff = MIN_BACKOFF;
+
+                long newIndex = response.getIndex() == null ? 0 : response.getIndex().longValue();
+                if (newIndex == index && isInitialized()) {
+                    // the wait time passed without a change
+                    continue;
+                }
+
+                // the index may go backwards, for example after a snapshot restore - start over in that case
+                index = newIndex < index ? 0 : newIndex;
+                listener.accept(response);
+                initialized.countDown();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                if (!running) {
+                    return;
+                }
+
+                log.warn("[watch " + name + "]: query failed, retrying in " + backoff + "ms: " + e.getMessage());
+                try {
+                    MILLISECONDS.sleep(backoff);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                backoff = min(backoff * 2, MAX_BACKOFF);
+            }
+        }
+    }
+
+    private ConsulResponse<T> next() throws Exception {
+        return await(query, builder().blockSeconds(waitSeconds, index).consistencyMode(consistency.toConsistencyMode()).build(),
+                waitSeconds + waitSeconds / 16 + 5);
+    }
+
+    /**
+     * runs a single blocking query and waits for its response
+     *
+     * @param query       the query
+     * @param waitSeconds the maximum time Consul should block
+     * @param index       the X-Consul-Index to block on, 0 to return immediately
+     * @return the response
+     */
+    static <T> ConsulResponse<T> await(Query<T> query, int waitSeconds, long index) throws Exception {
+        // Consul adds up to wait/16 of jitter to the wait time
+        return await(query, builder().blockSeconds(waitSeconds, index).build(), waitSeconds + waitSeconds / 16 + 5);
+    }
+
+    /**
+     * runs a single, non-blocking query with a consistency and waits for its response. A stale read that is further
+     * behind the leader than maxStalenessMillis, or that was answered by a server that doesn't know of a leader, is
+     * repeated with the default consistency
+     *
+     * @return the response
+     * @throws ProcessingException when Consul didn't answer in time
+     */
+    static <T> ConsulResponse<T> read(Query<T> query, ReadConsistency consistency, long maxStalenessMillis) {
+        ConsulResponse<T> response = readOnce(query, consistency);
+        if (consistency == ReadConsistency.STALE && (response.getLastContact() > maxStalenessMillis || !response.isKnownLeader())) {
+            return readOnce(query, ReadConsistency.DEFAULT);
+        }
+
+        return response;
+    }
+
+    private static <T> ConsulResponse<T> readOnce(Query<T> query, ReadConsistency consistency) {
+        try {
+            return await(query, builder().consistencyMode(consistency.toConsistencyMode()).build(), READ_TIMEOUT_SECONDS);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted while reading from Consul", e);
+        } catch (Exception e) {
+            throw new ProcessingException("Consul didn't answer within " + READ_TIMEOUT_SECONDS + " seconds", e);
+        }
+    }
+
+    /**
+     * runs a single query and waits for its response
+     *
+     * @param query          the query
+     * @param options        the query options
+     * @param timeoutSeconds the time to wait for the response
+     * @return the response
+     */
+    static <T> ConsulResponse<T> await(Query<T> query, QueryOptions options, long timeoutSeconds) throws Exception {
+        CompletableFuture<ConsulResponse<T>> result = new CompletableFuture<>();
+        query.run(options, new ConsulResponseCallback<T>() {
+            @Override
+            public void onComplete(ConsulResponse<T> response) {
+                result.complete(response);
+            }
+
+            @Override
+            public void onFailure(Throwable throwable) {
+                result.completeExceptionally(throwable);
+            }
+        });
+
+        return result.get(timeoutSeconds, SECONDS);
+    }
+}
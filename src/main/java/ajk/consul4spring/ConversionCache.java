@@ -0,0 +1,139 @@
+package ajk.consul4spring;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * remembers the objects {@link ConsulTemplate#findAndConvert(Class, String)} converted, per key and target class,
+ * together with the ModifyIndex of the value they were converted from. As long as the key isn't modified the same
+ * instance is returned without parsing the value again, so the returned objects must be treated as read-only.
+ */
+public class ConversionCache {
+    /**
+     * parses a value, text or serialized, into the target class
+     */
+    interface Converter {
+        <T> T convert(KeyValueCache.Entry entry, Class<T> clazz) throws IOException;
+    }
+
+    private final Converter converter;
+    private final Map<CacheKey, Conversion> conversions = new ConcurrentHashMap<>();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder parses = new LongAdder();
+    private final LongAdder parseNanos = new LongAdder();
+
+    ConversionCache(Converter converter) {
+        this.converter = converter;
+    }
+
+    /**
+     * @param key   the full key
+     * @param clazz the target class
+     * @param entry the value with the ModifyIndex it was read at. When the ModifyIndex isn't known (0) the value is
+     *              parsed and not remembered
+     * @return the converted value
+     */
+    <T> T convert(String key, Class<T> clazz, KeyValueCache.Entry entry) throws IOException {
+        long modifyIndex = entry.getModifyIndex();
+        if (modifyIndex == 0) {
+            return parse(entry, clazz);
+        }
+
+        CacheKey cacheKey = new CacheKey(key, clazz);
+        Conversion conversion = conversions.get(cacheKey);
+        if (conversion != null && conversion.modifyIndex == modifyIndex) {
+            hits.increment();
+            return clazz.cast(conversion.value);
+        }
+
+        T converted = parse(entry, clazz);
+        conversions.put(cacheKey, new Conversion(modifyIndex, converted));
+        return converted;
+    }
+
+    /**
+     * forgets the conversions of a key and every key under it
+     */
+    void invalidate(String keyPrefix) {
+        conversions.keySet().removeIf(cacheKey -> cacheKey.key.startsWith(keyPrefix));
+    }
+
+    private <T> T parse(KeyValueCache.Entry entry, Class<T> clazz) throws IOException {
+        long start = System.nanoTime();
+        try {
+            return converter.convert(entry, clazz);
+        } finally {
+            parseNanos.add(System.nanoTime() - start);
+            parses.increment();
+        }
+    }
+
+    /**
+     * @return the number of conversions answered with an already converted object
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * @return the number of times a value was actually parsed
+     */
+    public long getParses() {
+        return parses.sum();
+    }
+
+    /**
+     * @return the total time, in milliseconds, spent parsing values
+     */
+    public long getParseTimeMillis() {
+        return parseNanos.sum() / 1_000_000;
+    }
+
+    /**
+     * @return the number of remembered conversions
+     */
+    public int size() {
+        return conversions.size();
+    }
+
+    private static class CacheKey {
+        private final String key;
+        private final Class<?> clazz;
+
+        CacheKey(String key, Class<?> clazz) {
+            this.key = key;
+            this.clazz = clazz;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof CacheKey)) {
+                return false;
+            }
+            CacheKey other = (CacheKey) o;
+            return key.equals(other.key) && clazz == other.clazz;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(key, clazz);
+        }
+    }
+
+    private static class Conversion {
+        private final long modifyIndex;
+        private final Object value;
+
+        Conversion(long modifyIndex, Object value) {
+            this.modifyIndex = modifyIndex;
+            this.value = value;
+        }
+    }
+}
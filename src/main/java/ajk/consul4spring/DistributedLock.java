@@ -1,5 +1,7 @@
 package ajk.consul4spring;
 
+import java.util.concurrent.TimeUnit;
+
 /**
  * a convenient way to use Consul's distributed lock
  */
@@ -17,4 +19,15 @@ public interface DistributedLock {
      * @param lockId the lock ID to release
      */
     void release(String lockId);
+
+    /**
+     * acquire a named lock, waiting for it to be released if someone else holds it
+     *
+     * @param name    the lock name
+     * @param timeout the maximum time to wait for the lock, 0 to try only once
+     * @param unit    the timeout unit
+     * @return the lock, release it by closing it. Null if the lock could not be acquired within the timeout
+     * @throws InterruptedException if the thread was interrupted while waiting
+     */
+    HeldLock acquire(String name, long timeout, TimeUnit unit) throws InterruptedException;
 }
@@ -0,0 +1,22 @@
+package ajk.consul4spring;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * a semaphore shared by all the instances of the service, for example to cap the number of expensive jobs running in
+ * the cluster at the same time
+ */
+public interface DistributedSemaphore {
+    /**
+     * acquire one of the permits of a named semaphore, waiting for one to be released if all are held
+     *
+     * @param name    the semaphore name
+     * @param limit   the number of permits, all the users of the semaphore must agree on it
+     * @param timeout the maximum time to wait for a permit, 0 to try only once
+     * @param unit    the timeout unit
+     * @return the permit, release it by closing it. Null if a permit could not be acquired within the timeout
+     * @throws InterruptedException if the thread was interrupted while waiting
+     * @throws IllegalStateException if the semaphore exists with a different limit
+     */
+    HeldLock acquire(String name, int limit, long timeout, TimeUnit unit) throws InterruptedException;
+}
@@ -1,18 +1,26 @@
 package ajk.consul4spring;
 
+import ajk.consul4spring.config.ConsulProperties;
 import org.apache.commons.logging.Log;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
 import org.xbill.DNS.ARecord;
+import org.xbill.DNS.Cache;
+import org.xbill.DNS.DClass;
 import org.xbill.DNS.Lookup;
 import org.xbill.DNS.Name;
 import org.xbill.DNS.PTRRecord;
 import org.xbill.DNS.Record;
 import org.xbill.DNS.Resolver;
+import org.xbill.DNS.ResolverConfig;
 import org.xbill.DNS.SRVRecord;
 import org.xbill.DNS.SimpleResolver;
 import org.xbill.DNS.TXTRecord;
 import org.xbill.DNS.TextParseException;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
 import java.net.Inet4Address;
 import java.net.InetAddress;
 import java.net.NetworkInterface;
@@ -20,8 +28,19 @@ import java.net.SocketException;
 import java.net.UnknownHostException;
 import java.util.Enumeration;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 
+import static java.util.concurrent.CompletableFuture.allOf;
+import static java.util.concurrent.CompletableFuture.completedFuture;
+import static java.util.concurrent.CompletableFuture.supplyAsync;
+import static java.util.concurrent.Executors.newFixedThreadPool;
 import static java.util.stream.Collectors.joining;
 import static java.util.stream.Collectors.toList;
 import static java.util.stream.Stream.of;
@@ -34,14 +53,45 @@ import static org.xbill.DNS.Type.SRV;
 import static org.xbill.DNS.Type.TXT;
 
 /**
- * a convenient way to resolve SRV records in a DNS
+ * a convenient way to resolve SRV records in a DNS. A resolver is created once per name server host and port, and
+ * each resolver keeps its own record cache that honours the TTLs of the records it received
  */
 @SuppressWarnings("unused")
 @Component
 public class DnsResolver {
+    private static final String DEFAULT_RESOLVER = "default";
+
     private Log log = getLog(getClass());
     private String nonLoopback;
 
+    @Autowired(required = false)
+    private ConsulProperties consulProperties;
+
+    @Autowired
+    private ConsulMetrics metrics;
+
+    private final Map<String, CachedResolver> resolvers = new ConcurrentHashMap<>();
+    private final LongAdder cacheHits = new LongAdder();
+    private final LongAdder cacheMisses = new LongAdder();
+
+    private ExecutorService executor;
+
+    @PostConstruct
+    private void start() {
+        AtomicInteger threads = new AtomicInteger();
+        executor = newFixedThreadPool(consulProperties == null ? 8 : consulProperties.getDnsMaxInFlight(), r -> {
+            Thread thread = new Thread(r, "dns-resolver-" + threads.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        metrics.gauge("dns.cache.hitRate", this::getCacheHitRate);
+    }
+
+    @PreDestroy
+    private void stop() {
+        executor.shutdownNow();
+    }
+
     /**
      * resolves an SRV record by its name and the default resolution defined at the host level
      *
@@ -49,8 +99,41 @@ public class DnsResolver {
      * @return a comma separate list of ip:port, e.g: 1.2.3.4:8080,2.3.4.5:9090 or null when unable to resolve
      */
     public String resolveServiceByName(String name) {
-        return resolveSrvByName(null, name);
+        return resolveSrvByName(defaultResolver(), name);
+    }
 
+    /**
+     * resolves an SRV record by its name and the default resolution defined at the host level without blocking the
+     * calling thread. Use this to overlap the resolution of several services
+     *
+     * @param name the DNS name of the SRV record
+     * @return a future of a comma separate list of ip:port, e.g: 1.2.3.4:8080,2.3.4.5:9090, completed with null when
+     * unable to resolve
+     */
+    public CompletableFuture<String> resolveServiceByNameAsync(String name) {
+        CachedResolver resolver = defaultResolver();
+        return supplyAsync(() -> lookupSrv(resolver, name), executor)
+                .thenCompose(records -> resolveTargets(resolver, records));
+    }
+
+    /**
+     * resolves an SRV record by its name using a specified DNS host and port without blocking the calling thread
+     *
+     * @param resolverHost name server hostname or IP address
+     * @param resolverPort name server port
+     * @param name         the DNS name of the SRV record
+     * @return a future of a comma separate list of ip:port, e.g: 1.2.3.4:8080,2.3.4.5:9090, completed with null when
+     * unable to resolve
+     */
+    public CompletableFuture<String> resolveServiceByNameAsync(String resolverHost, int resolverPort, String name) {
+        try {
+            CachedResolver resolver = resolver(resolverHost, resolverPort);
+            return supplyAsync(() -> lookupSrv(resolver, name), executor)
+                    .thenCompose(records -> resolveTargets(resolver, records));
+        } catch (UnknownHostException e) {
+            log.warn("unable to resolve using SRV record " + name, e);
+            return completedFuture(null);
+        }
     }
 
     /**
@@ -63,11 +146,7 @@ public class DnsResolver {
      */
     public String resolveHostByName(String resolverHost, int resolverPort, String name) {
         try {
-            SimpleResolver resolver = new SimpleResolver(resolverHost);
-            resolver.setPort(resolverPort);
-
-            Lookup lookup = new Lookup(name, A);
-            Record[] records = lookup.run();
+            Record[] records = resolver(resolverHost, resolverPort).lookup(Name.fromString(name), A);
             if (records != null) {
                 List<String> addresses =
                         of(records)
@@ -96,11 +175,7 @@ public class DnsResolver {
      */
     public String resolveTextByName(String resolverHost, int resolverPort, String name) {
         try {
-            SimpleResolver resolver = new SimpleResolver(resolverHost);
-            resolver.setPort(resolverPort);
-
-            Lookup lookup = new Lookup(name, TXT);
-            Record[] records = lookup.run();
+            Record[] records = resolver(resolverHost, resolverPort).lookup(Name.fromString(name), TXT);
             if (records != null) {
                 List<String> addresses =
                         of(records)
@@ -128,11 +203,7 @@ public class DnsResolver {
      */
     public String reverseLookupByAddress(String resolverHost, int resolverPort, InetAddress address) {
         try {
-            SimpleResolver resolver = new SimpleResolver(resolverHost);
-            resolver.setPort(resolverPort);
-
-            Lookup lookup = new Lookup(fromAddress(address), PTR);
-            Record[] records = lookup.run();
+            Record[] records = resolver(resolverHost, resolverPort).lookup(fromAddress(address), PTR);
             if (records != null) {
                 List<String> addresses =
                         of(records)
@@ -160,38 +231,68 @@ public class DnsResolver {
      */
     public String resolveServiceByName(String resolverHost, int resolverPort, String name) {
         try {
-            SimpleResolver resolver = new SimpleResolver(resolverHost);
-            resolver.setPort(resolverPort);
-
-            return resolveSrvByName(resolver, name);
+            return resolveSrvByName(resolver(resolverHost, resolverPort), name);
         } catch (UnknownHostException e) {
             log.warn("unable to resolve using SRV record " + name, e);
             return null;
         }
     }
 
-    private String resolveSrvByName(Resolver resolver, String name) {
+    private String resolveSrvByName(CachedResolver resolver, String name) {
+        return resolveTargets(resolver, lookupSrv(resolver, name)).join();
+    }
+
+    private Record[] lookupSrv(CachedResolver resolver, String name) {
         try {
-            Lookup lookup = new Lookup(name, SRV);
-            if (resolver != null) {
-                lookup.setResolver(resolver);
-            }
-            Record[] records = lookup.run();
-            if (records == null) {
-                return null;
+            Name srvName = Name.fromString(name);
+            boolean searched = !srvName.isAbsolute() && Lookup.getDefaultSearchPath() != null;
+            if (!searched || srvName.labels() > ResolverConfig.getCurrentConfig().ndots()) {
+                // like Lookup, a name with more labels than ndots is tried as an absolute name first. A single query
+                // returns both the SRV records and the A records of their targets
+                Record[] records = resolver.lookupWithAdditional(srvName.isAbsolute() ? srvName : Name.concatenate(srvName, Name.root), SRV);
+                if (records != null || !searched) {
+                    return records == null || records.length == 0 ? null : records;
+                }
             }
 
-            return of(records)
-                    .filter(it -> it instanceof SRVRecord)
-                    .map(srv -> resolveHostByName(resolver, ((SRVRecord) srv).getTarget()) + ":" + ((SRVRecord) srv).getPort())
-                    .distinct()
-                    .collect(joining(","));
-        } catch (TextParseException e) {
+            // the name doesn't exist as it is, it's resolved with the search path like Lookup always did
+            return resolver.lookup(srvName, SRV);
+        } catch (IOException e) {
             log.warn("unable to resolve using SRV record " + name, e);
             return null;
         }
     }
 
+    /**
+     * resolves the targets of SRV records. Targets already in the cache are resolved on the calling thread, the rest
+     * are resolved concurrently on the DNS executor, which bounds the number of queries in flight
+     */
+    private CompletableFuture<String> resolveTargets(CachedResolver resolver, Record[] records) {
+        if (records == null) {
+            return completedFuture(null);
+        }
+
+        List<CompletableFuture<String>> targets = of(records)
+                .filter(it -> it instanceof SRVRecord)
+                .map(it -> (SRVRecord) it)
+                .map(srv -> resolver.isCached(srv.getTarget(), A) ?
+                        completedFuture(resolveTarget(resolver, srv)) :
+                        supplyAsync(() -> resolveTarget(resolver, srv), executor))
+                .collect(toList());
+
+        return allOf(targets.toArray(new CompletableFuture<?>[0]))
+                .thenApply(done -> targets.stream()
+                        .map(CompletableFuture::join)
+                        .filter(Objects::nonNull)
+                        .distinct()
+                        .collect(joining(",")));
+    }
+
+    private String resolveTarget(CachedResolver resolver, SRVRecord srv) {
+        String address = resolveHostByName(resolver, srv.getTarget());
+        return address == null ? null : address + ":" + srv.getPort();
+    }
+
     /**
      * read the local real IP address (not the loopback address)
      *
@@ -225,12 +326,13 @@ public class DnsResolver {
         return nonLoopback;
     }
 
-    private String resolveHostByName(Resolver resolver, Name target) {
-        Lookup lookup = new Lookup(target, A);
-        if (resolver != null) {
-            lookup.setResolver(resolver);
+    private String resolveHostByName(CachedResolver resolver, Name target) {
+        Record[] records = resolver.lookup(target, A);
+        if (records == null) {
+            log.warn("unknown name: " + target);
+            return null;
         }
-        Record[] records = lookup.run();
+
         Optional<InetAddress> address = of(records)
                 .filter(it -> it instanceof ARecord)
                 .map(a -> ((ARecord) a).getAddress())
@@ -242,4 +344,54 @@ public class DnsResolver {
             return null;
         }
     }
+
+    /**
+     * @return the number of lookups answered from the DNS cache, including cached negative answers
+     */
+    public long getCacheHits() {
+        return cacheHits.sum();
+    }
+
+    /**
+     * @return the number of lookups that had to query a name server
+     */
+    public long getCacheMisses() {
+        return cacheMisses.sum();
+    }
+
+    /**
+     * @return the ratio of lookups answered from the DNS cache, between 0 and 1
+     */
+    public double getCacheHitRate() {
+        long hits = cacheHits.sum();
+        long total = hits + cacheMisses.sum();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    private CachedResolver defaultResolver() {
+        return resolvers.computeIfAbsent(DEFAULT_RESOLVER, key ->
+                newCachedResolver(Lookup.getDefaultResolver(), Lookup.getDefaultCache(DClass.IN)));
+    }
+
+    private CachedResolver resolver(String resolverHost, int resolverPort) throws UnknownHostException {
+        String key = resolverHost + ":" + resolverPort;
+        CachedResolver resolver = resolvers.get(key);
+        if (resolver == null) {
+            SimpleResolver simpleResolver = new SimpleResolver(resolverHost);
+            simpleResolver.setPort(resolverPort);
+            resolver = resolvers.computeIfAbsent(key, k -> {
+                Cache cache = new Cache(DClass.IN);
+                cache.setMaxEntries(consulProperties == null ? 10000 : consulProperties.getDnsCacheSize());
+                return newCachedResolver(simpleResolver, cache);
+            });
+        }
+
+        return resolver;
+    }
+
+    private CachedResolver newCachedResolver(Resolver resolver, Cache cache) {
+        int cacheSize = consulProperties == null ? 10000 : consulProperties.getDnsCacheSize();
+        int negativeTtl = consulProperties == null ? 5 : consulProperties.getDnsNegativeTtl();
+        return new CachedResolver(resolver, cache, cacheSize, negativeTtl, cacheHits, cacheMisses, metrics.timer("dns.query"));
+    }
 }
@@ -0,0 +1,198 @@
+package ajk.consul4spring;
+
+import com.google.common.base.Optional;
+import com.orbitz.consul.model.ConsulResponse;
+import com.orbitz.consul.model.kv.Value;
+import org.apache.commons.logging.Log;
+
+import java.io.Closeable;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Base64.getDecoder;
+import static java.util.concurrent.Executors.newSingleThreadScheduledExecutor;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.apache.commons.logging.LogFactory.getLog;
+
+/**
+ * runs leader elections with the shared session of a {@link SessionManager}. Every election watches its key with
+ * blocking queries, so a candidate that isn't the leader sends nothing to Consul until the key changes. When the key is
+ * released the candidates race to acquire it with their session, and the winner is told it was elected.
+ */
+@SuppressWarnings("Guava")
+class ElectionRegistry implements Closeable {
+    /**
+     * the longest single blocking query, this should stay below the HTTP read timeout of the Consul client
+     */
+    private static final int WAIT_SECONDS = 55;
+
+    /**
+     * the pause before campaigning again while the key is free but can't be acquired yet, for example during Consul's
+     * lock-delay after the session of the previous leader was invalidated
+     */
+    private static final long RETRY_MILLIS = 1000;
+
+    private Log log = getLog(getClass());
+
+    private final ConsulClientManager consulClient;
+    private final SessionManager sessions;
+    private final String candidate;
+    private final Map<String, Election> elections = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService campaigns;
+
+    /**
+     * @param candidate the name this application is known by as a leader
+     */
+    ElectionRegistry(ConsulClientManager consulClient, SessionManager sessions, String candidate) {
+        this.consulClient = consulClient;
+        this.sessions = sessions;
+        this.candidate = candidate;
+        this.campaigns = newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "consul-election");
+            thread.setDaemon(true);
+            return thread;
+        });
+        sessions.addSessionLostListener(this::sessionLost);
+    }
+
+    void join(String name, String key, LeadershipListener listener) {
+        Election election = new Election(name, key, listener);
+        if (elections.putIfAbsent(name, election) != null) {
+            throw new IllegalStateException("already joined election " + name);
+        }
+
+        election.watch.start();
+    }
+
+    void leave(String name) {
+        Election election = elections.remove(name);
+        if (election != null) {
+            election.close();
+        }
+    }
+
+    boolean isLeader(String name) {
+        Election election = elections.get(name);
+        return election != null && election.isLeader();
+    }
+
+    String getLeader(String name) {
+        Election election = elections.get(name);
+        return election == null ? null : election.leader;
+    }
+
+    @Override
+    public void close() {
+        elections.keySet().forEach(this::leave);
+        campaigns.shutdownNow();
+    }
+
+    private void sessionLost(String sessionId) {
+        elections.values().forEach(election -> election.sessionLost(sessionId));
+    }
+
+    private class Election {
+        private final String name;
+        private final String key;
+        private final LeadershipListener listener;
+        private final ConsulWatch<Optional<Value>> watch;
+
+        private volatile String leader;
+        private String leadingSession;
+        private boolean closed;
+
+        Election(String name, String key, LeadershipListener listener) {
+            this.name = name;
+            this.key = key;
+            this.listener = listener;
+            this.watch = new ConsulWatch<>("election " + name, WAIT_SECONDS,
+                    consulClient.timed("kv.watch", (options, callback) -> consulClient.getConsul().keyValueClient().getValue(key, options, callback)), this::update);
+        }
+
+        synchronized boolean isLeader() {
+            return leadingSession != null;
+        }
+
+        private synchronized void update(ConsulResponse<Optional<Value>> response) {
+            Optional<Value> value = response.getResponse();
+            String holder = value != null && value.isPresent() ? value.get().getSession() : null;
+            leader = holder == null || value.get().getValue() == null ? null : new String(getDecoder().decode(value.get().getValue()), UTF_8);
+
+            if (leadingSession != null && !leadingSession.equals(holder)) {
+                revoke();
+            }
+
+            if (holder == null) {
+                campaign();
+            }
+        }
+
+        private synchronized void campaign() {
+            if (closed || leadingSession != null) {
+                return;
+            }
+
+            try {
+                String sessionId = sessions.getSessionId();
+                if (consulClient.execute("kv.acquire", consul -> consul.keyValueClient().acquireLock(key, candidate, sessionId))) {
+                    leadingSession = sessionId;
+                    leader = candidate;
+                    log.info("[election " + name + "]: elected");
+                    fire(true);
+                    return;
+                }
+
+                // the key doesn't change when a lock-delay ends, so the watch won't wake us up
+                Optional<Value> current = consulClient.execute("kv.get", consul -> consul.keyValueClient().getValue(key));
+                if (!current.isPresent() || current.get().getSession() == null) {
+                    consulClient.getMetrics().timer("kv.acquire").retry();
+                    campaigns.schedule(this::campaign, RETRY_MILLIS, MILLISECONDS);
+                }
+            } catch (RuntimeException e) {
+                log.warn("[election " + name + "]: unable to campaign, retrying in " + RETRY_MILLIS + "ms: " + e.getMessage());
+                campaigns.schedule(this::campaign, RETRY_MILLIS, MILLISECONDS);
+            }
+        }
+
+        private synchronized void sessionLost(String sessionId) {
+            if (sessionId.equals(leadingSession)) {
+                revoke();
+                campaigns.execute(this::campaign);
+            }
+        }
+
+        private synchronized void close() {
+            closed = true;
+            watch.close();
+            if (leadingSession != null) {
+                String sessionId = leadingSession;
+                try {
+                    consulClient.run("kv.release", consul -> consul.keyValueClient().releaseLock(key, sessionId));
+                } catch (RuntimeException e) {
+                    log.warn("[election " + name + "]: unable to step down, the leadership ends with the session: " + e.getMessage());
+                }
+                revoke();
+            }
+        }
+
+        private void revoke() {
+            leadingSession = null;
+            log.info("[election " + name + "]: leadership revoked");
+            fire(false);
+        }
+
+        private void fire(boolean elected) {
+            try {
+                if (elected) {
+                    listener.onElected(name);
+                } else {
+                    listener.onRevoked(name);
+                }
+            } catch (RuntimeException e) {
+                log.error("[election " + name + "]: leadership listener failed", e);
+            }
+        }
+    }
+}
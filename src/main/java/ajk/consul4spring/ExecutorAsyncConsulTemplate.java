@@ -0,0 +1,122 @@
+package ajk.consul4spring;
+
+import java.io.Closeable;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.util.concurrent.Executors.newSingleThreadScheduledExecutor;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+/**
+ * an {@link AsyncConsulTemplate} that runs the blocking operations of a {@link ConsulTemplate} on its own bounded
+ * thread pool
+ */
+public class ExecutorAsyncConsulTemplate implements AsyncConsulTemplate, Closeable {
+    private final ConsulTemplate consulTemplate;
+    private final long timeoutMillis;
+    private final boolean interruptOnCancel;
+    private final ThreadPoolExecutor executor;
+    private final ScheduledExecutorService timeouts;
+
+    /**
+     * @param consulTemplate    the template to run the operations with
+     * @param poolSize          the maximum number of operations running at the same time
+     * @param queueCapacity     the maximum number of operations waiting for a thread
+     * @param timeoutMillis     the time after which an operation's future fails with a timeout, 0 for no timeout
+     * @param interruptOnCancel whether a cancelled or timed out operation that is still running is interrupted
+     */
+    public ExecutorAsyncConsulTemplate(ConsulTemplate consulTemplate, int poolSize, int queueCapacity, long timeoutMillis,
+                                       boolean interruptOnCancel) {
+        this.consulTemplate = consulTemplate;
+        this.timeoutMillis = timeoutMillis;
+        this.interruptOnCancel = interruptOnCancel;
+
+        AtomicInteger threads = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(poolSize, poolSize, 60, SECONDS, new ArrayBlockingQueue<>(queueCapacity), r -> {
+            Thread thread = new Thread(r, "consul-async-" + threads.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.executor.allowCoreThreadTimeOut(true);
+        this.timeouts = newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "consul-async-timeouts");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @Override
+    public CompletableFuture<Void> write(String key, String value) {
+        return submit("write " + key, () -> {
+            consulTemplate.write(key, value);
+            return null;
+        });
+    }
+
+    @Override
+    public CompletableFuture<String> find(String key) {
+        return submit("find " + key, () -> consulTemplate.find(key));
+    }
+
+    @Override
+    public <T> CompletableFuture<T> findAndConvert(Class<T> clazz, String key) {
+        return submit("findAndConvert " + key, () -> consulTemplate.findAndConvert(clazz, key));
+    }
+
+    @Override
+    public CompletableFuture<Void> delete(String key) {
+        return submit("delete " + key, () -> {
+            consulTemplate.delete(key);
+            return null;
+        });
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+        timeouts.shutdownNow();
+    }
+
+    private <T> CompletableFuture<T> submit(String operation, Callable<T> task) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+
+        Future<?> running;
+        try {
+            running = executor.submit(() -> {
+                try {
+                    result.complete(task.call());
+                } catch (Throwable e) {
+                    result.completeExceptionally(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            result.completeExceptionally(e);
+            return result;
+        }
+
+        ScheduledFuture<?> timeout = timeoutMillis <= 0 ? null : timeouts.schedule(
+                () -> result.completeExceptionally(new TimeoutException(operation + " timed out after " + timeoutMillis + "ms")),
+                timeoutMillis, MILLISECONDS);
+
+        result.whenComplete((value, error) -> {
+            if (timeout != null) {
+                timeout.cancel(false);
+            }
+            // cancelled or timed out - stop the operation if it's still waiting or running
+            if (error != null && !running.isDone()) {
+                running.cancel(interruptOnCancel);
+            }
+        });
+
+        return result;
+    }
+}
@@ -0,0 +1,76 @@
+package ajk.consul4spring;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/**
+ * a named lock acquired with {@link DistributedLock#acquire(String, long, java.util.concurrent.TimeUnit)}, or a permit
+ * of a {@link DistributedSemaphore}. Closing it releases the lock, so it can be used in a try-with-resources block.
+ * <p>
+ * The fencing token increases every time the lock is acquired, by anyone. Pass it along with the writes made under the
+ * lock and have the receiving side reject writes with a token lower than the highest one it has seen - this protects
+ * against a holder that lost the lock (for example after a long GC pause) and doesn't know it yet.
+ */
+public class HeldLock implements AutoCloseable {
+    private final String name;
+    private final String id;
+    private final long fencingToken;
+    private final Consumer<HeldLock> releaser;
+    private final AtomicBoolean held = new AtomicBoolean(true);
+
+    public HeldLock(String name, String id, long fencingToken, Consumer<HeldLock> releaser) {
+        this.name = name;
+        this.id = id;
+        this.fencingToken = fencingToken;
+        this.releaser = releaser;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return the ID of this acquisition of the lock
+     */
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * @return a token that is higher than the token of any previous acquisition of the same lock
+     */
+    public long getFencingToken() {
+        return fencingToken;
+    }
+
+    /**
+     * @return false once the lock was released, or lost because its session was invalidated
+     */
+    public boolean isHeld() {
+        return held.get();
+    }
+
+    /**
+     * releases the lock, does nothing if it was already released or lost
+     */
+    @Override
+    public void close() {
+        if (held.compareAndSet(true, false)) {
+            releaser.accept(this);
+        }
+    }
+
+    /**
+     * marks the lock as lost without releasing it
+     *
+     * @return true if the lock was held until now
+     */
+    boolean lost() {
+        return held.compareAndSet(true, false);
+    }
+
+    @Override
+    public String toString() {
+        return name + "@" + fencingToken;
+    }
+}
@@ -0,0 +1,559 @@
+package ajk.consul4spring;
+
+import com.orbitz.consul.model.State;
+import com.orbitz.consul.model.catalog.CatalogService;
+import org.apache.commons.logging.Log;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import static com.orbitz.consul.model.State.FAIL;
+import static com.orbitz.consul.model.State.PASS;
+import static java.util.Collections.unmodifiableList;
+import static java.util.Collections.unmodifiableSet;
+import static java.util.concurrent.Executors.newSingleThreadScheduledExecutor;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static java.util.stream.Collectors.toCollection;
+import static java.util.stream.Collectors.toList;
+import static org.apache.commons.logging.LogFactory.getLog;
+
+/**
+ * an embedded, in-memory stand-in for a Consul agent, used when the consul profile isn't active. It follows Consul's
+ * semantics closely enough for an application to behave as it does against Consul: every write moves a global index
+ * and records the key's ModifyIndex, check-and-set operations and transactions are checked against those indexes, locks
+ * are held by sessions that are invalidated when they're not renewed within their TTL, and checks turn critical when
+ * their TTL passes without an update. Single key operations run concurrently, only transactions are exclusive.
+ */
+public class InMemoryConsul implements Closeable {
+    private static final Comparator<CatalogService> INSTANCE_ORDER = Comparator
+            .comparing(CatalogService::getServiceId, Comparator.nullsFirst(Comparator.<String>naturalOrder()));
+
+    private Log log = getLog(getClass());
+
+    private final ConcurrentSkipListMap<String, Entry> entries = new ConcurrentSkipListMap<>();
+    private final ReadWriteLock transactions = new ReentrantReadWriteLock();
+    private final AtomicLong index = new AtomicLong();
+    private final Object changes = new Object();
+    private final AtomicInteger waiters = new AtomicInteger();
+
+    private final Map<String, Session> sessions = new ConcurrentHashMap<>();
+    private final Map<String, Check> checks = new ConcurrentHashMap<>();
+    private final Map<String, CatalogService> instances = new ConcurrentHashMap<>();
+    private final Map<String, Set<CatalogService>> passing = new ConcurrentHashMap<>();
+    private final Map<String, List<ServiceChangeListener>> listeners = new ConcurrentHashMap<>();
+
+    private final ScheduledExecutorService reaper;
+
+    public InMemoryConsul() {
+        reaper = newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "in-memory-consul-reaper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        reaper.scheduleWithFixedDelay(this::reap, 1, 1, SECONDS);
+    }
+
+    @Override
+    public void close() {
+        reaper.shutdownNow();
+    }
+
+    /**
+     * @return the current index, it moves with every change to the key value store
+     */
+    public long getIndex() {
+        return index.get();
+    }
+
+    // key value store
+
+    /**
+     * @return the entry of a key, or null if it doesn't exist
+     */
+    public Entry get(String key) {
+        return entries.get(key);
+    }
+
+    /**
+     * @return the entries of all the keys starting with a prefix, ordered by key
+     */
+    public List<Entry> list(String prefix) {
+        return unmodifiableList(new ArrayList<>(entries.subMap(prefix, prefix + Character.MAX_VALUE).values()));
+    }
+
+    public void put(String key, String value) {
+        read(() -> set(key, value));
+    }
+
+    /**
+     * writes a value only if the key's ModifyIndex matches
+     *
+     * @param modifyIndex the ModifyIndex the key was read at, 0 to write the value only if the key doesn't exist
+     * @return true if the value was written
+     */
+    public boolean cas(String key, String value, long modifyIndex) {
+        return read(() -> {
+            boolean[] written = {false};
+            entries.compute(key, (k, old) -> {
+                if (modifyIndexOf(old) != modifyIndex) {
+                    return old;
+                }
+                written[0] = true;
+                return new Entry(k, value, old, next(), old == null ? 0 : old.lockIndex, old == null ? null : old.session);
+            });
+            if (written[0]) {
+                changed();
+            }
+            return written[0];
+        });
+    }
+
+    public void delete(String key) {
+        read(() -> remove(key));
+    }
+
+    /**
+     * deletes a key and every key under it
+     */
+    public void deleteTree(String prefix) {
+        read(() -> removeTree(prefix));
+    }
+
+    /**
+     * runs the operations atomically, either all of them are applied or none is
+     *
+     * @return false if any check-and-set, delete-check-and-set or check-index operation didn't match
+     */
+    public boolean transaction(List<KeyValueOperation> operations) {
+        transactions.writeLock().lock();
+        try {
+            for (KeyValueOperation operation : operations) {
+                switch (operation.getVerb()) {
+                    case CAS:
+                    case DELETE_CAS:
+                    case CHECK_INDEX:
+                        if (modifyIndexOf(entries.get(operation.getKey())) != operation.getIndex()) {
+                            return false;
+                        }
+                        break;
+                    default:
+                }
+            }
+
+            for (KeyValueOperation operation : operations) {
+                switch (operation.getVerb()) {
+                    case SET:
+                    case CAS:
+                        set(operation.getKey(), operation.getValue());
+                        break;
+                    case DELETE:
+                    case DELETE_CAS:
+                        remove(operation.getKey());
+                        break;
+                    case DELETE_TREE:
+                        removeTree(operation.getKey());
+                        break;
+                    default:
+                }
+            }
+
+            return true;
+        } finally {
+            transactions.writeLock().unlock();
+        }
+    }
+
+    /**
+     * waits until a key is modified, like a blocking query on the key
+     *
+     * @param modifyIndex the ModifyIndex the key was read at, 0 if it didn't exist
+     * @return the entry of the key after it changed, or as it is when the timeout passed
+     */
+    public Entry awaitChange(String key, long modifyIndex, long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        waiters.incrementAndGet();
+        try {
+            synchronized (changes) {
+                while (modifyIndexOf(entries.get(key)) == modifyIndex) {
+                    long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                    if (remaining <= 0) {
+                        break;
+                    }
+                    changes.wait(remaining);
+                }
+            }
+        } finally {
+            waiters.decrementAndGet();
+        }
+
+        return entries.get(key);
+    }
+
+    // sessions and locks
+
+    /**
+     * @param ttl the time, in seconds, the session lives without being renewed. 0 for a session that doesn't expire
+     * @return the session ID
+     */
+    public String createSession(long ttl) {
+        String id = UUID.randomUUID().toString();
+        sessions.put(id, new Session(ttl * 1000));
+        return id;
+    }
+
+    /**
+     * @return false if the session was already invalidated
+     */
+    public boolean renewSession(String id) {
+        Session session = sessions.get(id);
+        if (session == null) {
+            return false;
+        }
+
+        session.renew();
+        return true;
+    }
+
+    /**
+     * destroys a session and releases all the locks it holds
+     */
+    public void destroySession(String id) {
+        if (sessions.remove(id) != null) {
+            read(() -> {
+                entries.values().stream()
+                        .filter(entry -> id.equals(entry.session))
+                        .forEach(entry -> release(entry.key, id));
+            });
+        }
+    }
+
+    /**
+     * acquires the lock on a key with a session. The key is created if it doesn't exist
+     *
+     * @return true if the session holds the lock now
+     */
+    public boolean acquire(String key, String value, String sessionId) {
+        if (!sessions.containsKey(sessionId)) {
+            throw new IllegalStateException("session " + sessionId + " doesn't exist");
+        }
+
+        return read(() -> {
+            boolean[] acquired = {false};
+            entries.compute(key, (k, old) -> {
+                if (old != null && old.session != null) {
+                    acquired[0] = old.session.equals(sessionId);
+                    return old;
+                }
+                acquired[0] = true;
+                return new Entry(k, value == null && old != null ? old.value : value, old, next(),
+                        old == null ? 1 : old.lockIndex + 1, sessionId);
+            });
+            if (acquired[0]) {
+                changed();
+            }
+            return acquired[0];
+        });
+    }
+
+    /**
+     * @return true if the lock was held by the session and is now released
+     */
+    public boolean release(String key, String sessionId) {
+        return read(() -> {
+            boolean[] released = {false};
+            entries.computeIfPresent(key, (k, old) -> {
+                if (!sessionId.equals(old.session)) {
+                    return old;
+                }
+                released[0] = true;
+                return new Entry(k, old.value, old, next(), old.lockIndex, null);
+            });
+            if (released[0]) {
+                changed();
+            }
+            return released[0];
+        });
+    }
+
+    // checks and catalog
+
+    /**
+     * updates the state of a TTL check, creating it if it doesn't exist yet
+     *
+     * @param ttl the time, in seconds, after which the check turns critical without an update
+     */
+    public void updateCheck(String checkId, long ttl, State state, String note) {
+        checks.computeIfAbsent(checkId, id -> new Check()).update(ttl * 1000, state, note);
+        CatalogService instance = checkId.startsWith("service:") ? instances.get(checkId.substring("service:".length())) : null;
+        if (instance != null) {
+            publish(instance.getServiceName());
+        }
+    }
+
+    /**
+     * @return the state of a check, or null if it was never updated
+     */
+    public State getCheckState(String checkId) {
+        Check check = checks.get(checkId);
+        return check == null ? null : check.state;
+    }
+
+    /**
+     * @return the note of the last update of a check, or null if it was never updated
+     */
+    public String getCheckNote(String checkId) {
+        Check check = checks.get(checkId);
+        return check == null ? null : check.note;
+    }
+
+    /**
+     * registers a service instance. Like a Consul service with a TTL check, the instance is passing only while its
+     * "service:&lt;serviceId&gt;" check is, and it starts critical until the check is first passed
+     *
+     * @param ttl the TTL, in seconds, of the instance's check. 0 registers an instance that is always passing
+     */
+    public void register(CatalogService instance, long ttl) {
+        instances.put(instance.getServiceId(), instance);
+        if (ttl > 0) {
+            checks.computeIfAbsent("service:" + instance.getServiceId(), id -> new Check()).update(ttl * 1000, FAIL, null);
+        } else {
+            checks.remove("service:" + instance.getServiceId());
+        }
+        publish(instance.getServiceName());
+    }
+
+    public void deregister(String serviceId) {
+        CatalogService instance = instances.remove(serviceId);
+        checks.remove("service:" + serviceId);
+        if (instance != null) {
+            publish(instance.getServiceName());
+        }
+    }
+
+    /**
+     * @return the passing instances of a service
+     */
+    public Set<CatalogService> getInstances(String name) {
+        Set<CatalogService> current = passing.get(name);
+        return current == null ? publish(name) : current;
+    }
+
+    public void addChangeListener(String name, ServiceChangeListener listener) {
+        listeners.computeIfAbsent(name, n -> new CopyOnWriteArrayList<>()).add(listener);
+    }
+
+    public void removeChangeListener(String name, ServiceChangeListener listener) {
+        List<ServiceChangeListener> serviceListeners = listeners.get(name);
+        if (serviceListeners != null) {
+            serviceListeners.remove(listener);
+        }
+    }
+
+    private Set<CatalogService> publish(String name) {
+        Set<CatalogService> current = unmodifiableSet(instances.values().stream()
+                .filter(instance -> name.equals(instance.getServiceName()))
+                .filter(instance -> {
+                    Check check = checks.get("service:" + instance.getServiceId());
+                    return check == null || check.state == PASS;
+                })
+                .collect(toCollection(() -> new TreeSet<>(INSTANCE_ORDER))));
+
+        Set<CatalogService> previous = passing.put(name, current);
+        if (previous != null && !serviceIds(previous).equals(serviceIds(current))) {
+            for (ServiceChangeListener listener : listeners.getOrDefault(name, new ArrayList<>())) {
+                try {
+                    listener.onChange(name, current);
+                } catch (RuntimeException e) {
+                    log.error("service change listener of " + name + " failed", e);
+                }
+            }
+        }
+
+        return current;
+    }
+
+    private static List<String> serviceIds(Set<CatalogService> instances) {
+        return instances.stream().map(CatalogService::getServiceId).collect(toList());
+    }
+
+    /**
+     * invalidates the sessions and turns critical the checks whose TTL passed
+     */
+    private void reap() {
+        try {
+            long now = System.currentTimeMillis();
+            sessions.entrySet().stream()
+                    .filter(session -> session.getValue().isExpired(now))
+                    .map(Map.Entry::getKey)
+                    .collect(toList())
+                    .forEach(id -> {
+                        log.info("session " + id + " expired");
+                        destroySession(id);
+                    });
+
+            checks.forEach((id, check) -> {
+                if (check.expire(now)) {
+                    updateCheck(id, check.ttl / 1000, FAIL, "TTL expired");
+                }
+            });
+        } catch (RuntimeException e) {
+            log.error("unable to expire sessions and checks", e);
+        }
+    }
+
+    // must be called with the transactions read lock or write lock held
+
+    private void set(String key, String value) {
+        entries.compute(key, (k, old) -> new Entry(k, value, old, next(), old == null ? 0 : old.lockIndex, old == null ? null : old.session));
+        changed();
+    }
+
+    private void remove(String key) {
+        if (entries.remove(key) != null) {
+            next();
+            changed();
+        }
+    }
+
+    private void removeTree(String prefix) {
+        Map<String, Entry> tree = entries.subMap(prefix, prefix + Character.MAX_VALUE);
+        if (!tree.isEmpty()) {
+            tree.clear();
+            next();
+            changed();
+        }
+    }
+
+    private long next() {
+        return index.incrementAndGet();
+    }
+
+    private void changed() {
+        if (waiters.get() > 0) {
+            synchronized (changes) {
+                changes.notifyAll();
+            }
+        }
+    }
+
+    private static long modifyIndexOf(Entry entry) {
+        return entry == null ? 0 : entry.modifyIndex;
+    }
+
+    private void read(Runnable operation) {
+        read(() -> {
+            operation.run();
+            return null;
+        });
+    }
+
+    private <T> T read(java.util.function.Supplier<T> operation) {
+        transactions.readLock().lock();
+        try {
+            return operation.get();
+        } finally {
+            transactions.readLock().unlock();
+        }
+    }
+
+    /**
+     * an immutable key value entry with Consul's indexes
+     */
+    public static class Entry {
+        private final String key;
+        private final String value;
+        private final long createIndex;
+        private final long modifyIndex;
+        private final long lockIndex;
+        private final String session;
+
+        private Entry(String key, String value, Entry previous, long modifyIndex, long lockIndex, String session) {
+            this.key = key;
+            this.value = value;
+            this.createIndex = previous == null ? modifyIndex : previous.createIndex;
+            this.modifyIndex = modifyIndex;
+            this.lockIndex = lockIndex;
+            this.session = session;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        public String getValue() {
+            return value;
+        }
+
+        public long getCreateIndex() {
+            return createIndex;
+        }
+
+        public long getModifyIndex() {
+            return modifyIndex;
+        }
+
+        public long getLockIndex() {
+            return lockIndex;
+        }
+
+        /**
+         * @return the session holding the lock on the key, or null
+         */
+        public String getSession() {
+            return session;
+        }
+    }
+
+    private static class Session {
+        private final long ttlMillis;
+        private volatile long renewedAt = System.currentTimeMillis();
+
+        Session(long ttlMillis) {
+            this.ttlMillis = ttlMillis;
+        }
+
+        void renew() {
+            renewedAt = System.currentTimeMillis();
+        }
+
+        boolean isExpired(long now) {
+            return ttlMillis > 0 && now - renewedAt > ttlMillis;
+        }
+    }
+
+    private static class Check {
+        private volatile long ttl;
+        private volatile State state;
+        private volatile String note;
+        private volatile long updatedAt;
+
+        synchronized void update(long ttl, State state, String note) {
+            this.ttl = ttl;
+            this.state = state;
+            this.note = note;
+            this.updatedAt = System.currentTimeMillis();
+        }
+
+        /**
+         * @return true if the TTL passed since the last update and the check isn't critical yet
+         */
+        synchronized boolean expire(long now) {
+            return ttl > 0 && state != FAIL && now - updatedAt > ttl;
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package ajk.consul4spring;
+
+import com.orbitz.consul.model.catalog.CatalogService;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * what a {@link ServiceInstanceChooser} knows about one instance of a service: the requests in flight to it, an
+ * exponentially weighted moving average of its latency and its recent failures. The average decays with time rather
+ * than with the number of samples, so an instance that was slow a while ago isn't penalized forever.
+ */
+public class InstanceStats {
+    private final CatalogService instance;
+    private final long decayNanos;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+
+    // guarded by this
+    private double latencyMicros;
+    private long sampledAt;
+    private int ejections;
+
+    private volatile long ejectedUntil;
+
+    InstanceStats(CatalogService instance, long decayMillis) {
+        this.instance = instance;
+        this.decayNanos = decayMillis * 1000000;
+    }
+
+    public CatalogService getInstance() {
+        return instance;
+    }
+
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     * @return the moving average of the latency, in microseconds, 0 before the first response
+     */
+    public synchronized double getLatencyMicros() {
+        return latencyMicros;
+    }
+
+    public int getConsecutiveFailures() {
+        return consecutiveFailures.get();
+    }
+
+    /**
+     * @return true while the instance is ejected because of consecutive failures
+     */
+    public boolean isEjected() {
+        return ejectedUntil != 0 && System.currentTimeMillis() < ejectedUntil;
+    }
+
+    void started() {
+        inFlight.incrementAndGet();
+    }
+
+    /**
+     * @return the number of consecutive failures, 0 after a success
+     */
+    int completed(long latencyNanos, boolean failed) {
+        inFlight.decrementAndGet();
+        sample(latencyNanos);
+        if (!failed) {
+            consecutiveFailures.set(0);
+            synchronized (this) {
+                ejections = 0;
+            }
+            return 0;
+        }
+
+        return consecutiveFailures.incrementAndGet();
+    }
+
+    /**
+     * ejects the instance, for longer every time it's ejected again without a success in between
+     */
+    synchronized void eject(long ejectionMillis, long maxEjectionMillis) {
+        ejections++;
+        ejectedUntil = System.currentTimeMillis() + Math.min(maxEjectionMillis, ejectionMillis << Math.min(ejections - 1, 16));
+        consecutiveFailures.set(0);
+    }
+
+    private synchronized void sample(long latencyNanos) {
+        long now = System.nanoTime();
+        if (sampledAt == 0) {
+            latencyMicros = latencyNanos / 1000.0;
+        } else {
+            double weight = Math.exp(-(double) (now - sampledAt) / decayNanos);
+            latencyMicros = latencyMicros * weight + latencyNanos / 1000.0 * (1 - weight);
+        }
+        sampledAt = now;
+    }
+
+    @Override
+    public String toString() {
+        return instance.getServiceId() + "@" + instance.getServiceAddress() + ":" + instance.getServicePort();
+    }
+}
@@ -0,0 +1,87 @@
+package ajk.consul4spring;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.fasterxml.jackson.databind.DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES;
+
+/**
+ * a {@link ValueCodec} on top of a Jackson {@link ObjectMapper}. The reader and writer of every class are created once
+ * and reused, so the (de)serializers aren't looked up on every call
+ */
+public class JacksonCodec implements ValueCodec {
+    static final int JSON = 1;
+    static final int SMILE = 2;
+    static final int CBOR = 3;
+
+    private final int id;
+    private final String name;
+    private final ObjectMapper mapper;
+    private final Map<Class<?>, ObjectReader> readers = new ConcurrentHashMap<>();
+    private final Map<Class<?>, ObjectWriter> writers = new ConcurrentHashMap<>();
+
+    public JacksonCodec(int id, String name, ObjectMapper mapper) {
+        this.id = id;
+        this.name = name;
+        this.mapper = mapper;
+    }
+
+    /**
+     * @return the codec writing values as JSON text with the application's mapper
+     */
+    static JacksonCodec json(ObjectMapper mapper) {
+        return new JacksonCodec(JSON, "json", mapper);
+    }
+
+    /**
+     * @param factory the factory of a binary data format, such as Smile or CBOR
+     * @param mapper  the application's mapper. The binary mapper is as lenient with unknown properties as the
+     *                application's mapper, but doesn't have its modules - declare a codec bean with the same id and
+     *                name to replace it with a fully configured one
+     * @return the codec writing values in the binary format
+     */
+    static JacksonCodec binary(int id, String name, JsonFactory factory, ObjectMapper mapper) {
+        return new JacksonCodec(id, name, new ObjectMapper(factory)
+                .configure(FAIL_ON_UNKNOWN_PROPERTIES, mapper.isEnabled(FAIL_ON_UNKNOWN_PROPERTIES)));
+    }
+
+    @Override
+    public int getId() {
+        return id;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public byte[] encode(Object value) throws IOException {
+        Class<?> clazz = value.getClass();
+        ObjectWriter writer = writers.get(clazz);
+        if (writer == null) {
+            writer = writers.computeIfAbsent(clazz, mapper::writerFor);
+        }
+        return writer.writeValueAsBytes(value);
+    }
+
+    @Override
+    public <T> T decode(byte[] bytes, Class<T> clazz) throws IOException {
+        ObjectReader reader = readers.get(clazz);
+        if (reader == null) {
+            reader = readers.computeIfAbsent(clazz, mapper::readerFor);
+        }
+        return reader.readValue(bytes);
+    }
+
+    @Override
+    public String toString() {
+        return name + " (" + id + ")";
+    }
+}
@@ -0,0 +1,313 @@
+package ajk.consul4spring;
+
+import com.orbitz.consul.model.ConsulResponse;
+import com.orbitz.consul.model.kv.Value;
+import org.apache.commons.logging.Log;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Base64.getDecoder;
+import static java.util.Collections.emptyMap;
+import static java.util.Collections.unmodifiableMap;
+import static java.util.stream.Collectors.toList;
+import static org.apache.commons.logging.LogFactory.getLog;
+
+/**
+ * an in-memory copy of a Consul k/v subtree. The whole subtree is loaded with a single recursive read and then kept
+ * current with blocking queries on a background thread, so reads are served from memory without an HTTP round trip.
+ * Each update replaces the whole (immutable) snapshot, reads never lock.
+ * <p>
+ * Local writes are applied right away, and again on top of every snapshot until one with a higher index than the one
+ * the cache had when they were made arrives, so a snapshot that was read before a write doesn't undo it.
+ */
+public class KeyValueCache implements Closeable {
+    private Log log = getLog(getClass());
+
+    private final String prefix;
+    private final long maxStalenessMillis;
+    private final ValueEncoding encoding;
+    private final ConsulWatch<List<Value>> watch;
+
+    private volatile Map<String, Entry> entries = emptyMap();
+    private final List<LocalWrite> localWrites = new ArrayList<>();
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder staleReads = new LongAdder();
+    private final LongAdder updates = new LongAdder();
+
+    KeyValueCache(String prefix, int waitSeconds, long maxStalenessMillis, ReadConsistency consistency,
+                  ValueEncoding encoding, ConsulWatch.Query<List<Value>> query) {
+        this.prefix = prefix;
+        this.maxStalenessMillis = maxStalenessMillis;
+        this.encoding = encoding;
+        this.watch = new ConsulWatch<>("kv " + prefix, waitSeconds, consistency, query, this::update);
+    }
+
+    /**
+     * starts watching the subtree and waits for the initial load
+     *
+     * @return true if the initial load completed within the timeout
+     */
+    boolean start(long timeout, TimeUnit unit) throws InterruptedException {
+        watch.start();
+        return watch.awaitInitialized(timeout, unit);
+    }
+
+    @Override
+    public void close() {
+        watch.close();
+    }
+
+    /**
+     * @return true when the cache has been loaded and was synced with Consul recently enough to answer reads
+     */
+    boolean isUsable() {
+        if (watch.isInitialized() && watch.getMillisSinceLastSync() <= maxStalenessMillis) {
+            return true;
+        }
+
+        staleReads.increment();
+        return false;
+    }
+
+    /**
+     * @param key the full key
+     * @return the cached entry, or null if the key doesn't exist in Consul
+     */
+    Entry get(String key) {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            misses.increment();
+        } else {
+            hits.increment();
+        }
+
+        return entry;
+    }
+
+    /**
+     * @param keyPrefix the full key prefix
+     * @return the cached entries of the keys starting with the prefix, ordered by key
+     */
+    SortedMap<String, Entry> subtree(String keyPrefix) {
+        SortedMap<String, Entry> subtree = new TreeMap<>();
+        entries.forEach((key, entry) -> {
+            if (key.startsWith(keyPrefix)) {
+                subtree.put(key, entry);
+            }
+        });
+        hits.increment();
+        return subtree;
+    }
+
+    /**
+     * applies a local write so that the writer reads its own value before the watch catches up. The new ModifyIndex
+     * isn't known until then, so the entry is kept with ModifyIndex 0
+     */
+    synchronized void put(String key, String value) {
+        put(key, new Entry(value, 0));
+    }
+
+    synchronized void put(String key, Entry entry) {
+        if (key.startsWith(prefix)) {
+            apply(copy -> copy.put(key, entry));
+        }
+    }
+
+    /**
+     * applies a local delete so that the writer doesn't read the deleted key before the watch catches up
+     */
+    synchronized void remove(String key) {
+        if (entries.containsKey(key)) {
+            apply(copy -> copy.remove(key));
+        }
+    }
+
+    /**
+     * applies a local recursive delete so that the writer doesn't read the deleted keys before the watch catches up
+     */
+    synchronized void removePrefix(String keyPrefix) {
+        if (entries.keySet().stream().anyMatch(key -> key.startsWith(keyPrefix))) {
+            apply(copy -> copy.keySet().removeIf(key -> key.startsWith(keyPrefix)));
+        }
+    }
+
+    private void apply(Consumer<Map<String, Entry>> change) {
+        localWrites.add(new LocalWrite(watch.getIndex(), change));
+        Map<String, Entry> copy = new HashMap<>(entries);
+        change.accept(copy);
+        entries = unmodifiableMap(copy);
+    }
+
+    private synchronized void update(ConsulResponse<List<Value>> response) {
+        Map<String, Entry> snapshot = new HashMap<>();
+        if (response.getResponse() != null) {
+            // the chunks of large values are in the subtree too, they're only kept until their manifests are decoded
+            TreeMap<String, Value> values = new TreeMap<>();
+            response.getResponse().forEach(value -> values.put(value.getKey(), value));
+            for (Value value : values.values()) {
+                if (ValueEncoding.isChunk(value.getKey())) {
+                    continue;
+                }
+
+                try {
+                    byte[] decoded = encoding.decode(value.getValue() == null ? null : getDecoder().decode(value.getValue()),
+                            value.getFlags(), chunkPrefix -> values.subMap(value.getKey() + chunkPrefix, value.getKey() + chunkPrefix + Character.MAX_VALUE)
+                                    .values().stream().map(chunk -> getDecoder().decode(chunk.getValue())).collect(toList()));
+                    snapshot.put(value.getKey(), Entry.decoded(decoded, value.getFlags(), value.getModifyIndex()));
+                } catch (IllegalStateException e) {
+                    // the manifest and its chunks are read in the same snapshot, so this is a corrupt value
+                    log.error("[cache " + prefix + "]: unable to decode " + value.getKey() + ": " + e.getMessage());
+                }
+            }
+        }
+
+        // a snapshot with a higher index than the cache had at a local write includes the write, an older one doesn't
+        long index = response.getIndex() == null ? 0 : response.getIndex().longValue();
+        localWrites.removeIf(write -> write.seenIndex < index);
+        localWrites.forEach(write -> write.change.accept(snapshot));
+
+        entries = unmodifiableMap(snapshot);
+        updates.increment();
+        if (log.isDebugEnabled()) {
+            log.debug("[cache " + prefix + "]: loaded " + snapshot.size() + " keys at index " + response.getIndex());
+        }
+    }
+
+    /**
+     * @return the number of reads answered from memory with a value
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * @return the number of reads answered from memory for keys that don't exist
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * @return the number of reads that went to Consul because the cache wasn't loaded or was too stale
+     */
+    public long getStaleReads() {
+        return staleReads.sum();
+    }
+
+    /**
+     * @return the number of snapshots received from Consul
+     */
+    public long getUpdates() {
+        return updates.sum();
+    }
+
+    /**
+     * @return the time, in milliseconds, since the cache was last synced with Consul, or -1 if it was never loaded
+     */
+    public long getStalenessMillis() {
+        return watch.getMillisSinceLastSync();
+    }
+
+    /**
+     * @return the X-Consul-Index of the current snapshot
+     */
+    public long getIndex() {
+        return watch.getIndex();
+    }
+
+    /**
+     * @return the number of keys in the current snapshot
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    private static class LocalWrite {
+        private final long seenIndex;
+        private final Consumer<Map<String, Entry>> change;
+
+        LocalWrite(long seenIndex, Consumer<Map<String, Entry>> change) {
+            this.seenIndex = seenIndex;
+            this.change = change;
+        }
+    }
+
+    /**
+     * a cached value together with the ModifyIndex it was read at, 0 for a local write Consul didn't confirm yet. A value
+     * is either text or the bytes of an object serialized with a {@link ValueCodec}
+     */
+    static class Entry {
+        private final String value;
+        private final byte[] bytes;
+        private final int codec;
+        private final long modifyIndex;
+
+        Entry(String value, long modifyIndex) {
+            this(value, null, 0, modifyIndex);
+        }
+
+        Entry(byte[] bytes, int codec, long modifyIndex) {
+            this(null, bytes, codec, modifyIndex);
+        }
+
+        private Entry(String value, byte[] bytes, int codec, long modifyIndex) {
+            this.value = value;
+            this.bytes = bytes;
+            this.codec = codec;
+            this.modifyIndex = modifyIndex;
+        }
+
+        /**
+         * @param decoded the bytes {@link ValueEncoding#decode} returned
+         * @param flags   the KV flags of the key
+         */
+        static Entry decoded(byte[] decoded, long flags, long modifyIndex) {
+            int codec = ValueEncoding.codecOf(flags);
+            if (codec != 0 && decoded != null) {
+                return new Entry(decoded, codec, modifyIndex);
+            }
+            return new Entry(decoded == null ? null : new String(decoded, UTF_8), modifyIndex);
+        }
+
+        /**
+         * @return the text, null when the key has no value or holds a serialized object
+         */
+        String getValue() {
+            return value;
+        }
+
+        /**
+         * @return the serialized object, null when the value is text
+         */
+        byte[] getBytes() {
+            return bytes;
+        }
+
+        /**
+         * @return the id of the codec the object was serialized with, 0 when the value is text
+         */
+        int getCodec() {
+            return codec;
+        }
+
+        boolean hasValue() {
+            return value != null || bytes != null;
+        }
+
+        long getModifyIndex() {
+            return modifyIndex;
+        }
+    }
+}
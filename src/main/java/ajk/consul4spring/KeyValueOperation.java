@@ -0,0 +1,122 @@
+package ajk.consul4spring;
+
+/**
+ * a single operation of a key value transaction, see {@link ConsulTemplate#execute(java.util.List)}. Like all the
+ * {@link ConsulTemplate} keys, the keys of the operations are relative to serviceName/serviceId
+ */
+public class KeyValueOperation {
+    /**
+     * the Consul transaction verbs used by the operations
+     */
+    public enum Verb {
+        SET("set"), CAS("cas"), DELETE("delete"), DELETE_TREE("delete-tree"), DELETE_CAS("delete-cas"), CHECK_INDEX("check-index");
+
+        private final String value;
+
+        Verb(String value) {
+            this.value = value;
+        }
+
+        String value() {
+            return value;
+        }
+    }
+
+    private final Verb verb;
+    private final String key;
+    private final String value;
+    private final long index;
+
+    private KeyValueOperation(Verb verb, String key, String value, long index) {
+        this.verb = verb;
+        this.key = key;
+        this.value = value;
+        this.index = index;
+    }
+
+    /**
+     * writes a value
+     *
+     * @param key   the key
+     * @param value the value
+     * @return the operation
+     */
+    public static KeyValueOperation set(String key, String value) {
+        return new KeyValueOperation(Verb.SET, key, value, 0);
+    }
+
+    /**
+     * writes a value only if the key wasn't modified since it was read (check-and-set)
+     *
+     * @param key         the key
+     * @param value       the value
+     * @param modifyIndex the ModifyIndex the key was read at, 0 to write the value only if the key doesn't exist
+     * @return the operation
+     */
+    public static KeyValueOperation cas(String key, String value, long modifyIndex) {
+        return new KeyValueOperation(Verb.CAS, key, value, modifyIndex);
+    }
+
+    /**
+     * deletes a single key
+     *
+     * @param key the key
+     * @return the operation
+     */
+    public static KeyValueOperation delete(String key) {
+        return new KeyValueOperation(Verb.DELETE, key, null, 0);
+    }
+
+    /**
+     * deletes a key and every key under it
+     *
+     * @param prefix the key prefix
+     * @return the operation
+     */
+    public static KeyValueOperation deleteTree(String prefix) {
+        return new KeyValueOperation(Verb.DELETE_TREE, prefix, null, 0);
+    }
+
+    /**
+     * deletes a key only if it wasn't modified since it was read
+     *
+     * @param key         the key
+     * @param modifyIndex the ModifyIndex the key was read at
+     * @return the operation
+     */
+    public static KeyValueOperation deleteCas(String key, long modifyIndex) {
+        return new KeyValueOperation(Verb.DELETE_CAS, key, null, modifyIndex);
+    }
+
+    /**
+     * fails the transaction if the key was modified since it was read, without changing it
+     *
+     * @param key         the key
+     * @param modifyIndex the ModifyIndex the key was read at
+     * @return the operation
+     */
+    public static KeyValueOperation checkIndex(String key, long modifyIndex) {
+        return new KeyValueOperation(Verb.CHECK_INDEX, key, null, modifyIndex);
+    }
+
+    public Verb getVerb() {
+        return verb;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public String getValue() {
+        return value;
+    }
+
+    public long getIndex() {
+        return index;
+    }
+
+    @Override
+    public String toString() {
+        return verb.value() + " " + key + (index == 0 ? "" : "@" + index);
+    }
+}
@@ -0,0 +1,35 @@
+package ajk.consul4spring;
+
+/**
+ * elects a single leader among the instances that joined an election, for example to run a singleton batch job
+ */
+public interface LeaderElection {
+    /**
+     * joins an election. The listener is told whenever this application becomes or stops being the leader
+     *
+     * @param name     the election name
+     * @param listener the leadership listener
+     * @throws IllegalStateException if this application already joined the election
+     */
+    void join(String name, LeadershipListener listener);
+
+    /**
+     * leaves an election, giving up the leadership if this application holds it
+     *
+     * @param name the election name
+     */
+    void leave(String name);
+
+    /**
+     * @param name the election name
+     * @return true if this application is currently the leader
+     */
+    boolean isLeader(String name);
+
+    /**
+     * @param name the election name
+     * @return the unique name of the current leader, or null if there's none or this application didn't join the
+     * election
+     */
+    String getLeader(String name);
+}
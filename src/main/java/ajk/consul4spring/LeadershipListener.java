@@ -0,0 +1,22 @@
+package ajk.consul4spring;
+
+/**
+ * notified when this application gains or loses the leadership of an election it joined, see
+ * {@link LeaderElection#join(String, LeadershipListener)}. The callbacks run on the thread watching the election, they
+ * should hand long work off to another thread
+ */
+public interface LeadershipListener {
+    /**
+     * this application is now the leader
+     *
+     * @param name the election name
+     */
+    void onElected(String name);
+
+    /**
+     * this application is no longer the leader, because it left the election or lost its Consul session
+     *
+     * @param name the election name
+     */
+    void onRevoked(String name);
+}
@@ -0,0 +1,102 @@
+package ajk.consul4spring;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * picks one of the available instances of a service, see {@link ServiceInstanceChooser}
+ */
+@FunctionalInterface
+public interface LoadBalancingPolicy {
+    /**
+     * @param candidates the instances that aren't ejected, never empty
+     * @return the chosen instance
+     */
+    InstanceStats choose(List<InstanceStats> candidates);
+
+    /**
+     * @return a policy that takes the instances in turn
+     */
+    static LoadBalancingPolicy roundRobin() {
+        AtomicInteger next = new AtomicInteger();
+        return candidates -> candidates.get(Math.floorMod(next.getAndIncrement(), candidates.size()));
+    }
+
+    /**
+     * @return a policy that picks two random instances and takes the one with fewer requests in flight
+     */
+    static LoadBalancingPolicy powerOfTwoChoices() {
+        return candidates -> {
+            InstanceStats[] pair = randomPair(candidates);
+            return pair[1].getInFlight() < pair[0].getInFlight() ? pair[1] : pair[0];
+        };
+    }
+
+    /**
+     * @return a policy that picks two random instances and takes the one with the lower latency moving average,
+     * weighted by the requests in flight to it. An instance without a response yet is taken to have the mean latency
+     * of the others, so the requests in flight to it still count
+     */
+    static LoadBalancingPolicy leastLatency() {
+        return candidates -> {
+            InstanceStats[] pair = randomPair(candidates);
+            double unsampled = pair[0].getLatencyMicros() == 0 || pair[1].getLatencyMicros() == 0 ? meanLatency(candidates) : 0;
+            return cost(pair[1], unsampled) < cost(pair[0], unsampled) ? pair[1] : pair[0];
+        };
+    }
+
+    /**
+     * @param name round-robin, p2c or ewma
+     * @return the policy
+     */
+    static LoadBalancingPolicy named(String name) {
+        switch (name) {
+            case "round-robin":
+                return roundRobin();
+            case "p2c":
+                return powerOfTwoChoices();
+            case "ewma":
+                return leastLatency();
+            default:
+                throw new IllegalStateException("unknown load balancing policy " + name + ", use round-robin, p2c or ewma");
+        }
+    }
+
+    /**
+     * @param unsampledLatencyMicros the latency of an instance without a response yet
+     */
+    static double cost(InstanceStats stats, double unsampledLatencyMicros) {
+        double latency = stats.getLatencyMicros();
+        return (latency == 0 ? unsampledLatencyMicros : latency) * (stats.getInFlight() + 1);
+    }
+
+    /**
+     * @return the mean latency of the instances that had a response, 1 when none had one yet so that only the
+     * requests in flight count
+     */
+    static double meanLatency(List<InstanceStats> candidates) {
+        double sum = 0;
+        int sampled = 0;
+        for (InstanceStats stats : candidates) {
+            double latency = stats.getLatencyMicros();
+            if (latency != 0) {
+                sum += latency;
+                sampled++;
+            }
+        }
+        return sampled == 0 ? 1 : sum / sampled;
+    }
+
+    static InstanceStats[] randomPair(List<InstanceStats> candidates) {
+        int size = candidates.size();
+        if (size == 1) {
+            return new InstanceStats[]{candidates.get(0), candidates.get(0)};
+        }
+
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int first = random.nextInt(size);
+        int second = random.nextInt(size - 1);
+        return new InstanceStats[]{candidates.get(first), candidates.get(second >= first ? second + 1 : second)};
+    }
+}
@@ -0,0 +1,486 @@
+package ajk.consul4spring;
+
+import org.apache.commons.logging.Log;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+import static java.nio.channels.FileChannel.MapMode.READ_WRITE;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+import static java.util.concurrent.Executors.newSingleThreadScheduledExecutor;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.apache.commons.logging.LogFactory.getLog;
+
+/**
+ * a durable key value store on the local disk, for single node deployments that don't have Consul. Writes are appended
+ * to a log of memory-mapped segment files and the values are read back from the mapped segments, only the key index is
+ * kept on the heap.
+ * <p>
+ * Every write, including a whole transaction, is a single record protected by a checksum, so after a crash the store
+ * recovers up to the last complete record. The segments are flushed to disk in the background every fsyncMillis, a
+ * write is durable once the next flush ran. When most of the log is overwritten or deleted values the live values of the
+ * older segments are copied to the end of the log and the older segments are deleted.
+ * <p>
+ * Like Consul, every key has a ModifyIndex - the index of the record that wrote it - so check-and-set works the same.
+ */
+public class LocalStore implements Closeable {
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    private static final byte SET = 1;
+    private static final byte DELETE = 2;
+    private static final byte DELETE_TREE = 3;
+
+    // length, checksum, index and number of operations
+    private static final int RECORD_HEADER = 4 + 4 + 8 + 4;
+
+    private Log log = getLog(getClass());
+
+    private final Path directory;
+    private final int segmentSize;
+    private final long fsyncMillis;
+    private final double compactionRatio;
+
+    private final ConcurrentSkipListMap<String, Location> keys = new ConcurrentSkipListMap<>();
+    private final ConcurrentSkipListMap<Long, Segment> segments = new ConcurrentSkipListMap<>();
+    private final AtomicLong liveBytes = new AtomicLong();
+    private final ScheduledExecutorService background;
+
+    // guarded by this
+    private Segment active;
+    private long lastIndex;
+    private boolean dirty;
+
+    /**
+     * opens the store in a directory, creating it if needed, and recovers the key index from the log
+     *
+     * @param segmentSize     the size, in bytes, of a log segment
+     * @param fsyncMillis     the interval, in milliseconds, in which written records are flushed to disk. 0 flushes
+     *                        every write before it returns
+     * @param compactionRatio the part of the log taken by overwritten and deleted values above which it's compacted
+     */
+    public LocalStore(Path directory, int segmentSize, long fsyncMillis, double compactionRatio) throws IOException {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.fsyncMillis = fsyncMillis;
+        this.compactionRatio = compactionRatio;
+
+        Files.createDirectories(directory);
+        recover();
+
+        background = newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "local-store-" + directory.getFileName());
+            thread.setDaemon(true);
+            return thread;
+        });
+        if (fsyncMillis > 0) {
+            background.scheduleWithFixedDelay(this::flush, fsyncMillis, fsyncMillis, MILLISECONDS);
+        }
+        background.scheduleWithFixedDelay(this::compactIfNeeded, 10, 10, SECONDS);
+    }
+
+    /**
+     * @return the value of a key, or null if it doesn't exist
+     */
+    public String get(String key) {
+        Location location = keys.get(key);
+        return location == null ? null : location.read();
+    }
+
+    /**
+     * @return the keys starting with a prefix, ordered
+     */
+    public List<String> keys(String prefix) {
+        return new ArrayList<>(keys.subMap(prefix, prefix + Character.MAX_VALUE).keySet());
+    }
+
+    /**
+     * @return the ModifyIndex of a key, or 0 if it doesn't exist
+     */
+    public long getModifyIndex(String key) {
+        Location location = keys.get(key);
+        return location == null ? 0 : location.modifyIndex;
+    }
+
+    public synchronized void put(String key, String value) {
+        append(++lastIndex, Operation.of(SET, key, value));
+    }
+
+    public synchronized void delete(String key) {
+        append(++lastIndex, Operation.of(DELETE, key, null));
+    }
+
+    /**
+     * deletes a key and every key under it
+     */
+    public synchronized void deleteTree(String prefix) {
+        append(++lastIndex, Operation.of(DELETE_TREE, prefix, null));
+    }
+
+    /**
+     * runs the operations atomically, either all of them are written or none is
+     *
+     * @return false if any check-and-set, delete-check-and-set or check-index operation didn't match
+     */
+    public synchronized boolean transaction(List<KeyValueOperation> operations) {
+        List<Operation> writes = new ArrayList<>();
+        for (KeyValueOperation operation : operations) {
+            switch (operation.getVerb()) {
+                case CAS:
+                case DELETE_CAS:
+                case CHECK_INDEX:
+                    if (getModifyIndex(operation.getKey()) != operation.getIndex()) {
+                        return false;
+                    }
+                    break;
+                default:
+            }
+
+            switch (operation.getVerb()) {
+                case SET:
+                case CAS:
+                    writes.add(new Operation(SET, operation.getKey(), operation.getValue()));
+                    break;
+                case DELETE:
+                case DELETE_CAS:
+                    writes.add(new Operation(DELETE, operation.getKey(), null));
+                    break;
+                case DELETE_TREE:
+                    writes.add(new Operation(DELETE_TREE, operation.getKey(), null));
+                    break;
+                default:
+            }
+        }
+
+        if (!writes.isEmpty()) {
+            append(++lastIndex, writes);
+        }
+        return true;
+    }
+
+    /**
+     * copies the live values of all the segments but the last one to the end of the log, and deletes those segments
+     */
+    public void compact() {
+        List<Segment> sealed;
+        synchronized (this) {
+            sealed = new ArrayList<>(segments.headMap(active.id).values());
+        }
+        if (sealed.isEmpty()) {
+            return;
+        }
+
+        long started = System.currentTimeMillis();
+        for (Map.Entry<String, Location> entry : keys.entrySet()) {
+            if (sealed.contains(entry.getValue().segment)) {
+                synchronized (this) {
+                    // the key could have been written again since it was read, only the value in the index is copied
+                    Location location = keys.get(entry.getKey());
+                    if (location != null && sealed.contains(location.segment)) {
+                        append(location.modifyIndex, Operation.of(SET, entry.getKey(), location.read()));
+                    }
+                }
+            }
+        }
+
+        synchronized (this) {
+            flush();
+            for (Segment segment : sealed) {
+                segments.remove(segment.id);
+                segment.close();
+                try {
+                    Files.deleteIfExists(segment.path);
+                } catch (IOException e) {
+                    log.warn("unable to delete " + segment.path, e);
+                }
+            }
+        }
+
+        log.info("compacted " + sealed.size() + " segments of " + directory + " in " + (System.currentTimeMillis() - started) + "ms");
+    }
+
+    /**
+     * flushes the written records to disk
+     */
+    public synchronized void flush() {
+        if (dirty) {
+            dirty = false;
+            active.buffer.force();
+        }
+    }
+
+    @Override
+    public void close() {
+        background.shutdownNow();
+        synchronized (this) {
+            flush();
+            segments.values().forEach(Segment::close);
+        }
+    }
+
+    private void compactIfNeeded() {
+        try {
+            long written = segments.values().stream().mapToLong(segment -> segment.position).sum();
+            if (segments.size() > 1 && written - liveBytes.get() > compactionRatio * written) {
+                compact();
+            }
+        } catch (RuntimeException e) {
+            log.error("unable to compact " + directory, e);
+        }
+    }
+
+    // must be called while synchronized on this
+    private void append(long index, List<Operation> operations) {
+        ByteBuffer record = encode(index, operations);
+        if (active.buffer.capacity() - active.position < record.capacity() + 4) {
+            roll(record.capacity() + 4);
+        }
+
+        int start = active.position;
+        ByteBuffer target = active.buffer.duplicate();
+        target.position(start);
+        target.put(record);
+        // a zero length after the last record marks the end of the log
+        if (target.remaining() >= 4) {
+            target.putInt(0);
+        }
+        active.position = start + record.capacity();
+        apply(active, start, record);
+        lastIndex = Math.max(lastIndex, index);
+
+        dirty = true;
+        if (fsyncMillis == 0) {
+            flush();
+        }
+    }
+
+    private void roll(int minimumSize) {
+        flush();
+        try {
+            active = open(active == null ? 0 : active.id + 1, Math.max(segmentSize, minimumSize));
+        } catch (IOException e) {
+            throw new IllegalStateException("unable to create a segment in " + directory, e);
+        }
+    }
+
+    private Segment open(long id, int size) throws IOException {
+        Segment segment = new Segment(id, directory.resolve(SEGMENT_PREFIX + String.format("%016d", id) + SEGMENT_SUFFIX), size);
+        segments.put(id, segment);
+        return segment;
+    }
+
+    private synchronized void recover() throws IOException {
+        List<Long> ids = new ArrayList<>();
+        try (Stream<Path> files = Files.list(directory)) {
+            files.map(file -> file.getFileName().toString())
+                    .filter(name -> name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX))
+                    .map(name -> Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())))
+                    .sorted()
+                    .forEach(ids::add);
+        }
+
+        for (long id : ids) {
+            Segment segment = open(id, (int) Files.size(directory.resolve(SEGMENT_PREFIX + String.format("%016d", id) + SEGMENT_SUFFIX)));
+            ByteBuffer buffer = segment.buffer.duplicate();
+            while (buffer.remaining() >= RECORD_HEADER) {
+                int start = buffer.position();
+                int length = buffer.getInt(start);
+                if (length < RECORD_HEADER - 4 || length > buffer.remaining() - 4) {
+                    break;
+                }
+
+                ByteBuffer record = buffer.slice();
+                record.limit(length + 4);
+                if (!verify(record)) {
+                    log.warn("ignoring a partially written record at " + start + " of " + segment.path);
+                    break;
+                }
+
+                apply(segment, start, record);
+                buffer.position(start + length + 4);
+                segment.position = buffer.position();
+            }
+            active = segment;
+        }
+
+        if (active == null) {
+            roll(0);
+        }
+        log.info("recovered " + keys.size() + " keys from " + segments.size() + " segments of " + directory);
+    }
+
+    /**
+     * updates the key index with the operations of a record written at a position of a segment
+     */
+    private void apply(Segment segment, int start, ByteBuffer record) {
+        ByteBuffer buffer = record.duplicate();
+        buffer.position(8);
+        long index = buffer.getLong();
+        int count = buffer.getInt();
+        lastIndex = Math.max(lastIndex, index);
+
+        for (int i = 0; i < count; i++) {
+            int operationStart = buffer.position();
+            byte type = buffer.get();
+            byte[] key = new byte[buffer.getInt()];
+            buffer.get(key);
+            int valueLength = buffer.getInt();
+            int valueOffset = buffer.position();
+            if (valueLength > 0) {
+                buffer.position(valueOffset + valueLength);
+            }
+
+            String name = new String(key, UTF_8);
+            switch (type) {
+                case SET:
+                    forget(keys.put(name, new Location(segment, start + valueOffset, valueLength, index,
+                            buffer.position() - operationStart)));
+                    liveBytes.addAndGet(buffer.position() - operationStart);
+                    break;
+                case DELETE:
+                    forget(keys.remove(name));
+                    break;
+                case DELETE_TREE:
+                    Map<String, Location> tree = keys.subMap(name, name + Character.MAX_VALUE);
+                    tree.values().forEach(this::forget);
+                    tree.clear();
+                    break;
+                default:
+                    throw new IllegalStateException("unknown operation " + type + " in " + segment.path);
+            }
+        }
+    }
+
+    private void forget(Location location) {
+        if (location != null) {
+            liveBytes.addAndGet(-location.size);
+        }
+    }
+
+    private static ByteBuffer encode(long index, List<Operation> operations) {
+        int size = RECORD_HEADER;
+        for (Operation operation : operations) {
+            size += 1 + 4 + operation.key.length + 4 + (operation.value == null ? 0 : operation.value.length);
+        }
+
+        ByteBuffer record = ByteBuffer.allocate(size);
+        record.putInt(size - 4);
+        record.putInt(0);
+        record.putLong(index);
+        record.putInt(operations.size());
+        for (Operation operation : operations) {
+            record.put(operation.type);
+            record.putInt(operation.key.length);
+            record.put(operation.key);
+            record.putInt(operation.value == null ? -1 : operation.value.length);
+            if (operation.value != null) {
+                record.put(operation.value);
+            }
+        }
+        record.putInt(4, checksum(record));
+        record.flip();
+        return record;
+    }
+
+    private static boolean verify(ByteBuffer record) {
+        return record.getInt(4) == checksum(record);
+    }
+
+    /**
+     * @return the checksum of everything in the record after the checksum itself
+     */
+    private static int checksum(ByteBuffer record) {
+        ByteBuffer content = record.duplicate();
+        content.position(8);
+        content.limit(record.getInt(0) + 4);
+        CRC32 crc = new CRC32();
+        crc.update(content);
+        return (int) crc.getValue();
+    }
+
+    private static class Operation {
+        private final byte type;
+        private final byte[] key;
+        private final byte[] value;
+
+        Operation(byte type, String key, String value) {
+            this.type = type;
+            this.key = key.getBytes(UTF_8);
+            this.value = value == null ? null : value.getBytes(UTF_8);
+        }
+
+        static List<Operation> of(byte type, String key, String value) {
+            List<Operation> operations = new ArrayList<>();
+            operations.add(new Operation(type, key, value));
+            return operations;
+        }
+    }
+
+    private static class Location {
+        private final Segment segment;
+        private final int offset;
+        private final int length;
+        private final long modifyIndex;
+        private final int size;
+
+        Location(Segment segment, int offset, int length, long modifyIndex, int size) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+            this.modifyIndex = modifyIndex;
+            this.size = size;
+        }
+
+        String read() {
+            if (length < 0) {
+                return null;
+            }
+
+            byte[] value = new byte[length];
+            ByteBuffer buffer = segment.buffer.duplicate();
+            buffer.position(offset);
+            buffer.get(value);
+            return new String(value, UTF_8);
+        }
+    }
+
+    private static class Segment {
+        private final long id;
+        private final Path path;
+        private final FileChannel channel;
+        private final MappedByteBuffer buffer;
+        private volatile int position;
+
+        Segment(long id, Path path, int size) throws IOException {
+            this.id = id;
+            this.path = path;
+            channel = FileChannel.open(path, CREATE, READ, WRITE);
+            buffer = channel.map(READ_WRITE, 0, size);
+        }
+
+        void close() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                getLog(getClass()).warn("unable to close " + path, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,178 @@
+package ajk.consul4spring;
+
+import com.google.common.base.Optional;
+import com.orbitz.consul.model.kv.Value;
+import org.apache.commons.logging.Log;
+
+import java.io.Closeable;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import static com.orbitz.consul.option.QueryOptionsBuilder.builder;
+import static java.lang.Math.max;
+import static java.lang.Math.min;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static org.apache.commons.logging.LogFactory.getLog;
+
+/**
+ * acquires Consul locks with the shared session of a {@link SessionManager}. Because all the locks of the application
+ * share one session, and Consul lets a session re-acquire a lock it already holds, a local guard per key makes sure only
+ * one caller in this application holds a lock at a time. While a lock is held by someone else the caller waits with
+ * blocking queries on the lock key, so it's woken up as soon as the key changes.
+ */
+@SuppressWarnings("Guava")
+class LockRegistry implements Closeable {
+    /**
+     * the longest single blocking query, this should stay below the HTTP read timeout of the Consul client
+     */
+    private static final int MAX_WAIT_SECONDS = 55;
+
+    /**
+     * the pause between attempts while a lock is free but can't be acquired yet, for example during Consul's lock-delay
+     * after the session of the previous holder was invalidated
+     */
+    private static final long RETRY_MILLIS = 250;
+
+    private Log log = getLog(getClass());
+
+    private final ConsulClientManager consulClient;
+    private final SessionManager sessions;
+    private final Map<String, Semaphore> guards = new ConcurrentHashMap<>();
+    private final Map<String, Holding> holdings = new ConcurrentHashMap<>();
+
+    LockRegistry(ConsulClientManager consulClient, SessionManager sessions) {
+        this.consulClient = consulClient;
+        this.sessions = sessions;
+        sessions.addSessionLostListener(this::sessionLost);
+    }
+
+    /**
+     * @param name    the lock name, for logging and for the returned lock
+     * @param key     the full lock key
+     * @param timeout the maximum time to wait for the lock, 0 to try only once. Waits are rounded to whole seconds, so
+     *                this may be overshot by up to a second
+     * @return the lock, or null if it could not be acquired within the timeout
+     */
+    HeldLock acquire(String name, String key, long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        Semaphore guard = guards.computeIfAbsent(key, k -> new Semaphore(1));
+        if (!guard.tryAcquire(timeout, unit)) {
+            return null;
+        }
+
+        HeldLock lock = null;
+        try {
+            lock = acquireInConsul(name, key, deadline);
+            return lock;
+        } finally {
+            if (lock == null) {
+                guard.release();
+            }
+        }
+    }
+
+    /**
+     * releases a lock by its ID, does nothing if it's not held
+     */
+    void release(String lockId) {
+        Holding holding = holdings.get(lockId);
+        if (holding != null) {
+            holding.lock.close();
+        }
+    }
+
+    /**
+     * forgets the held locks, call it after the session was destroyed - that releases all its locks in consul
+     */
+    @Override
+    public void close() {
+        holdings.values().forEach(holding -> {
+            holding.lock.lost();
+            forget(holding);
+        });
+    }
+
+    private HeldLock acquireInConsul(String name, String key, long deadline) throws InterruptedException {
+        while (true) {
+            if (Thread.interrupted()) {
+                throw new InterruptedException("interrupted while waiting for lock " + name);
+            }
+
+            String sessionId = sessions.getSessionId();
+            if (consulClient.execute("kv.acquire", consul -> consul.keyValueClient().acquireLock(key, sessionId))) {
+                Optional<Value> value = consulClient.execute("kv.get", consul -> consul.keyValueClient().getValue(key));
+                if (value.isPresent() && sessionId.equals(value.get().getSession())) {
+                    return hold(name, key, sessionId, value.get().getLockIndex());
+                }
+            }
+
+            long remainingMillis = NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (remainingMillis <= 0) {
+                return null;
+            }
+
+            Optional<Value> current = consulClient.execute("kv.get", consul -> consul.keyValueClient().getValue(key));
+            consulClient.getMetrics().timer("kv.acquire").retry();
+            if (!current.isPresent() || current.get().getSession() == null) {
+                Thread.sleep(min(RETRY_MILLIS, remainingMillis));
+            } else {
+                int waitSeconds = (int) min(MAX_WAIT_SECONDS, max(1, remainingMillis / 1000));
+                long index = current.get().getModifyIndex();
+                consulClient.watch("kv.watch", consul -> consul.keyValueClient().getValue(key, builder().blockSeconds(waitSeconds, index).build()));
+            }
+        }
+    }
+
+    private HeldLock hold(String name, String key, String sessionId, long lockIndex) {
+        HeldLock lock = new HeldLock(name, key + "#" + lockIndex, lockIndex, this::release);
+        holdings.put(lock.getId(), new Holding(lock, key, sessionId));
+        if (log.isDebugEnabled()) {
+            log.debug("lock " + lock + " acquired with session " + sessionId);
+        }
+        return lock;
+    }
+
+    private void release(HeldLock lock) {
+        Holding holding = holdings.get(lock.getId());
+        if (holding == null) {
+            return;
+        }
+
+        try {
+            consulClient.run("kv.release", consul -> consul.keyValueClient().releaseLock(holding.key, holding.sessionId));
+        } finally {
+            forget(holding);
+        }
+    }
+
+    private void sessionLost(String sessionId) {
+        holdings.values().stream()
+                .filter(holding -> holding.sessionId.equals(sessionId))
+                .forEach(holding -> {
+                    if (holding.lock.lost()) {
+                        log.warn("lock " + holding.lock + " was lost with session " + sessionId);
+                    }
+                    forget(holding);
+                });
+    }
+
+    private void forget(Holding holding) {
+        if (holdings.remove(holding.lock.getId()) != null) {
+            guards.get(holding.key).release();
+        }
+    }
+
+    private static class Holding {
+        private final HeldLock lock;
+        private final String key;
+        private final String sessionId;
+
+        Holding(HeldLock lock, String key, String sessionId) {
+            this.lock = lock;
+            this.key = key;
+            this.sessionId = sessionId;
+        }
+    }
+}
@@ -0,0 +1,294 @@
+package ajk.consul4spring;
+
+import com.orbitz.consul.model.State;
+import org.apache.commons.logging.Log;
+
+import java.io.Closeable;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+import static com.orbitz.consul.model.State.FAIL;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.apache.commons.logging.LogFactory.getLog;
+
+/**
+ * TTL checks that keep themselves alive. The health supplier of each check is evaluated every interval on a bounded
+ * pool, and its result is only reported when the state or the note changed, or when the TTL needs refreshing - when
+ * waiting for the next evaluation would let more than half of the TTL pass since the last report.
+ * <p>
+ * The evaluations are scheduled on a {@link TimingWheel} shared by all the checks. Checks due on the same tick are
+ * submitted as one batch, and every evaluation is brought forward by a random jitter of up to a tenth of its interval
+ * so checks registered together don't keep hitting the agent together. A check is evaluated by one thread at a time,
+ * an evaluation that doesn't finish within the timeout is interrupted and fails the check. The latest result of each
+ * check is kept and available through {@link #getResult(String)}.
+ */
+public class ManagedChecks implements Closeable {
+    private static final long TICK_MILLIS = 100;
+    private static final int WHEEL_SIZE = 512;
+
+    /**
+     * receives the results that have to be sent to the agent
+     */
+    @FunctionalInterface
+    public interface Reporter {
+        void report(String checkName, long ttl, State state, String note);
+    }
+
+    private Log log = getLog(getClass());
+
+    private final Reporter reporter;
+    private final long defaultIntervalMillis;
+    private final long defaultTimeoutMillis;
+    private final Map<String, Check> checks = new ConcurrentHashMap<>();
+    private final TimingWheel<Runnable> wheel;
+    private final ThreadPoolExecutor evaluators;
+
+    private final LongAdder evaluated = new LongAdder();
+    private final LongAdder reported = new LongAdder();
+    private final LongAdder timedOut = new LongAdder();
+
+    /**
+     * checks evaluated on 4 threads, every 10 seconds with a 5 seconds timeout unless they're registered with their own
+     */
+    public ManagedChecks(Reporter reporter) {
+        this(reporter, 4, 10000, 5000);
+    }
+
+    /**
+     * @param threads               the number of threads the health suppliers are evaluated on
+     * @param defaultIntervalMillis the evaluation interval of checks registered without one
+     * @param defaultTimeoutMillis  the evaluation timeout of checks registered without one
+     */
+    public ManagedChecks(Reporter reporter, int threads, long defaultIntervalMillis, long defaultTimeoutMillis) {
+        this.reporter = reporter;
+        this.defaultIntervalMillis = defaultIntervalMillis;
+        this.defaultTimeoutMillis = defaultTimeoutMillis;
+        this.wheel = new TimingWheel<>("consul-managed-checks", TICK_MILLIS, WHEEL_SIZE, due -> due.forEach(Runnable::run));
+        this.evaluators = new ThreadPoolExecutor(threads, threads, 0, MILLISECONDS, new ArrayBlockingQueue<>(1024), r -> {
+            Thread thread = new Thread(r, "consul-check-evaluator");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * starts evaluating a check with the default interval (or half the TTL when it's shorter) and timeout, replacing a
+     * previous registration of the same name
+     *
+     * @param ttl    the TTL of the check in seconds, at least 1
+     * @param health a thrown exception fails the check with the exception as the note
+     */
+    public void register(String checkName, long ttl, Supplier<CheckResult> health) {
+        register(checkName, ttl, Math.min(defaultIntervalMillis, ttl * 1000 / 2), defaultTimeoutMillis, health);
+    }
+
+    /**
+     * starts evaluating a check, replacing a previous registration of the same name. The check is first evaluated
+     * within a tenth of its interval
+     *
+     * @param ttl            the TTL of the check in seconds, at least 1
+     * @param intervalMillis the time between evaluations, at most half the TTL
+     * @param timeoutMillis  the time an evaluation may take before the check is failed
+     * @param health         a thrown exception fails the check with the exception as the note
+     */
+    public void register(String checkName, long ttl, long intervalMillis, long timeoutMillis, Supplier<CheckResult> health) {
+        if (ttl < 1) {
+            throw new IllegalStateException("the TTL of check " + checkName + " must be at least 1 second, got " + ttl);
+        }
+        if (intervalMillis < TICK_MILLIS || intervalMillis > ttl * 1000 / 2) {
+            throw new IllegalStateException("the interval of check " + checkName + " must be between " + TICK_MILLIS +
+                    "ms and half its TTL, got " + intervalMillis + "ms");
+        }
+
+        Check check = new Check(checkName, ttl, intervalMillis, timeoutMillis, health);
+        Check previous = checks.put(checkName, check);
+        if (previous != null) {
+            previous.cancel();
+        }
+        check.timeout = wheel.schedule(() -> evaluate(check), jitter(intervalMillis));
+    }
+
+    /**
+     * stops evaluating a check, the check expires in Consul after its TTL
+     */
+    public void unregister(String checkName) {
+        Check check = checks.remove(checkName);
+        if (check != null) {
+            check.cancel();
+        }
+    }
+
+    /**
+     * @return the latest result of a check, or null when the check isn't managed or wasn't evaluated yet
+     */
+    public CheckResult getResult(String checkName) {
+        Check check = checks.get(checkName);
+        return check == null ? null : check.result;
+    }
+
+    /**
+     * @return the number of managed checks
+     */
+    public int size() {
+        return checks.size();
+    }
+
+    /**
+     * @return the number of evaluations of the health suppliers
+     */
+    public long getEvaluated() {
+        return evaluated.sum();
+    }
+
+    /**
+     * @return the number of results reported to the agent
+     */
+    public long getReported() {
+        return reported.sum();
+    }
+
+    /**
+     * @return the number of evaluations that didn't finish in time
+     */
+    public long getTimedOut() {
+        return timedOut.sum();
+    }
+
+    @Override
+    public void close() {
+        wheel.close();
+        evaluators.shutdownNow();
+    }
+
+    /**
+     * runs on the wheel thread and submits the evaluation. Its timeout starts when it starts running, so an evaluation
+     * waiting in the queue for a free thread isn't timed out
+     */
+    private void evaluate(Check check) {
+        if (checks.get(check.name) != check) {
+            // unregistered or replaced while it was due
+            return;
+        }
+
+        if (check.running.get()) {
+            // a timed out evaluation that ignored the interrupt is still running, the check stays failed
+            schedule(check);
+            return;
+        }
+
+        Evaluation evaluation = new Evaluation();
+        try {
+            evaluation.future = evaluators.submit(() -> {
+                check.running.set(true);
+                evaluation.timeout = wheel.schedule(() -> {
+                    if (complete(check, evaluation, CheckResult.fail("timed out after " + check.timeoutMillis + "ms"))) {
+                        timedOut.increment();
+                        Future<?> future = evaluation.future;
+                        if (future != null) {
+                            future.cancel(true);
+                        }
+                    }
+                }, check.timeoutMillis);
+
+                CheckResult result;
+                try {
+                    result = check.health.get();
+                    result = result == null ? CheckResult.fail("no result") : result;
+                } catch (RuntimeException e) {
+                    log.warn("[check " + check.name + "]: health evaluation failed: " + e);
+                    result = new CheckResult(FAIL, e.toString());
+                } finally {
+                    check.running.set(false);
+                }
+                if (complete(check, evaluation, result)) {
+                    evaluation.timeout.cancel();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            log.warn("[check " + check.name + "]: too many pending evaluations, skipping this one");
+            schedule(check);
+        }
+    }
+
+    /**
+     * records the result of an evaluation, reports it when needed and schedules the next evaluation. Only the first of
+     * the evaluation and its timeout gets here
+     *
+     * @return false when the evaluation was already completed
+     */
+    private boolean complete(Check check, Evaluation evaluation, CheckResult result) {
+        if (!evaluation.done.compareAndSet(false, true)) {
+            return false;
+        }
+
+        evaluated.increment();
+        CheckResult previous = check.result;
+        check.result = result;
+        long now = System.currentTimeMillis();
+        boolean changed = previous == null || previous.getState() != result.getState() || !Objects.equals(previous.getNote(), result.getNote());
+        // report now if waiting for the next evaluation lets more than half of the TTL pass since the last report
+        boolean refreshDue = now + check.intervalMillis - check.reportedAt >= check.ttl * 1000 / 2;
+        if ((changed || refreshDue) && checks.get(check.name) == check) {
+            try {
+                reporter.report(check.name, check.ttl, result.getState(), result.getNote());
+                check.reportedAt = now;
+                reported.increment();
+            } catch (RuntimeException e) {
+                log.error("[check " + check.name + "]: unable to report " + result, e);
+            }
+        }
+
+        schedule(check);
+        return true;
+    }
+
+    private void schedule(Check check) {
+        if (checks.get(check.name) == check) {
+            check.timeout = wheel.schedule(() -> evaluate(check), check.intervalMillis - jitter(check.intervalMillis));
+        }
+    }
+
+    private static long jitter(long period) {
+        return ThreadLocalRandom.current().nextLong(period / 10 + 1);
+    }
+
+    private static class Evaluation {
+        private final AtomicBoolean done = new AtomicBoolean();
+        private volatile Future<?> future;
+        private volatile TimingWheel.Timeout<Runnable> timeout;
+    }
+
+    private static class Check {
+        private final String name;
+        private final long ttl;
+        private final long intervalMillis;
+        private final long timeoutMillis;
+        private final Supplier<CheckResult> health;
+        private final AtomicBoolean running = new AtomicBoolean();
+        private volatile TimingWheel.Timeout<Runnable> timeout;
+        private volatile CheckResult result;
+        private volatile long reportedAt;
+
+        Check(String name, long ttl, long intervalMillis, long timeoutMillis, Supplier<CheckResult> health) {
+            this.name = name;
+            this.ttl = ttl;
+            this.intervalMillis = intervalMillis;
+            this.timeoutMillis = timeoutMillis;
+            this.health = health;
+        }
+
+        void cancel() {
+            timeout.cancel();
+        }
+    }
+}
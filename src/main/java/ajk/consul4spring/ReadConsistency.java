@@ -0,0 +1,48 @@
+package ajk.consul4spring;
+
+import com.orbitz.consul.option.ConsistencyMode;
+
+/**
+ * the consistency of a Consul read, see <a href="https://www.consul.io/docs/agent/http.html">consistency modes</a>
+ */
+public enum ReadConsistency {
+    /**
+     * any server answers, possibly with data that is behind the leader. Reads spread across all the servers. A stale
+     * read that is further behind than consul.maxStalenessMillis is repeated with the default consistency
+     */
+    STALE(ConsistencyMode.STALE),
+
+    /**
+     * the leader answers, which is consistent except for a short window after a leader change
+     */
+    DEFAULT(ConsistencyMode.DEFAULT),
+
+    /**
+     * the leader answers after verifying with a quorum that it's still the leader
+     */
+    CONSISTENT(ConsistencyMode.CONSISTENT);
+
+    private final ConsistencyMode mode;
+
+    ReadConsistency(ConsistencyMode mode) {
+        this.mode = mode;
+    }
+
+    ConsistencyMode toConsistencyMode() {
+        return mode;
+    }
+
+    /**
+     * @return the query parameter that selects this consistency in the Consul HTTP API, null for the default one
+     */
+    String toQueryParameter() {
+        return this == DEFAULT ? null : name().toLowerCase();
+    }
+
+    /**
+     * @return true when a read made with this consistency also satisfies the other consistency
+     */
+    boolean satisfies(ReadConsistency other) {
+        return other != CONSISTENT && compareTo(other) >= 0;
+    }
+}
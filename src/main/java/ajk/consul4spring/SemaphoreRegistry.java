@@ -0,0 +1,260 @@
+package ajk.consul4spring;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.orbitz.consul.model.ConsulResponse;
+import com.orbitz.consul.model.kv.Value;
+import org.apache.commons.logging.Log;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static ajk.consul4spring.KeyValueOperation.cas;
+import static java.lang.Math.max;
+import static java.lang.Math.min;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Base64.getDecoder;
+import static java.util.Collections.emptyList;
+import static java.util.Collections.singletonList;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.stream.Collectors.toList;
+import static java.util.stream.Collectors.toSet;
+import static org.apache.commons.logging.LogFactory.getLog;
+
+/**
+ * implements Consul's semaphore recipe with the shared session of a {@link SessionManager}. Every acquisition registers
+ * a contender key under the semaphore prefix, locked with the session, and then adds itself to the holders listed in
+ * the prefix's .lock key with a check-and-set. Holders whose contender key lost its session are pruned by whoever
+ * updates the .lock key next, so the permits of a dead application come back when its session expires. While all the
+ * permits are held the caller waits with blocking queries on the prefix.
+ */
+@SuppressWarnings("Guava")
+class SemaphoreRegistry implements Closeable {
+    /**
+     * the longest single blocking query, this should stay below the HTTP read timeout of the Consul client
+     */
+    private static final int MAX_WAIT_SECONDS = 55;
+
+    private static final String LOCK = ".lock";
+
+    private static final int RELEASE_ATTEMPTS = 5;
+
+    private Log log = getLog(getClass());
+
+    private final ConsulClientManager consulClient;
+    private final SessionManager sessions;
+    private final Consul4Spring consulTemplate;
+    private final ObjectMapper mapper;
+    private final String baseKey;
+    private final AtomicLong contenders = new AtomicLong();
+    private final Map<String, Holding> holdings = new ConcurrentHashMap<>();
+
+    /**
+     * @param consulTemplate runs the check-and-set of the .lock key, the semaphores are kept under its base key. The
+     *                       .lock key is written raw, without compression, since it's parsed as it's read
+     */
+    SemaphoreRegistry(ConsulClientManager consulClient, SessionManager sessions, Consul4Spring consulTemplate,
+                      ObjectMapper mapper, String baseKey) {
+        this.consulClient = consulClient;
+        this.sessions = sessions;
+        this.consulTemplate = consulTemplate;
+        this.mapper = mapper;
+        this.baseKey = baseKey;
+        sessions.addSessionLostListener(this::sessionLost);
+    }
+
+    /**
+     * @param timeout the maximum time to wait for a permit, 0 to try only once. Waits are rounded to whole seconds, so
+     *                this may be overshot by up to a second
+     * @return the permit, or null if it could not be acquired within the timeout
+     */
+    HeldLock acquire(String name, int limit, long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        String prefix = "/semaphores/" + name + "/";
+        String sessionId = sessions.getSessionId();
+        String holderId = sessionId + "-" + contenders.incrementAndGet();
+        String contenderKey = baseKey + prefix + holderId;
+        if (!consulClient.execute("kv.acquire", consul -> consul.keyValueClient().acquireLock(contenderKey, sessionId))) {
+            throw new IllegalStateException("unable to register as a contender for semaphore " + name);
+        }
+
+        HeldLock permit = null;
+        try {
+            long index = 0;
+            int waitSeconds = 0;
+            while (true) {
+                if (Thread.interrupted()) {
+                    throw new InterruptedException("interrupted while waiting for semaphore " + name);
+                }
+
+                ConsulResponse<List<Value>> response = read(baseKey + prefix, waitSeconds, index);
+                long readIndex = response.getIndex() == null ? 0 : response.getIndex().longValue();
+                index = readIndex;
+
+                List<Value> values = response.getResponse() == null ? emptyList() : response.getResponse();
+                Value lock = values.stream().filter(value -> value.getKey().equals(baseKey + prefix + LOCK)).findFirst().orElse(null);
+                List<String> holders = liveHolders(name, limit, lock, values, baseKey + prefix);
+                if (holders.size() < limit) {
+                    holders.add(holderId);
+                    if (consulTemplate.executeRaw(singletonList(cas(prefix + LOCK, toJson(limit, holders), lock == null ? 0 : lock.getModifyIndex())))) {
+                        // every successful check-and-set read the .lock key after the previous one was written
+                        permit = new HeldLock(name, holderId, readIndex, this::release);
+                        holdings.put(holderId, new Holding(permit, prefix, contenderKey, sessionId));
+                        return permit;
+                    }
+
+                    // someone else updated the holders in the meantime, read them again right away
+                    consulClient.getMetrics().timer("kv.txn").retry();
+                    index = 0;
+                }
+
+                long remainingMillis = NANOSECONDS.toMillis(deadline - System.nanoTime());
+                if (remainingMillis <= 0) {
+                    return null;
+                }
+                waitSeconds = (int) min(MAX_WAIT_SECONDS, max(1, remainingMillis / 1000));
+            }
+        } finally {
+            if (permit == null) {
+                removeContender(contenderKey, sessionId);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        holdings.values().forEach(holding -> holding.permit.close());
+    }
+
+    private ConsulResponse<List<Value>> read(String prefix, int waitSeconds, long index) throws InterruptedException {
+        try {
+            return ConsulWatch.await(consulClient.timed(waitSeconds == 0 ? "kv.list" : "kv.watch",
+                    (options, callback) -> consulClient.getConsul().keyValueClient().getValues(prefix, options, callback)), waitSeconds, index);
+        } catch (InterruptedException e) {
+            throw e;
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("unable to read " + prefix, e.getCause());
+        } catch (Exception e) {
+            throw new IllegalStateException("unable to read " + prefix, e);
+        }
+    }
+
+    /**
+     * @return the holders listed in the .lock key whose contender key is still locked by a session
+     */
+    @SuppressWarnings("unchecked")
+    private List<String> liveHolders(String name, int limit, Value lock, List<Value> values, String prefix) {
+        if (lock == null || lock.getValue() == null) {
+            return new ArrayList<>();
+        }
+
+        Map<String, Object> state;
+        try {
+            state = mapper.readValue(getDecoder().decode(lock.getValue()), Map.class);
+        } catch (IOException e) {
+            throw new IllegalStateException("unable to read the holders of semaphore " + name, e);
+        }
+
+        int existingLimit = ((Number) state.get("Limit")).intValue();
+        if (existingLimit != limit) {
+            throw new IllegalStateException("semaphore " + name + " has a limit of " + existingLimit + ", not " + limit);
+        }
+
+        Set<String> contenders = values.stream()
+                .filter(value -> value.getSession() != null)
+                .map(value -> value.getKey().substring(prefix.length()))
+                .collect(toSet());
+        return ((List<String>) state.get("Holders")).stream().filter(contenders::contains).collect(toList());
+    }
+
+    private String toJson(int limit, List<String> holders) {
+        Map<String, Object> state = new LinkedHashMap<>();
+        state.put("Limit", limit);
+        state.put("Holders", holders);
+        try {
+            return mapper.writeValueAsString(state);
+        } catch (IOException e) {
+            throw new IllegalStateException("unable to write semaphore holders " + holders, e);
+        }
+    }
+
+    private void release(HeldLock permit) {
+        Holding holding = holdings.remove(permit.getId());
+        if (holding == null) {
+            return;
+        }
+
+        try {
+            for (int attempt = 0; attempt < RELEASE_ATTEMPTS; attempt++) {
+                Value lock = consulClient.execute("kv.get", consul -> consul.keyValueClient().getValue(baseKey + holding.prefix + LOCK)).orNull();
+                if (lock == null || lock.getValue() == null) {
+                    return;
+                }
+
+                Map<?, ?> state = mapper.readValue(getDecoder().decode(lock.getValue()), Map.class);
+                List<?> holders = new ArrayList<>((List<?>) state.get("Holders"));
+                if (!holders.remove(permit.getId())) {
+                    return;
+                }
+
+                @SuppressWarnings("unchecked")
+                String json = toJson(((Number) state.get("Limit")).intValue(), (List<String>) holders);
+                if (consulTemplate.executeRaw(singletonList(cas(holding.prefix + LOCK, json, lock.getModifyIndex())))) {
+                    return;
+                }
+                consulClient.getMetrics().timer("kv.txn").retry();
+            }
+
+            log.warn("unable to remove " + permit + " from the semaphore holders, it will be pruned by the next holder");
+        } catch (IOException | RuntimeException e) {
+            log.warn("unable to remove " + permit + " from the semaphore holders, it will be pruned by the next holder: " + e.getMessage());
+        } finally {
+            // without its contender key the permit is pruned by the next holder anyway
+            removeContender(holding.contenderKey, holding.sessionId);
+        }
+    }
+
+    private void removeContender(String contenderKey, String sessionId) {
+        try {
+            consulClient.run("kv.release", consul -> {
+                consul.keyValueClient().releaseLock(contenderKey, sessionId);
+                consul.keyValueClient().deleteKey(contenderKey);
+            });
+        } catch (RuntimeException e) {
+            log.warn("unable to remove semaphore contender " + contenderKey + ": " + e.getMessage());
+        }
+    }
+
+    private void sessionLost(String sessionId) {
+        holdings.values().stream()
+                .filter(holding -> holding.sessionId.equals(sessionId))
+                .forEach(holding -> {
+                    if (holding.permit.lost()) {
+                        log.warn("semaphore permit " + holding.permit + " was lost with session " + sessionId);
+                    }
+                    holdings.remove(holding.permit.getId());
+                });
+    }
+
+    private static class Holding {
+        private final HeldLock permit;
+        private final String prefix;
+        private final String contenderKey;
+        private final String sessionId;
+
+        Holding(HeldLock permit, String prefix, String contenderKey, String sessionId) {
+            this.permit = permit;
+            this.prefix = prefix;
+            this.contenderKey = contenderKey;
+            this.sessionId = sessionId;
+        }
+    }
+}
@@ -0,0 +1,263 @@
+package ajk.consul4spring;
+
+import com.orbitz.consul.model.ConsulResponse;
+import com.orbitz.consul.model.catalog.CatalogService;
+import com.orbitz.consul.model.health.ServiceHealth;
+import org.apache.commons.logging.Log;
+
+import java.io.Closeable;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.function.Function;
+
+import static java.util.Collections.emptySet;
+import static java.util.Collections.unmodifiableSet;
+import static java.util.concurrent.Executors.newSingleThreadScheduledExecutor;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static java.util.stream.Collectors.joining;
+import static org.apache.commons.logging.LogFactory.getLog;
+import static org.springframework.util.StringUtils.isEmpty;
+
+/**
+ * keeps a snapshot of the passing instances of every service that was looked up. Each service is watched with
+ * blocking queries on the health endpoint, so reads are lock-free reads of an immutable snapshot, and listeners are
+ * notified only when the membership of a service actually changes.
+ * <p>
+ * The first lookup of a service waits up to 10 seconds for its initial load. When the load doesn't make it in time
+ * the watch keeps retrying in the background, and lookups fail right away until it succeeds instead of each of them
+ * waiting again.
+ * <p>
+ * A service that has no change listeners and wasn't looked up for {@code consul.catalogIdleSeconds} stops being
+ * watched, so looking up many different names doesn't keep a blocking query running for each of them forever. Its next
+ * lookup loads it again.
+ */
+public class ServiceCatalog implements Closeable {
+    private static final Comparator<CatalogService> INSTANCE_ORDER = Comparator
+            .comparing(CatalogService::getNode, Comparator.nullsFirst(Comparator.<String>naturalOrder()))
+            .thenComparing(CatalogService::getServiceId, Comparator.nullsFirst(Comparator.<String>naturalOrder()));
+    private static final long INITIAL_LOAD_SECONDS = 10;
+
+    private Log log = getLog(getClass());
+
+    private final int waitSeconds;
+    private final ReadConsistency consistency;
+    private final long maxStalenessMillis;
+    private final long idleNanos;
+    private final Function<String, ConsulWatch.Query<List<ServiceHealth>>> queries;
+    private final Map<String, ServiceWatch> services = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService evictor;
+
+    /**
+     * @param consistency        the consistency the services are watched with
+     * @param maxStalenessMillis the X-Consul-LastContact above which a stale read is repeated with the default
+     *                           consistency
+     * @param idleSeconds        the time a service without listeners is watched after its last lookup, 0 to watch
+     *                           every service until the catalog is closed
+     */
+    ServiceCatalog(int waitSeconds, ReadConsistency consistency, long maxStalenessMillis, int idleSeconds,
+                   Function<String, ConsulWatch.Query<List<ServiceHealth>>> queries) {
+        this.waitSeconds = waitSeconds;
+        this.consistency = consistency;
+        this.maxStalenessMillis = maxStalenessMillis;
+        this.idleNanos = SECONDS.toNanos(idleSeconds);
+        this.queries = queries;
+        if (idleSeconds > 0) {
+            evictor = newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "consul-catalog-evictor");
+                thread.setDaemon(true);
+                return thread;
+            });
+            long period = Math.max(1, idleSeconds / 2);
+            evictor.scheduleWithFixedDelay(this::evictIdle, period, period, SECONDS);
+        } else {
+            evictor = null;
+        }
+    }
+
+    /**
+     * @param name the service name
+     * @return the passing instances of the service. The first call for a service waits for its initial load
+     * @throws IllegalStateException when the instances couldn't be loaded from Consul
+     */
+    public Set<CatalogService> getInstances(String name) {
+        return watch(name).snapshot.instances;
+    }
+
+    /**
+     * @param name        the service name
+     * @param consistency the consistency of the read
+     * @return the passing instances of the service, from memory when the service is watched with a consistency that's
+     * at least as strong and, for a stale read, is recent enough. Otherwise they're read from Consul
+     */
+    public ConsulRead<Set<CatalogService>> getInstances(String name, ReadConsistency consistency) {
+        if (this.consistency.satisfies(consistency)) {
+            ServiceWatch watch = watch(name);
+            if (consistency != ReadConsistency.STALE || watch.watch.getLastContact() <= maxStalenessMillis) {
+                return new ConsulRead<>(watch.snapshot.instances, watch.watch.getLastContact(), true);
+            }
+        }
+
+        ConsulResponse<List<ServiceHealth>> response = ConsulWatch.read(queries.apply(name), consistency, maxStalenessMillis);
+        return new ConsulRead<>(toInstances(response), response.getLastContact(), response.isKnownLeader());
+    }
+
+    /**
+     * @param name the service name
+     * @return a comma separated list of ip-addr:port of the passing instances of the service
+     */
+    public String getClusterDefinition(String name) {
+        return watch(name).snapshot.clusterDefinition;
+    }
+
+    /**
+     * registers a listener for membership changes of a service, and starts watching the service if it isn't watched
+     * yet
+     */
+    public void addChangeListener(String name, ServiceChangeListener listener) {
+        // added inside compute, so the watch can't be evicted between its lookup and the listener being added
+        services.compute(name, (key, watch) -> {
+            ServiceWatch existing = watch == null ? newWatch(key) : watch;
+            existing.listeners.add(listener);
+            return existing;
+        });
+    }
+
+    public void removeChangeListener(String name, ServiceChangeListener listener) {
+        ServiceWatch watch = services.get(name);
+        if (watch != null) {
+            watch.listeners.remove(listener);
+        }
+    }
+
+    @Override
+    public void close() {
+        if (evictor != null) {
+            evictor.shutdownNow();
+        }
+        services.values().forEach(watch -> watch.watch.close());
+        services.clear();
+    }
+
+    private void evictIdle() {
+        long now = System.nanoTime();
+        for (String name : services.keySet()) {
+            services.computeIfPresent(name, (key, watch) -> {
+                if (!watch.listeners.isEmpty() || now - watch.lastLookup < idleNanos) {
+                    return watch;
+                }
+
+                log.info("[service " + name + "]: not looked up for " + NANOSECONDS.toSeconds(now - watch.lastLookup) +
+                        " seconds, no longer watched");
+                watch.watch.close();
+                return null;
+            });
+        }
+    }
+
+    private ServiceWatch watch(String name) {
+        ServiceWatch watch = services.get(name);
+        if (watch == null) {
+            watch = services.computeIfAbsent(name, this::newWatch);
+        }
+        watch.lastLookup = System.nanoTime();
+
+        if (!watch.watch.isInitialized()) {
+            if (watch.loadFailed) {
+                throw new IllegalStateException("the instances of " + name + " aren't loaded from Consul yet");
+            }
+            try {
+                if (!watch.watch.awaitInitialized(INITIAL_LOAD_SECONDS, SECONDS)) {
+                    watch.loadFailed = true;
+                    throw new IllegalStateException("unable to load the instances of " + name + " from Consul");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("interrupted while loading the instances of " + name, e);
+            }
+        }
+
+        return watch;
+    }
+
+    private ServiceWatch newWatch(String name) {
+        ServiceWatch watch = new ServiceWatch(name);
+        watch.watch.start();
+        return watch;
+    }
+
+    private static Set<CatalogService> toInstances(ConsulResponse<List<ServiceHealth>> response) {
+        Set<CatalogService> instances = new TreeSet<>(INSTANCE_ORDER);
+        if (response.getResponse() != null) {
+            response.getResponse().forEach(health -> instances.add(toCatalogService(health)));
+        }
+        return unmodifiableSet(instances);
+    }
+
+    private static CatalogService toCatalogService(ServiceHealth health) {
+        CatalogService service = new CatalogService();
+        service.setNode(health.getNode().getNode());
+        service.setAddress(health.getNode().getAddress());
+        service.setServiceId(health.getService().getId());
+        service.setServiceName(health.getService().getService());
+        service.setServiceTags(health.getService().getTags());
+        service.setServicePort(health.getService().getPort());
+        // Consul leaves the service address empty when the service is registered with the node address
+        service.setServiceAddress(isEmpty(health.getService().getAddress()) ? health.getNode().getAddress() : health.getService().getAddress());
+        return service;
+    }
+
+    private class ServiceWatch {
+        private final String name;
+        private final ConsulWatch<List<ServiceHealth>> watch;
+        private final List<ServiceChangeListener> listeners = new CopyOnWriteArrayList<>();
+        private volatile Snapshot snapshot = new Snapshot(emptySet());
+        // set when the initial load timed out, later lookups don't wait for it again
+        private volatile boolean loadFailed;
+        private volatile long lastLookup = System.nanoTime();
+
+        ServiceWatch(String name) {
+            this.name = name;
+            this.watch = new ConsulWatch<>("service " + name, waitSeconds, consistency, queries.apply(name), this::update);
+        }
+
+        private void update(ConsulResponse<List<ServiceHealth>> response) {
+            Snapshot next = new Snapshot(toInstances(response));
+            Snapshot previous = snapshot;
+            snapshot = next;
+
+            if (!next.membership.equals(previous.membership)) {
+                log.info("[service " + name + "]: " + next.clusterDefinition);
+                for (ServiceChangeListener listener : listeners) {
+                    try {
+                        listener.onChange(name, next.instances);
+                    } catch (RuntimeException e) {
+                        log.error("service change listener failed for " + name, e);
+                    }
+                }
+            }
+        }
+    }
+
+    private static class Snapshot {
+        private final Set<CatalogService> instances;
+        private final String clusterDefinition;
+        private final String membership;
+
+        Snapshot(Set<CatalogService> instances) {
+            this.instances = instances;
+            this.clusterDefinition = instances.stream()
+                    .map(cs -> cs.getServiceAddress() + ":" + cs.getServicePort())
+                    .collect(joining(","));
+            this.membership = instances.stream()
+                    .map(cs -> cs.getNode() + "/" + cs.getServiceId() + "@" + cs.getServiceAddress() + ":" + cs.getServicePort())
+                    .collect(joining(","));
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package ajk.consul4spring;
+
+import com.orbitz.consul.model.catalog.CatalogService;
+
+import java.util.Set;
+
+/**
+ * notified when the set of passing instances of a service changes
+ */
+@FunctionalInterface
+public interface ServiceChangeListener {
+    /**
+     * called on the catalog watch thread, keep it short
+     *
+     * @param serviceName the service that changed
+     * @param instances   the new (immutable) set of passing instances
+     */
+    void onChange(String serviceName, Set<CatalogService> instances);
+}
@@ -0,0 +1,206 @@
+package ajk.consul4spring;
+
+import com.orbitz.consul.model.catalog.CatalogService;
+import org.apache.commons.logging.Log;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+
+import static java.util.Collections.unmodifiableList;
+import static java.util.stream.Collectors.toList;
+import static java.util.stream.Collectors.toMap;
+import static org.apache.commons.logging.LogFactory.getLog;
+
+/**
+ * a client side load balancer over the instances in the {@link CatalogResolver}. The instances of a service are read
+ * once and then kept current by a change listener, so choosing an instance is a local, lock-free operation.
+ * <p>
+ * Report the outcome of every call made to the chosen instance through the returned {@link Choice} - the policies use
+ * the requests in flight and the latency, and an instance that fails ejectionFailures times in a row is ejected for
+ * ejectionMillis, twice as long every time it's ejected again without a success in between. At most
+ * maxEjectionPercent of the instances of a service are ejected at the same time.
+ */
+public class ServiceInstanceChooser implements Closeable {
+    private Log log = getLog(getClass());
+
+    private final CatalogResolver catalog;
+    private final LoadBalancingPolicy policy;
+    private final int ejectionFailures;
+    private final long ejectionMillis;
+    private final long maxEjectionMillis;
+    private final int maxEjectionPercent;
+    private final long decayMillis;
+    private final Map<String, Pool> pools = new ConcurrentHashMap<>();
+
+    /**
+     * @param ejectionFailures   the number of consecutive failures after which an instance is ejected, 0 to never eject
+     * @param ejectionMillis     the time an instance is ejected for the first time
+     * @param maxEjectionPercent the maximum part of the instances of a service that can be ejected at the same time
+     * @param decayMillis        the time it takes the latency moving average to mostly forget a sample
+     */
+    public ServiceInstanceChooser(CatalogResolver catalog, LoadBalancingPolicy policy, int ejectionFailures,
+                                  long ejectionMillis, int maxEjectionPercent, long decayMillis) {
+        this.catalog = catalog;
+        this.policy = policy;
+        this.ejectionFailures = ejectionFailures;
+        this.ejectionMillis = ejectionMillis;
+        this.maxEjectionMillis = ejectionMillis * 10;
+        this.maxEjectionPercent = maxEjectionPercent;
+        this.decayMillis = decayMillis;
+    }
+
+    /**
+     * chooses an instance of a service. When every instance is ejected the policy chooses among all of them
+     *
+     * @param name the service name
+     * @return the choice, or null when the service has no passing instances
+     */
+    public Choice choose(String name) {
+        Pool pool = pools.get(name);
+        if (pool == null) {
+            pool = newPool(name);
+        }
+
+        List<InstanceStats> instances = pool.instances;
+        if (instances.isEmpty()) {
+            return null;
+        }
+
+        List<InstanceStats> candidates = instances;
+        for (InstanceStats stats : instances) {
+            if (stats.isEjected()) {
+                // only allocate when something is actually ejected
+                candidates = instances.stream().filter(it -> !it.isEjected()).collect(toList());
+                if (candidates.isEmpty()) {
+                    candidates = instances;
+                }
+                break;
+            }
+        }
+
+        InstanceStats chosen = policy.choose(candidates);
+        chosen.started();
+        return new Choice(pool, chosen);
+    }
+
+    /**
+     * @return the stats of the instances of a service, empty if it wasn't chosen from yet
+     */
+    public List<InstanceStats> getStats(String name) {
+        Pool pool = pools.get(name);
+        return pool == null ? new ArrayList<>() : pool.instances;
+    }
+
+    @Override
+    public void close() {
+        pools.forEach((name, pool) -> catalog.removeChangeListener(name, pool));
+        pools.clear();
+    }
+
+    /**
+     * loads the instances of a service outside of the pools map, since it may wait for Consul and fail. Only the pool
+     * that makes it into the map registers its listener, and it's loaded again after that so it doesn't miss a change
+     * that came in between
+     */
+    private Pool newPool(String name) {
+        Pool pool = new Pool(name);
+        pool.onChange(name, catalog.resolveByName(name));
+        Pool existing = pools.putIfAbsent(name, pool);
+        if (existing != null) {
+            return existing;
+        }
+
+        catalog.addChangeListener(name, pool);
+        pool.onChange(name, catalog.resolveByName(name));
+        return pool;
+    }
+
+    /**
+     * the instances of one service, replaced as a whole when the membership changes
+     */
+    private class Pool implements ServiceChangeListener {
+        private final String name;
+        private volatile List<InstanceStats> instances = new ArrayList<>();
+
+        Pool(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public synchronized void onChange(String serviceName, Set<CatalogService> members) {
+            // the stats of instances that stay are kept
+            Map<String, InstanceStats> current = instances.stream()
+                    .collect(toMap(stats -> key(stats.getInstance()), Function.identity(), (a, b) -> a));
+            instances = unmodifiableList(members.stream()
+                    .map(instance -> current.getOrDefault(key(instance), new InstanceStats(instance, decayMillis)))
+                    .collect(toList()));
+        }
+
+        void completed(InstanceStats stats, long latencyNanos, boolean failed) {
+            int failures = stats.completed(latencyNanos, failed);
+            if (ejectionFailures == 0 || failures < ejectionFailures) {
+                return;
+            }
+
+            synchronized (this) {
+                List<InstanceStats> members = instances;
+                long ejected = members.stream().filter(InstanceStats::isEjected).count();
+                if (!stats.isEjected() && (ejected + 1) * 100 <= (long) maxEjectionPercent * members.size()) {
+                    stats.eject(ejectionMillis, maxEjectionMillis);
+                    log.warn("[service " + name + "]: ejected " + stats + " after " + failures + " consecutive failures");
+                }
+            }
+        }
+
+        private String key(CatalogService instance) {
+            return instance.getNode() + "/" + instance.getServiceId();
+        }
+    }
+
+    /**
+     * an instance chosen for one call. Report the outcome with {@link #success()} or {@link #failure()}, the latency
+     * is measured from the time the instance was chosen
+     */
+    public static class Choice {
+        private final Pool pool;
+        private final InstanceStats stats;
+        private final long startedAt = System.nanoTime();
+        private final AtomicBoolean completed = new AtomicBoolean();
+
+        private Choice(Pool pool, InstanceStats stats) {
+            this.pool = pool;
+            this.stats = stats;
+        }
+
+        public CatalogService getInstance() {
+            return stats.getInstance();
+        }
+
+        /**
+         * @return the address and port of the chosen instance, e.g. 1.2.3.4:8080
+         */
+        public String getHostAndPort() {
+            return stats.getInstance().getServiceAddress() + ":" + stats.getInstance().getServicePort();
+        }
+
+        public void success() {
+            complete(false);
+        }
+
+        public void failure() {
+            complete(true);
+        }
+
+        private void complete(boolean failed) {
+            if (completed.compareAndSet(false, true)) {
+                pool.completed(stats, System.nanoTime() - startedAt, failed);
+            }
+        }
+    }
+}
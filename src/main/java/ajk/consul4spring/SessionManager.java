@@ -0,0 +1,141 @@
+package ajk.consul4spring;
+
+import com.google.common.base.Optional;
+import com.orbitz.consul.model.session.SessionInfo;
+import org.apache.commons.logging.Log;
+
+import java.io.Closeable;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.function.Consumer;
+
+import static java.lang.String.format;
+import static java.util.concurrent.Executors.newSingleThreadScheduledExecutor;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.apache.commons.logging.LogFactory.getLog;
+
+/**
+ * owns a single Consul session that all the locks, leader elections and semaphores of this application use. The session is created on
+ * first use and renewed in the background every half TTL, so it outlives the locks it holds but is gone soon after the
+ * application is. When the session is invalidated - the renewal found it missing, or couldn't reach Consul for a whole
+ * TTL - the listeners are told and a new session is created on the next use.
+ */
+@SuppressWarnings("Guava")
+class SessionManager implements Closeable {
+    private Log log = getLog(getClass());
+
+    private final ConsulClientManager consulClient;
+    private final String name;
+    private final int ttlSeconds;
+    private final int lockDelaySeconds;
+    private final List<Consumer<String>> sessionLostListeners = new CopyOnWriteArrayList<>();
+    private final ScheduledExecutorService renewer;
+
+    private String sessionId;
+    private long renewedAt;
+
+    SessionManager(ConsulClientManager consulClient, String name, int ttlSeconds, int lockDelaySeconds) {
+        this.consulClient = consulClient;
+        this.name = name;
+        this.ttlSeconds = ttlSeconds;
+        this.lockDelaySeconds = lockDelaySeconds;
+        this.renewer = newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "consul-session-renewer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long period = Math.max(1, ttlSeconds / 2);
+        this.renewer.scheduleAtFixedRate(this::renew, period, period, SECONDS);
+    }
+
+    /**
+     * @param listener called with the ID of a session that was invalidated
+     */
+    void addSessionLostListener(Consumer<String> listener) {
+        sessionLostListeners.add(listener);
+    }
+
+    /**
+     * @return the current session, created if there's none
+     */
+    synchronized String getSessionId() {
+        if (sessionId == null) {
+            String body = format("{\"Name\": \"%s\", \"TTL\": \"%ss\", \"LockDelay\": \"%ss\", \"Behavior\": \"release\"}",
+                    name, ttlSeconds, lockDelaySeconds);
+            Optional<String> created = consulClient.execute("session.create", consul -> consul.sessionClient().createSession(body));
+            if (!created.isPresent()) {
+                throw new IllegalStateException("unable to create consul session " + name);
+            }
+
+            sessionId = created.get();
+            renewedAt = System.currentTimeMillis();
+            log.info("created session " + sessionId + " with a " + ttlSeconds + "s TTL");
+        }
+
+        return sessionId;
+    }
+
+    @Override
+    public synchronized void close() {
+        renewer.shutdownNow();
+        if (sessionId != null) {
+            String destroyed = sessionId;
+            sessionId = null;
+            try {
+                consulClient.run("session.destroy", consul -> consul.sessionClient().destroySession(destroyed));
+            } catch (RuntimeException e) {
+                log.warn("unable to destroy session " + destroyed + ", it will expire after its TTL: " + e.getMessage());
+            }
+        }
+    }
+
+    private void renew() {
+        String renewed;
+        long lastRenewal;
+        synchronized (this) {
+            if (sessionId == null) {
+                return;
+            }
+            renewed = sessionId;
+            lastRenewal = renewedAt;
+        }
+
+        // the renewal runs outside the lock, so a Consul that doesn't answer doesn't hold up getSessionId
+        boolean lostSession;
+        try {
+            Optional<SessionInfo> info = consulClient.execute("session.renew", consul -> consul.sessionClient().renewSession(renewed));
+            lostSession = !info.isPresent();
+            if (lostSession) {
+                log.warn("session " + renewed + " was invalidated by consul");
+            }
+        } catch (RuntimeException e) {
+            if (System.currentTimeMillis() - lastRenewal < ttlSeconds * 1000L) {
+                log.warn("unable to renew session " + renewed + ", will retry: " + e.getMessage());
+                return;
+            }
+            log.warn("unable to renew session " + renewed + " for a whole TTL, considering it lost: " + e.getMessage());
+            lostSession = true;
+        }
+
+        synchronized (this) {
+            // the session may have been closed, or lost and replaced, while it was being renewed
+            if (!renewed.equals(sessionId)) {
+                return;
+            }
+            if (!lostSession) {
+                renewedAt = System.currentTimeMillis();
+                return;
+            }
+            sessionId = null;
+        }
+
+        for (Consumer<String> listener : sessionLostListeners) {
+            try {
+                listener.accept(renewed);
+            } catch (RuntimeException e) {
+                log.error("session lost listener failed", e);
+            }
+        }
+    }
+}
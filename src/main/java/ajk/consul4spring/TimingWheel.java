@@ -0,0 +1,146 @@
+package ajk.consul4spring;
+
+import org.apache.commons.logging.Log;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Consumer;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.locks.LockSupport.parkNanos;
+import static org.apache.commons.logging.LogFactory.getLog;
+
+/**
+ * a hashed timing wheel: a ring of buckets that a single thread advances one bucket every tick. Scheduling and
+ * cancelling are O(1) no matter how many items are scheduled, and all the items that are due on the same tick are
+ * handed over together, as one batch. The precision is one tick.
+ * <p>
+ * New items are queued and only moved into their bucket by the wheel thread, so the buckets themselves are never
+ * shared between threads.
+ */
+class TimingWheel<T> implements Closeable {
+    private Log log = getLog(getClass());
+
+    private final long tickNanos;
+    private final List<LinkedList<Timeout<T>>> buckets;
+    private final Queue<Timeout<T>> incoming = new ConcurrentLinkedQueue<>();
+    private final Consumer<List<T>> expired;
+    private final long startedAt;
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    /**
+     * @param name        the name of the wheel thread
+     * @param tickMillis  the precision of the wheel
+     * @param wheelSize   the number of buckets, delays longer than a full turn take more than one turn
+     * @param expired     receives the items that are due on each tick, on the wheel thread
+     */
+    TimingWheel(String name, long tickMillis, int wheelSize, Consumer<List<T>> expired) {
+        this.tickNanos = MILLISECONDS.toNanos(tickMillis);
+        this.expired = expired;
+        this.buckets = new ArrayList<>(wheelSize);
+        for (int i = 0; i < wheelSize; i++) {
+            buckets.add(new LinkedList<>());
+        }
+        this.startedAt = System.nanoTime();
+        this.thread = new Thread(this::turn, name);
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * @return a handle to cancel the item with
+     */
+    Timeout<T> schedule(T item, long delayMillis) {
+        Timeout<T> timeout = new Timeout<>(item, (System.nanoTime() - startedAt + MILLISECONDS.toNanos(delayMillis)) / tickNanos);
+        incoming.add(timeout);
+        return timeout;
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        thread.interrupt();
+    }
+
+    private void turn() {
+        long tick = 0;
+        while (running) {
+            long sleep = startedAt + (tick + 1) * tickNanos - System.nanoTime();
+            if (sleep > 0) {
+                parkNanos(sleep);
+                if (Thread.interrupted()) {
+                    continue;
+                }
+            }
+
+            transfer(tick);
+            List<T> due = expire(buckets.get((int) (tick % buckets.size())));
+            if (!due.isEmpty()) {
+                try {
+                    expired.accept(due);
+                } catch (RuntimeException e) {
+                    log.error("unable to handle " + due.size() + " expired items", e);
+                }
+            }
+            tick++;
+        }
+    }
+
+    private void transfer(long tick) {
+        for (Timeout<T> timeout = incoming.poll(); timeout != null; timeout = incoming.poll()) {
+            if (timeout.cancelled) {
+                continue;
+            }
+
+            long due = Math.max(timeout.deadline, tick);
+            timeout.rounds = (due - tick) / buckets.size();
+            buckets.get((int) (due % buckets.size())).add(timeout);
+        }
+    }
+
+    private List<T> expire(LinkedList<Timeout<T>> bucket) {
+        List<T> due = new ArrayList<>();
+        for (Iterator<Timeout<T>> i = bucket.iterator(); i.hasNext(); ) {
+            Timeout<T> timeout = i.next();
+            if (timeout.cancelled) {
+                i.remove();
+            } else if (timeout.rounds <= 0) {
+                i.remove();
+                due.add(timeout.item);
+            } else {
+                timeout.rounds--;
+            }
+        }
+        return due;
+    }
+
+    /**
+     * an item scheduled on the wheel
+     */
+    static class Timeout<T> {
+        private final T item;
+        private final long deadline;
+        private volatile boolean cancelled;
+
+        // only touched by the wheel thread
+        private long rounds;
+
+        Timeout(T item, long deadline) {
+            this.item = item;
+            this.deadline = deadline;
+        }
+
+        /**
+         * keeps the item from being handed over, it's dropped from its bucket the next time the wheel passes it
+         */
+        void cancel() {
+            cancelled = true;
+        }
+    }
+}
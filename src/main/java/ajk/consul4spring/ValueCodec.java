@@ -0,0 +1,29 @@
+package ajk.consul4spring;
+
+import java.io.IOException;
+
+/**
+ * serializes the objects written with {@link ConsulTemplate#write(String, Object)} and deserializes them for
+ * {@link ConsulTemplate#findAndConvert(Class, String)}. The id of the codec is recorded in the KV flags of the key, so a
+ * reader decodes the value with the codec it was written with, whatever {@code consul.valueCodec} it's configured with.
+ * <p>
+ * The json (1), smile (2) and cbor (3) codecs are built in, smile and cbor when their Jackson dataformat is on the
+ * classpath. More codecs are added by declaring them as beans, with ids from 16 up; ids 1 to 15 are reserved. A bean
+ * with the id and name of a built-in codec replaces it, e.g. to serialize with a configured mapper.
+ */
+public interface ValueCodec {
+    /**
+     * @return the id recorded with the values, between 1 and 255. It must never change once values were written with
+     * the codec
+     */
+    int getId();
+
+    /**
+     * @return the name {@code consul.valueCodec} refers to the codec by
+     */
+    String getName();
+
+    byte[] encode(Object value) throws IOException;
+
+    <T> T decode(byte[] bytes, Class<T> clazz) throws IOException;
+}
@@ -0,0 +1,105 @@
+package ajk.consul4spring;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.commons.logging.Log;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.apache.commons.logging.LogFactory.getLog;
+import static org.springframework.beans.BeanUtils.instantiateClass;
+import static org.springframework.util.ClassUtils.isPresent;
+import static org.springframework.util.ClassUtils.resolveClassName;
+
+/**
+ * the codecs values can be written and read with, by id and by name
+ */
+final class ValueCodecs {
+    private static final int RESERVED_IDS = 15;
+    private static final Map<Integer, String> BUILT_IN = new HashMap<>();
+
+    static {
+        BUILT_IN.put(JacksonCodec.JSON, "json");
+        BUILT_IN.put(JacksonCodec.SMILE, "smile");
+        BUILT_IN.put(JacksonCodec.CBOR, "cbor");
+    }
+
+    private final Log log = getLog(getClass());
+
+    private final Map<Integer, ValueCodec> byId = new HashMap<>();
+    private final Map<String, ValueCodec> byName = new HashMap<>();
+
+    /**
+     * @param mapper the application's mapper, the json codec uses it as it is
+     * @param custom the codecs declared as beans, may be null
+     */
+    ValueCodecs(ObjectMapper mapper, Collection<ValueCodec> custom) {
+        // a bean with the id and name of a built-in codec replaces it
+        if (custom != null) {
+            for (ValueCodec codec : custom) {
+                if (codec.getId() < 1 || codec.getId() > 255 ||
+                        codec.getId() <= RESERVED_IDS && !codec.getName().equals(BUILT_IN.get(codec.getId()))) {
+                    throw new IllegalStateException("the id of codec " + codec.getName() + " must be between " +
+                            (RESERVED_IDS + 1) + " and 255, or the id of the built-in codec of the same name, not " + codec.getId());
+                }
+                add(codec);
+            }
+        }
+
+        if (!byId.containsKey(JacksonCodec.JSON)) {
+            add(JacksonCodec.json(mapper));
+        }
+        addBinary(JacksonCodec.SMILE, "com.fasterxml.jackson.dataformat.smile.SmileFactory", mapper);
+        addBinary(JacksonCodec.CBOR, "com.fasterxml.jackson.dataformat.cbor.CBORFactory", mapper);
+        log.info("value codecs: " + byId.values());
+    }
+
+    /**
+     * adds a binary codec when its Jackson dataformat is on the classpath. The factory is created by name since the
+     * dataformats are optional
+     */
+    private void addBinary(int id, String factoryClass, ObjectMapper mapper) {
+        ClassLoader classLoader = getClass().getClassLoader();
+        if (!byId.containsKey(id) && isPresent(factoryClass, classLoader)) {
+            JsonFactory factory = instantiateClass(resolveClassName(factoryClass, classLoader), JsonFactory.class);
+            add(JacksonCodec.binary(id, BUILT_IN.get(id), factory, mapper));
+        }
+    }
+
+    private void add(ValueCodec codec) {
+        ValueCodec previous = byId.putIfAbsent(codec.getId(), codec);
+        if (previous != null) {
+            throw new IllegalStateException("codecs " + previous.getName() + " and " + codec.getName() + " share the id " + codec.getId());
+        }
+        previous = byName.putIfAbsent(codec.getName(), codec);
+        if (previous != null) {
+            throw new IllegalStateException("two codecs are named " + codec.getName());
+        }
+    }
+
+    /**
+     * @return the codec a value was written with
+     * @throws IllegalStateException when there's no such codec, e.g. it's not on this application's classpath
+     */
+    ValueCodec get(int id) {
+        ValueCodec codec = byId.get(id);
+        if (codec == null) {
+            throw new IllegalStateException("no value codec with id " + id);
+        }
+        return codec;
+    }
+
+    /**
+     * @return the codec with a name
+     * @throws IllegalStateException when there's no such codec
+     */
+    ValueCodec get(String name) {
+        ValueCodec codec = byName.get(name);
+        if (codec == null) {
+            throw new IllegalStateException("no value codec named " + name + ", the codecs are " + byName.keySet());
+        }
+        return codec;
+    }
+}
@@ -0,0 +1,265 @@
+package ajk.consul4spring;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import static java.lang.String.format;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.util.Arrays.copyOfRange;
+import static java.util.Collections.emptyList;
+
+/**
+ * compresses and chunks large values. A value of at least {@code consul.valueCompressionThreshold} bytes is
+ * compressed with a {@link Deflater}, and when it's still larger than {@code consul.valueChunkSize} it's split into
+ * chunk keys under the key itself ({@code <key>/.chunks/<generation>/<n>}) and the key holds a small manifest instead.
+ * <p>
+ * The encoding is recorded in the KV flags of the key, so values written without encoding - by older versions or by
+ * other tools - are read as they are. The upper 16 of the low 32 bits of the flags hold a marker, the second byte
+ * holds the {@link ValueCodec} of an object written with {@link ConsulTemplate#write(String, Object)} (0 for text)
+ * and the low byte holds the encoding.
+ * <p>
+ * The chunks of a value are written before its manifest, under a new generation, and the previous generations are
+ * deleted after the manifest was written. A reader that read a manifest whose chunks were deleted in the meantime gets
+ * an {@link IncompleteChunksException} and reads the key again.
+ */
+final class ValueEncoding {
+    static final String CHUNKS = "/.chunks/";
+
+    /**
+     * writes every value as it is
+     */
+    static final ValueEncoding NONE = new ValueEncoding(0, 0);
+
+    private static final long MARKER = 0x504C0000L;
+    private static final long MARKER_MASK = 0xFFFF0000L;
+    private static final int PLAIN = 0;
+    private static final int DEFLATE = 1;
+    private static final int MANIFEST = 2;
+
+    /**
+     * reads the chunks under a prefix, ordered by key
+     */
+    @FunctionalInterface
+    interface ChunkReader {
+        List<byte[]> read(String chunkPrefix);
+    }
+
+    private final int compressionThreshold;
+    private final int chunkSize;
+
+    /**
+     * @param compressionThreshold the size, in bytes, from which values are compressed. 0 disables the encoding
+     * @param chunkSize            the maximum size, in bytes, of a value stored in a single key
+     */
+    ValueEncoding(int compressionThreshold, int chunkSize) {
+        this.compressionThreshold = compressionThreshold;
+        this.chunkSize = chunkSize;
+    }
+
+    boolean isEnabled() {
+        return compressionThreshold > 0;
+    }
+
+    static boolean isChunk(String key) {
+        return key.contains(CHUNKS);
+    }
+
+    Encoded encode(String value) {
+        return encode(value.getBytes(UTF_8), 0);
+    }
+
+    /**
+     * @param bytes the value
+     * @param codec the id of the codec the value was serialized with, 0 for text
+     */
+    Encoded encode(byte[] bytes, int codec) {
+        // text is written without flags unless it's encoded, a serialized object always records its codec
+        long marker = codec == 0 ? 0 : MARKER | (long) codec << 8;
+        if (!isEnabled() || bytes.length < compressionThreshold) {
+            return new Encoded(bytes, marker, null, emptyList());
+        }
+
+        byte[] compressed = deflate(bytes);
+        boolean deflated = compressed.length < bytes.length;
+        byte[] payload = deflated ? compressed : bytes;
+        if (payload.length <= chunkSize) {
+            return new Encoded(payload, deflated ? MARKER | codec << 8 | DEFLATE : marker, null, emptyList());
+        }
+
+        List<byte[]> chunks = new ArrayList<>();
+        for (int from = 0; from < payload.length; from += chunkSize) {
+            chunks.add(copyOfRange(payload, from, Math.min(from + chunkSize, payload.length)));
+        }
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        String generation = Long.toString(System.currentTimeMillis(), 36) + Integer.toString(ThreadLocalRandom.current().nextInt(1 << 20), 36);
+        String manifest = format("v1 %s %d %d %d %s", generation, chunks.size(), payload.length, crc.getValue(), deflated ? "deflate" : "plain");
+        return new Encoded(manifest.getBytes(UTF_8), MARKER | codec << 8 | MANIFEST, generation, chunks);
+    }
+
+    /**
+     * @param raw    the raw value of the key, null for a key without a value
+     * @param flags  the KV flags of the key
+     * @param chunks reads the chunks of a manifest, given their prefix relative to the key
+     * @return the bytes of the value as it was written, see {@link #codecOf(long)} for what they hold
+     * @throws IncompleteChunksException when the chunks don't match the manifest, the key has to be read again
+     */
+    byte[] decode(byte[] raw, long flags, ChunkReader chunks) {
+        if (raw == null || (flags & MARKER_MASK) != MARKER) {
+            return raw;
+        }
+
+        switch ((int) (flags & 0xFF)) {
+            case PLAIN:
+                return raw;
+            case DEFLATE:
+                return inflate(raw);
+            case MANIFEST:
+                return readManifest(new String(raw, UTF_8), chunks);
+            default:
+                throw new IllegalStateException("unknown value encoding " + (flags & 0xFF));
+        }
+    }
+
+    /**
+     * @return the id of the {@link ValueCodec} a value was serialized with, 0 when it's UTF-8 text
+     */
+    static int codecOf(long flags) {
+        return (flags & MARKER_MASK) == MARKER ? (int) (flags >> 8 & 0xFF) : 0;
+    }
+
+    private byte[] readManifest(String manifest, ChunkReader reader) {
+        String[] fields = manifest.split(" ");
+        if (fields.length != 6 || !"v1".equals(fields[0])) {
+            throw new IllegalStateException("unknown chunk manifest " + manifest);
+        }
+
+        int count = Integer.parseInt(fields[2]);
+        int length = Integer.parseInt(fields[3]);
+        List<byte[]> chunks = reader.read(CHUNKS + fields[1] + "/");
+        if (chunks.size() != count) {
+            throw new IncompleteChunksException("expected " + count + " chunks of generation " + fields[1] + ", found " + chunks.size());
+        }
+
+        byte[] payload = new byte[length];
+        int position = 0;
+        for (byte[] chunk : chunks) {
+            if (position + chunk.length > length) {
+                throw new IncompleteChunksException("the chunks of generation " + fields[1] + " are longer than " + length + " bytes");
+            }
+            System.arraycopy(chunk, 0, payload, position, chunk.length);
+            position += chunk.length;
+        }
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        if (position != length || crc.getValue() != Long.parseLong(fields[4])) {
+            throw new IncompleteChunksException("the chunks of generation " + fields[1] + " don't match their manifest");
+        }
+
+        return "deflate".equals(fields[5]) ? inflate(payload) : payload;
+    }
+
+    /**
+     * @return the key of a chunk
+     */
+    static String chunkKey(String key, String generation, int index) {
+        return key + CHUNKS + generation + "/" + format("%05d", index);
+    }
+
+    private static byte[] deflate(byte[] bytes) {
+        Deflater deflater = new Deflater();
+        try {
+            deflater.setInput(bytes);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length / 4 + 64);
+            byte[] buffer = new byte[8192];
+            while (!deflater.finished()) {
+                out.write(buffer, 0, deflater.deflate(buffer));
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static byte[] inflate(byte[] bytes) {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(bytes);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length * 4);
+            byte[] buffer = new byte[8192];
+            while (!inflater.finished()) {
+                int inflated = inflater.inflate(buffer);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IllegalStateException("truncated compressed value");
+                }
+                out.write(buffer, 0, inflated);
+            }
+            return out.toByteArray();
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("corrupt compressed value", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * a value ready to be written: the bytes and flags of the key itself, and the chunks to write before it
+     */
+    static final class Encoded {
+        private final byte[] value;
+        private final long flags;
+        private final String generation;
+        private final List<byte[]> chunks;
+
+        Encoded(byte[] value, long flags, String generation, List<byte[]> chunks) {
+            this.value = value;
+            this.flags = flags;
+            this.generation = generation;
+            this.chunks = chunks;
+        }
+
+        byte[] getValue() {
+            return value;
+        }
+
+        long getFlags() {
+            return flags;
+        }
+
+        /**
+         * @return the generation of the chunks, null when the value isn't chunked
+         */
+        String getGeneration() {
+            return generation;
+        }
+
+        List<byte[]> getChunks() {
+            return chunks;
+        }
+
+        /**
+         * @return true when the value is written as it is, without flags
+         */
+        boolean isPlain() {
+            return flags == 0;
+        }
+    }
+
+    /**
+     * the chunks of a value changed while it was read
+     */
+    static class IncompleteChunksException extends IllegalStateException {
+        private static final long serialVersionUID = 1L;
+
+        IncompleteChunksException(String message) {
+            super(message);
+        }
+    }
+}
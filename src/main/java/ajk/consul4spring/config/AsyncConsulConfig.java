@@ -0,0 +1,24 @@
+package ajk.consul4spring.config;
+
+import ajk.consul4spring.AsyncConsulTemplate;
+import ajk.consul4spring.ConsulTemplate;
+import ajk.consul4spring.ExecutorAsyncConsulTemplate;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * registers the {@link AsyncConsulTemplate} on top of whichever {@link ConsulTemplate} is active
+ */
+@Configuration
+public class AsyncConsulConfig {
+    @Autowired(required = false)
+    private ConsulProperties consulProperties;
+
+    @Bean(destroyMethod = "close")
+    public AsyncConsulTemplate asyncConsulTemplate(ConsulTemplate consulTemplate) {
+        ConsulProperties properties = consulProperties == null ? new ConsulProperties() : consulProperties;
+        return new ExecutorAsyncConsulTemplate(consulTemplate, properties.getAsyncPoolSize(), properties.getAsyncQueueCapacity(),
+                properties.getAsyncTimeoutMillis(), properties.isAsyncInterruptOnCancel());
+    }
+}
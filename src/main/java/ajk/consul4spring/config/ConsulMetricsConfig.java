@@ -0,0 +1,44 @@
+package ajk.consul4spring.config;
+
+import ajk.consul4spring.ConsulMetrics;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.endpoint.AbstractEndpoint;
+import org.springframework.boot.actuate.endpoint.Endpoint;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnClass;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.util.Map;
+
+import static java.util.stream.Collectors.toList;
+
+/**
+ * publishes the {@link ConsulMetrics} through Spring Boot's actuator, when it's on the classpath: the counts, errors and
+ * latency percentiles of every operation are added to /metrics, and the full histograms are available at
+ * /consulmetrics
+ */
+@Configuration
+@ConditionalOnClass(name = "org.springframework.boot.actuate.endpoint.PublicMetrics")
+public class ConsulMetricsConfig {
+    @Autowired
+    private ConsulMetrics consulMetrics;
+
+    @Bean
+    public PublicMetrics consulPublicMetrics() {
+        return () -> consulMetrics.flatten().entrySet().stream()
+                .map(metric -> new Metric<>(metric.getKey(), metric.getValue()))
+                .collect(toList());
+    }
+
+    @Bean
+    public Endpoint<Map<String, Object>> consulMetricsEndpoint() {
+        return new AbstractEndpoint<Map<String, Object>>("consulmetrics") {
+            @Override
+            public Map<String, Object> invoke() {
+                return consulMetrics.snapshot();
+            }
+        };
+    }
+}
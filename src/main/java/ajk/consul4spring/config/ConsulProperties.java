@@ -1,5 +1,6 @@
 package ajk.consul4spring.config;
 
+import ajk.consul4spring.ReadConsistency;
 import lombok.Data;
 import org.springframework.boot.context.properties.ConfigurationProperties;
 
@@ -21,11 +22,44 @@ public class ConsulProperties {
      */
     private int httpPort;
 
+    /**
+     * more Consul agents or servers, as host:port, to fail over to. Operations go to the endpoint with the best
+     * observed latency and error rate, agent operations (service and check registration) always go to hostname:httpPort
+     */
+    private String[] endpoints;
+
+    /**
+     * when there's more than one endpoint, a read that takes longer than the 95th percentile of its endpoint is sent
+     * to the next endpoint as well, and the first answer wins
+     */
+    private boolean hedgedReads = true;
+
+    /**
+     * the minimum time, in milliseconds, a read waits before it's hedged
+     */
+    private long hedgeMinDelayMillis = 10;
+
     /**
      * the DNS port to access the Consul DNS API
      */
     private int dnsPort;
 
+    /**
+     * the maximum number of records cached for each name server
+     */
+    private int dnsCacheSize = 10000;
+
+    /**
+     * the time, in seconds, a name that doesn't exist (NXDOMAIN) or has no records of the requested type is remembered
+     * as missing. 0 disables negative caching
+     */
+    private int dnsNegativeTtl = 5;
+
+    /**
+     * the maximum number of DNS queries the resolver sends concurrently
+     */
+    private int dnsMaxInFlight = 8;
+
     /**
      * the service ID used to register your service in Consul. This ID could be the service name, for example
      */
@@ -43,6 +77,221 @@ public class ConsulProperties {
 
     private Integer heartbeatRate;
 
+    /**
+     * the maximum number of distinct checks waiting to be sent to the Consul agent
+     */
+    private int checkQueueCapacity = 1024;
+
+    /**
+     * the number of threads the health suppliers of managed checks are evaluated on
+     */
+    private int checkEvaluationThreads = 4;
+
+    /**
+     * the interval, in milliseconds, in which a managed check is evaluated, unless half of its TTL is shorter
+     */
+    private long checkEvaluationMillis = 10000;
+
+    /**
+     * the time, in milliseconds, a managed check's health supplier may run before the check is failed
+     */
+    private long checkTimeoutMillis = 5000;
+
+    /**
+     * the interval, in seconds, in which Consul's liveness is probed in the background
+     */
+    private int probeInterval = 10;
+
+    /**
+     * the number of consecutive failures to reach Consul after which operations fail fast instead of going to Consul
+     */
+    private int circuitBreakerThreshold = 3;
+
+    /**
+     * the time, in milliseconds, operations fail fast before they're let through to Consul again
+     */
+    private long circuitBreakerOpenMillis = 5000;
+
+    /**
+     * the time, in milliseconds, a new connection to Consul may take to open. It's also the time a call waits for a free
+     * connection when all of them are in use, before it fails
+     */
+    private long httpConnectTimeoutMillis = 2000;
+
+    /**
+     * the time, in milliseconds, a Consul call other than a blocking query waits for its response
+     */
+    private long httpReadTimeoutMillis = 10000;
+
+    /**
+     * the maximum number of Consul calls, other than blocking queries, in flight at the same time
+     */
+    private int httpMaxConnections = 32;
+
+    /**
+     * the time, in milliseconds, a blocking query waits for its response. It must be longer than the wait time of the
+     * blocking queries (kvCacheWaitSeconds, catalogWaitSeconds) plus the jitter of up to 1/16 Consul adds to it
+     */
+    private long httpLongPollReadTimeoutMillis = 75000;
+
+    /**
+     * the maximum number of blocking queries in flight at the same time. The key value cache, every watched service and
+     * election, and every lock or semaphore being waited for keep one in flight. Together with httpMaxConnections it
+     * should stay below the number of connections the Consul agent accepts from one client
+     */
+    private int httpLongPollMaxConnections = 128;
+
+    /**
+     * the TTL, in seconds, of the session the distributed locks are held with. The session is renewed every half TTL,
+     * and the locks of an application that stopped renewing it are released after the TTL (at least 10 seconds)
+     */
+    private int lockSessionTtl = 30;
+
+    /**
+     * the time, in seconds, a lock, leadership or semaphore permit can't be acquired after the session holding it was
+     * invalidated. This gives the previous holder a chance to notice it lost the lock; lower it for a faster leader
+     * failover
+     */
+    private int lockDelay = 15;
+
+    /**
+     * the consistency of the key value and catalog reads: STALE (any server answers), DEFAULT (the leader answers) or
+     * CONSISTENT (the leader answers after confirming it's still the leader). It can be overridden per read
+     */
+    private ReadConsistency readConsistency = ReadConsistency.DEFAULT;
+
+    /**
+     * the X-Consul-LastContact, in milliseconds, above which a stale read is repeated with the default consistency
+     */
+    private long maxStalenessMillis = 5000;
+
+    /**
+     * when true the key value subtree under the base key is loaded into memory on startup and kept current with Consul
+     * blocking queries, and the {@code ConsulTemplate} reads are served from memory
+     */
+    private boolean kvCacheEnabled;
+
+    /**
+     * the time, in seconds, a single blocking query of the key value cache waits for a change before it's re-issued.
+     * This should stay below httpLongPollReadTimeoutMillis
+     */
+    private int kvCacheWaitSeconds = 55;
+
+    /**
+     * the time, in milliseconds, the key value cache may go without hearing from Consul before reads bypass it
+     */
+    private long kvCacheMaxStaleness = 120000;
+
+    /**
+     * when true {@code findAndConvert} remembers the objects it converted and returns the same instance, without
+     * parsing, as long as the key's ModifyIndex doesn't change. The instance is shared by every caller, so only enable
+     * this when the converted objects are treated as read-only
+     */
+    private boolean conversionCacheEnabled;
+
+    /**
+     * the size, in bytes, from which values written with {@code ConsulTemplate} are compressed. 0 (the default) writes
+     * all values as they are. Compressed values can only be read by versions of this library that support compression
+     */
+    private int valueCompressionThreshold;
+
+    /**
+     * the maximum size, in bytes, of a compressed value stored in a single key. Larger values are split into chunks of
+     * this size. Consul limits a value to 512KB
+     */
+    private int valueChunkSize = 256 * 1024;
+
+    /**
+     * the codec {@code ConsulTemplate.write(String, Object)} serializes objects with: json (the default), smile or cbor
+     * (when the matching jackson-dataformat is on the classpath) or the name of a {@code ValueCodec} bean. Values
+     * written with a binary codec can only be read by versions of this library that have the same codec
+     */
+    private String valueCodec = "json";
+
+    /**
+     * the time, in seconds, a single blocking query on the health of a watched service waits for a change before it's
+     * re-issued. This should stay below httpLongPollReadTimeoutMillis
+     */
+    private int catalogWaitSeconds = 55;
+
+    /**
+     * the time, in seconds, a service that has no change listeners stays watched after it was last resolved. 0 watches
+     * every service that was ever resolved until shutdown
+     */
+    private int catalogIdleSeconds = 600;
+
+    /**
+     * the maximum number of {@code AsyncConsulTemplate} operations running at the same time
+     */
+    private int asyncPoolSize = 8;
+
+    /**
+     * the maximum number of {@code AsyncConsulTemplate} operations waiting for a thread. Further operations fail
+     * immediately
+     */
+    private int asyncQueueCapacity = 256;
+
+    /**
+     * the time, in milliseconds, after which an {@code AsyncConsulTemplate} operation fails with a timeout. 0 disables
+     * the timeout
+     */
+    private long asyncTimeoutMillis = 10000;
+
+    /**
+     * whether a cancelled or timed out {@code AsyncConsulTemplate} operation that is still running is interrupted
+     */
+    private boolean asyncInterruptOnCancel = true;
+
+    /**
+     * the policy the {@code ServiceInstanceChooser} picks instances with: round-robin, p2c (the fewer requests in flight
+     * of two random instances) or ewma (the lower latency moving average of two random instances)
+     */
+    private String loadBalancingPolicy = "p2c";
+
+    /**
+     * the number of consecutive failures after which the {@code ServiceInstanceChooser} ejects an instance. 0 disables
+     * ejection
+     */
+    private int ejectionFailures = 5;
+
+    /**
+     * the time, in milliseconds, an instance is ejected for the first time. It doubles with every further ejection, up
+     * to 10 times this value
+     */
+    private long ejectionMillis = 30000;
+
+    /**
+     * the maximum percentage of the instances of a service that can be ejected at the same time
+     */
+    private int maxEjectionPercent = 50;
+
+    /**
+     * the time, in milliseconds, it takes the latency moving average of the ewma policy to mostly forget a sample
+     */
+    private long latencyDecayMillis = 10000;
+
+    /**
+     * without the consul profile, a directory in which the {@code ConsulTemplate} keys are kept durably. When it's not set
+     * the keys are kept in memory only
+     */
+    private String localStorePath;
+
+    /**
+     * the size, in bytes, of a segment of the local store log
+     */
+    private int localStoreSegmentSize = 64 * 1024 * 1024;
+
+    /**
+     * the interval, in milliseconds, in which the local store writes are flushed to disk. 0 flushes every write before
+     * it returns
+     */
+    private long localStoreFsyncMillis = 100;
+
+    /**
+     * the part of the local store log taken by overwritten and deleted values above which it's compacted
+     */
+    private double localStoreCompactionRatio = 0.5;
+
     public String getBaseKey() {
         return serviceName + "/" + serviceId;
     }
@@ -0,0 +1,25 @@
+package ajk.consul4spring.config;
+
+import ajk.consul4spring.CatalogResolver;
+import ajk.consul4spring.LoadBalancingPolicy;
+import ajk.consul4spring.ServiceInstanceChooser;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * registers the {@link ServiceInstanceChooser} on top of whichever {@link CatalogResolver} is active
+ */
+@Configuration
+public class LoadBalancerConfig {
+    @Autowired(required = false)
+    private ConsulProperties consulProperties;
+
+    @Bean(destroyMethod = "close")
+    public ServiceInstanceChooser serviceInstanceChooser(CatalogResolver catalogResolver) {
+        ConsulProperties properties = consulProperties == null ? new ConsulProperties() : consulProperties;
+        return new ServiceInstanceChooser(catalogResolver, LoadBalancingPolicy.named(properties.getLoadBalancingPolicy()),
+                properties.getEjectionFailures(), properties.getEjectionMillis(), properties.getMaxEjectionPercent(),
+                properties.getLatencyDecayMillis());
+    }
+}
@@ -1,149 +1,534 @@
 package ajk.consul4spring.config;
 
 import ajk.consul4spring.CatalogResolver;
+import ajk.consul4spring.CheckResult;
 import ajk.consul4spring.CheckService;
 import ajk.consul4spring.Consul4Spring;
 import ajk.consul4spring.ConsulTemplate;
 import ajk.consul4spring.DistributedLock;
+import ajk.consul4spring.DistributedSemaphore;
 import ajk.consul4spring.DnsResolver;
+import ajk.consul4spring.HeldLock;
+import ajk.consul4spring.InMemoryConsul;
+import ajk.consul4spring.KeyValueOperation;
+import ajk.consul4spring.LeaderElection;
+import ajk.consul4spring.LeadershipListener;
+import ajk.consul4spring.LocalStore;
+import ajk.consul4spring.ManagedChecks;
+import ajk.consul4spring.ServiceChangeListener;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.orbitz.consul.model.catalog.CatalogService;
-import org.apache.commons.io.IOUtils;
 import org.apache.commons.logging.Log;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnMissingBean;
+import org.springframework.boot.autoconfigure.web.ServerProperties;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
+import java.io.Closeable;
 import java.io.IOException;
-import java.nio.file.Files;
-import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
 
-import static java.nio.file.Files.createFile;
-import static java.nio.file.Files.deleteIfExists;
-import static java.nio.file.Files.notExists;
+import static ajk.consul4spring.Consul4Spring.DEFAULT_HEARTBEAT_RATE;
+import static com.orbitz.consul.model.State.FAIL;
+import static com.orbitz.consul.model.State.PASS;
 import static java.nio.file.Paths.get;
-import static java.util.Collections.emptySet;
+import static java.util.concurrent.TimeUnit.NANOSECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static java.util.stream.Collectors.joining;
+import static java.util.stream.Collectors.toList;
 import static org.apache.commons.logging.LogFactory.getLog;
 
 @ConditionalOnMissingBean(value = Consul4Spring.class)
 @Configuration
 public class NoConsulConfig {
+    @Autowired(required = false)
+    private ConsulProperties consulProperties;
+
+    @Autowired(required = false)
+    private ServerProperties serverProperties;
+
+    @Autowired(required = false)
+    private ObjectMapper mapper;
+
+    @Autowired
+    private DnsResolver dnsResolver;
+
+    @Bean(destroyMethod = "close")
+    public InMemoryConsul inMemoryConsul() {
+        return new InMemoryConsul();
+    }
+
     @Bean
-    public DistributedLock noConsulService() {
-        return new NoConsulDistributedLock();
+    public DistributedLock noConsulService(InMemoryConsul inMemoryConsul) {
+        return new NoConsulDistributedLock(inMemoryConsul);
     }
 
     @Bean
-    public CheckService noConsulCheckService() {
-        return new NoConsulCheckService();
+    public LeaderElection noConsulLeaderElection() {
+        return new NoConsulLeaderElection();
+    }
+
+    @Bean
+    public DistributedSemaphore noConsulSemaphore() {
+        return new NoConsulSemaphore();
+    }
+
+    @Bean(destroyMethod = "close")
+    public CheckService noConsulCheckService(InMemoryConsul inMemoryConsul) {
+        NoConsulCheckService checkService = new NoConsulCheckService(inMemoryConsul, consulProperties);
+        if (consulProperties != null && consulProperties.getServiceName() != null) {
+            checkService.registerMyself(dnsResolver.readNonLoopbackLocalAddress(),
+                    serverProperties == null || serverProperties.getPort() == null ? 8080 : serverProperties.getPort());
+        }
+        return checkService;
     }
 
+    /**
+     * the local store template is closed by Spring through its inferred close method
+     */
     @Bean
-    public ConsulTemplate noConsulTemplate() {
-        return new NoConsulTemplate();
+    public ConsulTemplate noConsulTemplate(InMemoryConsul inMemoryConsul) throws IOException {
+        if (consulProperties != null && consulProperties.getLocalStorePath() != null) {
+            return new LocalStoreTemplate(new LocalStore(get(consulProperties.getLocalStorePath()),
+                    consulProperties.getLocalStoreSegmentSize(), consulProperties.getLocalStoreFsyncMillis(),
+                    consulProperties.getLocalStoreCompactionRatio()), mapper == null ? new ObjectMapper() : mapper);
+        }
+
+        return new NoConsulTemplate(inMemoryConsul, mapper == null ? new ObjectMapper() : mapper);
     }
 
     @Bean
-    public CatalogResolver noConsulCatalog() {
-        return new NoConsulCatalog();
+    public CatalogResolver noConsulCatalog(InMemoryConsul inMemoryConsul) {
+        return new NoConsulCatalog(inMemoryConsul, dnsResolver);
     }
 
+    /**
+     * resolves the services registered in the in-memory catalog, and falls back to DNS for a cluster definition of a
+     * service that isn't registered there
+     */
     private static class NoConsulCatalog implements CatalogResolver {
-        @Autowired
+        private InMemoryConsul consul;
         private DnsResolver dnsResolver;
 
+        NoConsulCatalog(InMemoryConsul consul, DnsResolver dnsResolver) {
+            this.consul = consul;
+            this.dnsResolver = dnsResolver;
+        }
+
         @Override
         public Set<CatalogService> resolveByName(String name) {
-            return emptySet();
+            return consul.getInstances(name);
         }
 
         @Override
         public String resolveByNameAsClusterDefinition(String name) {
-            return dnsResolver.resolveServiceByName(name);
+            Set<CatalogService> instances = consul.getInstances(name);
+            if (instances.isEmpty()) {
+                return dnsResolver.resolveServiceByName(name);
+            }
+
+            return instances.stream()
+                    .map(instance -> instance.getServiceAddress() + ":" + instance.getServicePort())
+                    .collect(joining(","));
+        }
+
+        @Override
+        public void addChangeListener(String name, ServiceChangeListener listener) {
+            consul.addChangeListener(name, listener);
+        }
+
+        @Override
+        public void removeChangeListener(String name, ServiceChangeListener listener) {
+            consul.removeChangeListener(name, listener);
         }
     }
 
+    private static <T> T convert(ObjectMapper mapper, Log log, Class<T> clazz, String key, String value) {
+        if (value == null) {
+            return null;
+        }
+
+        try {
+            return mapper.readValue(value, clazz);
+        } catch (IOException e) {
+            log.error("unable to convert " + key + " to " + clazz.getName(), e);
+            return null;
+        }
+    }
+
+    /**
+     * without Consul objects are always kept as JSON, the codec only matters to the values shared through Consul
+     */
+    private static String serialize(ObjectMapper mapper, String key, Object value) {
+        try {
+            return mapper.writeValueAsString(value);
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException("unable to serialize the value of " + key, e);
+        }
+    }
+
+    /**
+     * keeps the keys in the in-memory key value store. Unlike Consul4Spring the keys aren't prefixed with the service
+     * name and ID, there's no one to share them with
+     */
     private static class NoConsulTemplate implements ConsulTemplate {
         private Log log = getLog(getClass());
 
+        private InMemoryConsul consul;
+        private ObjectMapper mapper;
+
+        NoConsulTemplate(InMemoryConsul consul, ObjectMapper mapper) {
+            this.consul = consul;
+            this.mapper = mapper;
+        }
+
         @Override
         public void write(String key, String value) {
-            Path keyFile = get(System.getProperty("java.io.tmpdir", "/tmp"), key);
-            try {
-                deleteIfExists(keyFile);
-                createFile(keyFile);
-                Files.write(keyFile, value.getBytes());
-            } catch (IOException e) {
-                log.error("error writing " + keyFile.toAbsolutePath(), e);
-            }
+            consul.put(key, value);
         }
 
         @Override
-        public String find(String key) {
-            Path keyFile = get(System.getProperty("java.io.tmpdir", "/tmp"), key);
-            if (notExists(keyFile)) {
-                return null;
-            }
+        public void write(String key, Object value) {
+            write(key, serialize(mapper, key, value));
+        }
 
-            try {
-                return IOUtils.toString(keyFile.toUri());
-            } catch (IOException e) {
-                log.error("error reading " + keyFile.toAbsolutePath(), e);
-                return null;
-            }
+        @Override
+        public String find(String key) {
+            InMemoryConsul.Entry entry = consul.get(key);
+            return entry == null ? null : entry.getValue();
         }
 
         @Override
         public <T> T findAndConvert(Class<T> clazz, String key) {
-            throw new UnsupportedOperationException();
+            return convert(mapper, log, clazz, key, find(key));
+        }
+
+        @Override
+        public Map<String, String> findAll(String prefix) {
+            Map<String, String> values = new LinkedHashMap<>();
+            consul.list(prefix).forEach(entry -> values.put(entry.getKey(), entry.getValue()));
+            return values;
+        }
+
+        @Override
+        public <T> Map<String, T> findAllAndConvert(Class<T> clazz, String prefix) {
+            Map<String, T> values = new LinkedHashMap<>();
+            findAll(prefix).forEach((key, value) -> values.put(key, convert(mapper, log, clazz, key, value)));
+            return values;
+        }
+
+        @Override
+        public List<String> findKeys(String prefix) {
+            return consul.list(prefix).stream().map(InMemoryConsul.Entry::getKey).collect(toList());
         }
 
         @Override
         public void delete(String key) {
-            Path keyFile = get(System.getProperty("java.io.tmpdir", "/tmp"), key);
-            try {
-                deleteIfExists(keyFile);
-            } catch (IOException e) {
-                log.error("error deleting " + keyFile.toAbsolutePath(), e);
+            consul.deleteTree(key);
+        }
+
+        @Override
+        public void writeAll(Map<String, String> values) {
+            consul.transaction(values.entrySet().stream()
+                    .map(entry -> KeyValueOperation.set(entry.getKey(), entry.getValue()))
+                    .collect(toList()));
+        }
+
+        @Override
+        public boolean execute(List<KeyValueOperation> operations) {
+            return consul.transaction(operations);
+        }
+    }
+
+    /**
+     * keeps the keys durably in a {@link LocalStore}, see consul.localStorePath
+     */
+    private static class LocalStoreTemplate implements ConsulTemplate, Closeable {
+        private Log log = getLog(getClass());
+
+        private LocalStore store;
+        private ObjectMapper mapper;
+
+        LocalStoreTemplate(LocalStore store, ObjectMapper mapper) {
+            this.store = store;
+            this.mapper = mapper;
+        }
+
+        @Override
+        public void write(String key, String value) {
+            store.put(key, value);
+        }
+
+        @Override
+        public void write(String key, Object value) {
+            write(key, serialize(mapper, key, value));
+        }
+
+        @Override
+        public String find(String key) {
+            return store.get(key);
+        }
+
+        @Override
+        public <T> T findAndConvert(Class<T> clazz, String key) {
+            return convert(mapper, log, clazz, key, find(key));
+        }
+
+        @Override
+        public Map<String, String> findAll(String prefix) {
+            Map<String, String> values = new LinkedHashMap<>();
+            for (String key : store.keys(prefix)) {
+                String value = store.get(key);
+                if (value != null) {
+                    values.put(key, value);
+                }
             }
+            return values;
+        }
+
+        @Override
+        public <T> Map<String, T> findAllAndConvert(Class<T> clazz, String prefix) {
+            Map<String, T> values = new LinkedHashMap<>();
+            findAll(prefix).forEach((key, value) -> values.put(key, convert(mapper, log, clazz, key, value)));
+            return values;
+        }
+
+        @Override
+        public List<String> findKeys(String prefix) {
+            return store.keys(prefix);
+        }
+
+        @Override
+        public void delete(String key) {
+            store.deleteTree(key);
+        }
+
+        @Override
+        public void writeAll(Map<String, String> values) {
+            store.transaction(values.entrySet().stream()
+                    .map(entry -> KeyValueOperation.set(entry.getKey(), entry.getValue()))
+                    .collect(toList()));
+        }
+
+        @Override
+        public boolean execute(List<KeyValueOperation> operations) {
+            return store.transaction(operations);
+        }
+
+        @Override
+        public void close() {
+            store.close();
         }
     }
 
+    /**
+     * every acquisition has its own session, so a lock held by this application blocks it like it blocks anyone else
+     */
     private static class NoConsulDistributedLock implements DistributedLock {
-        private ReentrantLock lock = new ReentrantLock();
+        private InMemoryConsul consul;
+        private Map<String, HeldLock> legacyLocks = new ConcurrentHashMap<>();
+
+        NoConsulDistributedLock(InMemoryConsul consul) {
+            this.consul = consul;
+        }
 
         @Override
         public String acquire() {
-            if (lock.isLocked()) {
+            HeldLock lock;
+            try {
+                lock = acquire("lock", "lock", 0, SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
                 return null;
             }
-            lock.lock();
-            return "locked";
+
+            if (lock == null) {
+                return null;
+            }
+
+            legacyLocks.put(lock.getId(), lock);
+            return lock.getId();
         }
 
         @Override
         public void release(String lockId) {
-            lock.unlock();
+            HeldLock lock = legacyLocks.remove(lockId);
+            if (lock != null) {
+                lock.close();
+            }
+        }
+
+        @Override
+        public HeldLock acquire(String name, long timeout, TimeUnit unit) throws InterruptedException {
+            return acquire(name, "locks/" + name, timeout, unit);
+        }
+
+        private HeldLock acquire(String name, String key, long timeout, TimeUnit unit) throws InterruptedException {
+            long deadline = System.nanoTime() + unit.toNanos(timeout);
+            String session = consul.createSession(0);
+            try {
+                while (!consul.acquire(key, null, session)) {
+                    long remaining = deadline - System.nanoTime();
+                    InMemoryConsul.Entry entry = consul.get(key);
+                    if (remaining <= 0) {
+                        consul.destroySession(session);
+                        return null;
+                    }
+                    consul.awaitChange(key, entry == null ? 0 : entry.getModifyIndex(), remaining, NANOSECONDS);
+                }
+            } catch (InterruptedException | RuntimeException e) {
+                consul.destroySession(session);
+                throw e;
+            }
+
+            long fencingToken = consul.get(key).getLockIndex();
+            return new HeldLock(name, key + "#" + fencingToken, fencingToken, released -> consul.destroySession(session));
         }
     }
 
-    private static class NoConsulCheckService implements CheckService {
+    /**
+     * without Consul this application is the only candidate, so it's elected as soon as it joins
+     */
+    private static class NoConsulLeaderElection implements LeaderElection {
+        private Map<String, LeadershipListener> elections = new ConcurrentHashMap<>();
+
+        @Override
+        public void join(String name, LeadershipListener listener) {
+            if (elections.putIfAbsent(name, listener) != null) {
+                throw new IllegalStateException("already joined election " + name);
+            }
+            listener.onElected(name);
+        }
+
+        @Override
+        public void leave(String name) {
+            LeadershipListener listener = elections.remove(name);
+            if (listener != null) {
+                listener.onRevoked(name);
+            }
+        }
+
+        @Override
+        public boolean isLeader(String name) {
+            return elections.containsKey(name);
+        }
+
+        @Override
+        public String getLeader(String name) {
+            return elections.containsKey(name) ? "local" : null;
+        }
+    }
+
+    private static class NoConsulSemaphore implements DistributedSemaphore {
+        private Map<String, Semaphore> semaphores = new ConcurrentHashMap<>();
+        private Map<String, Integer> limits = new ConcurrentHashMap<>();
+        private AtomicLong fencingTokens = new AtomicLong();
+
+        @Override
+        public HeldLock acquire(String name, int limit, long timeout, TimeUnit unit) throws InterruptedException {
+            int existingLimit = limits.computeIfAbsent(name, n -> limit);
+            if (existingLimit != limit) {
+                throw new IllegalStateException("semaphore " + name + " has a limit of " + existingLimit + ", not " + limit);
+            }
+
+            Semaphore semaphore = semaphores.computeIfAbsent(name, n -> new Semaphore(limit));
+            if (!semaphore.tryAcquire(timeout, unit)) {
+                return null;
+            }
+
+            long fencingToken = fencingTokens.incrementAndGet();
+            return new HeldLock(name, name + "#" + fencingToken, fencingToken, released -> semaphore.release());
+        }
+    }
+
+    /**
+     * keeps the checks in the in-memory agent, where they turn critical when their TTL passes without an update just
+     * like they do in Consul
+     */
+    private static class NoConsulCheckService implements CheckService, Closeable {
+        private InMemoryConsul consul;
+        private ConsulProperties consulProperties;
+        private String heartbeatId;
+        private ManagedChecks managedChecks;
+
+        NoConsulCheckService(InMemoryConsul consul, ConsulProperties consulProperties) {
+            this.consul = consul;
+            this.consulProperties = consulProperties;
+            ManagedChecks.Reporter reporter = (checkName, ttl, state, note) -> consul.updateCheck(toUniqueName(checkName), ttl, state, note);
+            this.managedChecks = consulProperties == null ? new ManagedChecks(reporter) :
+                    new ManagedChecks(reporter, consulProperties.getCheckEvaluationThreads(),
+                            consulProperties.getCheckEvaluationMillis(), consulProperties.getCheckTimeoutMillis());
+        }
+
+        /**
+         * registers this application in the in-memory catalog, with a heartbeat check that passes right away. Without
+         * the consul profile nothing schedules {@link #keepAlive()}, so the heartbeat is kept passing as a managed check
+         */
+        void registerMyself(String address, int port) {
+            CatalogService registration = new CatalogService();
+            registration.setServiceId(consulProperties.getServiceId() == null ? consulProperties.getServiceName() : consulProperties.getServiceId());
+            registration.setServiceName(consulProperties.getServiceName());
+            registration.setServiceAddress(address);
+            registration.setServicePort(port);
+            registration.setServiceTags(consulProperties.getTags() == null ? new String[0] : consulProperties.getTags());
+            registration.setNode("local");
+            registration.setAddress(address);
+
+            heartbeatId = "service:" + registration.getServiceId();
+            consul.register(registration, 2 * heartbeatRate());
+            keepAlive();
+            managedChecks.register(heartbeatId, 2 * heartbeatRate(), heartbeatRate() * 1000, consulProperties.getCheckTimeoutMillis(),
+                    CheckResult::pass);
+        }
+
         @Override
         public void pass(String checkName, long ttl) {
+            pass(checkName, ttl, null);
         }
 
         @Override
         public void pass(String checkName, long ttl, String note) {
+            consul.updateCheck(toUniqueName(checkName), ttl, PASS, note);
         }
 
         @Override
         public void fail(String checkName, long ttl) {
+            fail(checkName, ttl, null);
         }
 
         @Override
         public void fail(String checkName, long ttl, String note) {
+            consul.updateCheck(toUniqueName(checkName), ttl, FAIL, note);
+        }
+
+        @Override
+        public void register(String checkName, long ttl, Supplier<CheckResult> health) {
+            managedChecks.register(checkName, ttl, health);
+        }
+
+        @Override
+        public void register(String checkName, long ttl, long intervalMillis, long timeoutMillis, Supplier<CheckResult> health) {
+            managedChecks.register(checkName, ttl, intervalMillis, timeoutMillis, health);
+        }
+
+        @Override
+        public void unregister(String checkName) {
+            managedChecks.unregister(checkName);
+        }
+
+        @Override
+        public CheckResult getResult(String checkName) {
+            return managedChecks.getResult(checkName);
         }
 
         @Override
@@ -151,8 +536,20 @@ public class NoConsulConfig {
             return nonUniqueName;
         }
 
+        @Override
+        public void close() {
+            managedChecks.close();
+        }
+
         @Override
         public void keepAlive() {
+            if (heartbeatId != null) {
+                consul.updateCheck(heartbeatId, 2 * heartbeatRate(), PASS, null);
+            }
+        }
+
+        private long heartbeatRate() {
+            return consulProperties.getHeartbeatRate() == null ? DEFAULT_HEARTBEAT_RATE : consulProperties.getHeartbeatRate();
         }
     }
 }